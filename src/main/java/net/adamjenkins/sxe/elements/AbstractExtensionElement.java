@@ -18,8 +18,8 @@ package net.adamjenkins.sxe.elements;
 
 import java.io.IOException;
 import java.io.StringWriter;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Properties;
 
 import javax.naming.InitialContext;
@@ -30,7 +30,6 @@ import javax.xml.transform.TransformerException;
 
 import org.apache.xalan.extensions.XSLProcessorContext;
 import org.apache.xalan.templates.ElemExtensionCall;
-import org.apache.xalan.templates.ElemVariable;
 import org.apache.xalan.templates.StylesheetRoot;
 import org.apache.xalan.templates.VarBridge;
 import org.apache.xalan.trace.EndSelectionEvent;
@@ -44,13 +43,13 @@ import org.apache.xml.serializer.Method;
 import org.apache.xml.serializer.OutputPropertiesFactory;
 import org.apache.xml.serializer.Serializer;
 import org.apache.xml.serializer.SerializerFactory;
-import org.apache.xpath.XPath;
 import org.apache.xpath.objects.XObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import net.adamjenkins.sxe.util.TransformationContext;
 import net.adamjenkins.sxe.util.XSLTErrorListener;
 import net.adamjenkins.sxe.util.XSLTUtil;
 
@@ -63,7 +62,7 @@ public abstract class AbstractExtensionElement implements TraceListenerEx3{
 
     private static final Logger log = LoggerFactory.getLogger(AbstractExtensionElement.class);
 
-    private Map<Thread, ErrorListener> listenerHolder = new HashMap<Thread, ErrorListener>();
+    private static final TransformationContext.Slot<Deque<ErrorListener>> listenerHolder = TransformationContext.newSlot();
 
     public AbstractExtensionElement(){
         
@@ -71,13 +70,19 @@ public abstract class AbstractExtensionElement implements TraceListenerEx3{
 
     protected XSLTErrorListener resetErrorListener(XSLProcessorContext context){
         XSLTErrorListener returnValue = (XSLTErrorListener)context.getTransformer().getErrorListener();
-        context.getTransformer().setErrorListener(listenerHolder.get(Thread.currentThread()));
-        listenerHolder.put(Thread.currentThread(), null);
+        context.getTransformer().setErrorListener(TransformationContext.get(context).get(listenerHolder).pop());
         return returnValue;
     }
 
     protected void swapErrorListener(XSLProcessorContext context){
-        listenerHolder.put(Thread.currentThread(), context.getTransformer().getErrorListener());
+        //a stack, so that swapping elements can be nested inside each other
+        TransformationContext state = TransformationContext.get(context);
+        Deque<ErrorListener> held = state.get(listenerHolder);
+        if(held == null){
+            held = new ArrayDeque<ErrorListener>();
+            state.set(listenerHolder, held);
+        }
+        held.push(context.getTransformer().getErrorListener());
         context.getTransformer().setErrorListener(new XSLTErrorListener());
     }
 
@@ -169,33 +174,14 @@ public abstract class AbstractExtensionElement implements TraceListenerEx3{
         return XSLTUtil.isNull(obj);
     }
 
+    /**
+     * Binds the value to the variable this element is the body of, for the current transform only (the stylesheet is
+     * left untouched).
+     *
+     * @return false if this element isn't the body of a variable, in which case the caller should output the value.
+     */
     protected boolean setVariableIfPossible(TransformerImpl transformer, Object variable, ElemExtensionCall thisElement) throws TransformerException{
-        if(thisElement.getParentElem() instanceof ElemVariable){
-            ElemVariable varElement = (ElemVariable)thisElement.getParentElem();
-            //int sourceNode = transformer.getXPathContext().getCurrentNode();
-            //XObject tmp = varElement.getValue(transformer, 0);
-            //get the current variable
-            
-            //transformer.getXPathContext().getVarStack().setLocalVariable(varElement.getIndex(), new XObject(variable));
-            
-            varElement.removeChild(thisElement);
-            varElement.setSelect(new XPath(new XObject(variable)));
-            
-            //varElement.execute(transformer);
-            /*StylesheetRoot root = varElement.getStylesheetRoot();
-            ElemVariable newVar = new ElemVariable();
-            newVar.setSelect(new XPath(new XObject(variable)));
-            newVar.setParentElem(varElement.getParentElem());
-            varElement.getParentElem().appendChild(newVar);
-            varElement.getParentElem().removeChild(varElement);
-            newVar.recompose(root);
-            newVar.execute(transformer);*/
-            //varElement.recompose(varElement.getStylesheetRoot());
-            //varElement.appendChild(new XPath(XObject(variable)));
-            //varElement.overrideChildDocument(new XPath(new XObject(variable)));
-            return true;
-        }
-        return false;
+        return XSLTUtil.setVariableIfPossible(transformer, thisElement, variable);
     }
 
     protected int getIntegerXPath(String attributeName, XSLProcessorContext context, ElemExtensionCall extensionElement, int defaultValue){
@@ -18,24 +18,40 @@ package net.adamjenkins.sxe.elements;
 
 import net.adamjenkins.sxe.*;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import javax.xml.transform.Templates;
 import javax.xml.transform.TransformerException;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.xalan.extensions.XSLProcessorContext;
+import org.apache.xalan.templates.Constants;
 import org.apache.xalan.templates.ElemExtensionCall;
+import org.apache.xalan.templates.ElemLiteralResult;
 import org.apache.xalan.templates.ElemTemplateElement;
+import org.apache.xalan.templates.StylesheetComposed;
+import org.apache.xalan.templates.StylesheetRoot;
 import org.apache.xalan.trace.TracerEvent;
+import org.apache.xalan.transformer.TransformerImpl;
 import org.apache.xpath.objects.XNodeSet;
 import org.apache.xpath.objects.XNull;
 import org.apache.xpath.objects.XObject;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 
+import com.sun.management.ThreadMXBean;
+
+import net.adamjenkins.sxe.util.ConcurrentWeakIdentityMap;
+import net.adamjenkins.sxe.util.TransformationContext;
+import net.adamjenkins.sxe.util.XSLTUtil;
+
 /**
  * Elements for performing assertions in XSLT<br/><br/>
  * <b>Read This First: </b><a href="package-summary.html#package_description">Introduction to SXE Elements</a>
@@ -82,8 +98,19 @@ import org.w3c.dom.Node;
  * <code>&lt;assert:notEqual arg1="somexpath" arg2="somexpath"/&gt;</code> asserts that the two xpath locations or variables are not equal<br/>
  * <code>&lt;assert:isTrue test="some boolean expression"/&gt;</code> asserts the test<br/>
  * <code>&lt;assert:exists select="some xpath"/&gt;</code> asserts that something exists (is not null)<br/>
+ * <code>&lt;assert:budget maxMillis="500"&gt;...&lt;/assert:budget&gt;</code> asserts that the enclosed block runs within a time (and/or allocation) budget<br/>
  * <br/>
  * Check the javadoc for the individual assertion methods (i.e. elements) for more usage examples.
+ * <br/><br/>
+ * Each transformation (including any parallel branches it starts) keeps its own assertion state, so a stylesheet can
+ * be run by any number of threads at once without the counts getting mixed up.
+ * <br/><br/>
+ * Besides <code>&lt;assert:token/&gt;</code> elements, the called assertions can target any literal result element
+ * with a matching <i>id</i> attribute.  By default these are counted by listening to every trace event of the
+ * transformation, which is slow.  Passing the compiled stylesheet to {@link #instrument(Templates)} (which
+ * {@link net.adamjenkins.sxe.execution.BatchTransformer} does for you) adds a counting hook in front of just the
+ * targeted elements instead, and the rest of the transformation runs untraced.  The hooks are added to the compiled
+ * stylesheet itself, so this has to happen before the stylesheet is used.
  * 
  * 
  * @author <a href="mailto:mail.at.adamjenkins.net">Adam Norman Jenkins</a>
@@ -92,15 +119,14 @@ public class Assertion extends AbstractExtensionElement {
 
     private static final Logger log = LoggerFactory.getLogger(Assertion.class);
     //if we can't finish processing one website in 20 minutes, we've got problems
-    private int maxProcessingTime = 1200000;
-    private Map<String, Integer> assertCalledIds = new HashMap<String, Integer>();
-    private Map<String, Integer> assertCalledAtLeastIds = new HashMap<String, Integer>();
-    private Map<String, Integer> assertCalledTracker = new HashMap<String, Integer>();
-    private List<String> assertNotCalledIds = new ArrayList<String>();
-    private Map<String, Integer> limitTracker = new HashMap<String, Integer>();
-    private long startTime;
-    private boolean suspendTimeout = false;
-    private boolean initialized = false;
+    private static final int DEFAULT_MAX_PROCESSING_TIME = 1200000;
+    private int maxProcessingTime = DEFAULT_MAX_PROCESSING_TIME;
+    private static final TransformationContext.Slot<AssertionState> assertionState = TransformationContext.newSlot();
+    private static final ConcurrentWeakIdentityMap<StylesheetRoot, Boolean> instrumented = new ConcurrentWeakIdentityMap<StylesheetRoot, Boolean>();
+    //stylesheets that have been run, which can't be instrumented any more
+    private static final ConcurrentWeakIdentityMap<StylesheetRoot, Boolean> transformed = new ConcurrentWeakIdentityMap<StylesheetRoot, Boolean>();
+    private static final ThreadMXBean threads = getThreadMXBean();
+    private static final Set<String> CALLED_ASSERTIONS = new HashSet<String>(Arrays.asList("called", "calledAtLeast", "notCalled"));
 
     /**
      * This element initialized the assertion framework.  Optionally, a timeout can be specified.  Specify a timeout if
@@ -126,24 +152,33 @@ public class Assertion extends AbstractExtensionElement {
      * @param context
      * @param extensionElement
      */
-    public synchronized void init(XSLProcessorContext context, ElemExtensionCall extensionElement) {
-        if (initialized) {
-            return;
+    public void init(XSLProcessorContext context, ElemExtensionCall extensionElement) {
+        AssertionState state = getState(context);
+        synchronized(state) {
+            if (state.initialized) {
+                return;
+            }
+            state.initialized = true;
         }
-        startTime = System.currentTimeMillis();
+        state.startTime = System.currentTimeMillis();
         log.debug("init");
         try {
-            context.getTransformer().getTraceManager().addTraceListener(this);
-            initialized = true;            
+            StylesheetRoot stylesheet = context.getStylesheet().getStylesheetRoot();
+            if (transformed.get(stylesheet) == null) transformed.computeIfAbsent(stylesheet, s -> Boolean.TRUE);
+            if (instrumented.get(stylesheet) == null) {
+                //a transformer that is reused keeps its listeners
+                context.getTransformer().getTraceManager().removeTraceListener(this);
+                context.getTransformer().getTraceManager().addTraceListener(this);
+            }
         } catch (Throwable t) {
             logError(this.getClass(), "Failed to initialize assertion framework: " + t.getMessage(), context);
         }
         String timeoutString = extensionElement.getAttribute("timeout");
         try{            
-            if(StringUtils.isNotEmpty(timeoutString)) maxProcessingTime = Integer.parseInt(timeoutString);
+            if(StringUtils.isNotEmpty(timeoutString)) state.maxProcessingTime = Integer.parseInt(timeoutString);
             else suspendTimeout(context, extensionElement);
         }catch(NumberFormatException e){
-            logError(this.getClass(), "Invalid timeout " + timeoutString + " timeout value must be a valid number - defaulting to " + maxProcessingTime, context);
+            logError(this.getClass(), "Invalid timeout " + timeoutString + " timeout value must be a valid number - defaulting to " + state.maxProcessingTime, context);
         }
     }
 
@@ -162,10 +197,11 @@ public class Assertion extends AbstractExtensionElement {
      * @param context
      * @param extensionElement
      */
-    public synchronized void finalize(XSLProcessorContext context, ElemExtensionCall extensionElement) {
-        checkTimeout();
-        processAssertCalled(context);
-        processAssertCalledAtLeast(context);
+    public void finalize(XSLProcessorContext context, ElemExtensionCall extensionElement) {
+        AssertionState state = getState(context);
+        state.checkTimeout();
+        processAssertCalled(context, state);
+        processAssertCalledAtLeast(context, state);
     }
 
     /**
@@ -182,14 +218,16 @@ public class Assertion extends AbstractExtensionElement {
      * @param extensionElement
      */
     public void suspendTimeout(XSLProcessorContext context, ElemExtensionCall extensionElement) {
-        suspendTimeout = true;
+        getState(context).suspendTimeout = true;
     }
 
     /**
      * A lot of the more involved assertions (assertCalled, assertCalledAtLeast) use a targetId attribute which points to the unique id of
      * an assertion token.  Place these tokens throughout your document as points for the assertion framework to check the assertions you have configured.
      * <br/><br/>
-     * You may configure the assertions at any point in your document, however they will only work with subsequent calls to the token they are watching.
+     * You may configure the assertions at any point in your document.  Every call to a token is counted, so the counting assertions (<i>called</i>,
+     * <i>calledAtLeast</i>) see all the calls to the token they are watching, whether those calls come before or after the assertion.  The exception is
+     * <i>notCalled</i>, which only reports calls made after it has been configured.
      * <br/><br/>
      * Usage:
      * <br/><br/>
@@ -204,22 +242,16 @@ public class Assertion extends AbstractExtensionElement {
      * @param extensionElement
      */
     public void token(XSLProcessorContext context, ElemExtensionCall extensionElement) {
-        checkTimeout();
+        AssertionState state = getState(context);
+        state.checkTimeout();
         debug(extensionElement);
         if(!passesAttributeValidation(extensionElement, context, "id")) return;
         String id = getAttribute("id", context, extensionElement);
-        if (assertNotCalledIds.contains(id)) {
+        if (state.notCalledIds.contains(id)) {
             logError(new TransformerException("Node '" + id + "' was called but was registered as 'assertNotCalled'"), context);
         }
-        if (assertCalledAtLeastIds.keySet().contains(id) || assertCalledIds.keySet().contains(id)) {
-            if (assertCalledTracker.keySet().contains(id)) {
-                int count = assertCalledTracker.get(id);
-                ++count;
-                assertCalledTracker.put(id, count);
-            } else {
-                assertCalledTracker.put(id, 1);
-            }
-        }
+        //every token is counted, so it doesn't matter whether the assertion on it comes before or after it's called
+        counter(state.callCounts, id).increment();
     }
 
     /**
@@ -246,18 +278,18 @@ public class Assertion extends AbstractExtensionElement {
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("maxLimit")
     public void applyLimit(XSLProcessorContext context, final ElemExtensionCall extensionElement) {
-        checkTimeout();
+        AssertionState state = getState(context);
+        state.checkTimeout();
         debug(extensionElement);
         if(!passesAttributeValidation(extensionElement, context, "name", "maxLimit")) return;
         String name = getAttribute("name", context, extensionElement);
         int maxLimit = Integer.parseInt(getXPath("maxLimit", context, extensionElement));
-        Integer currentValue = limitTracker.get(name);
-        if (currentValue == null) {
-            currentValue = 0;
-        }
-        limitTracker.put(name, ++currentValue);
-        if (currentValue >= maxLimit) {
+        LongAdder counter = counter(state.limitCounts, name);
+        counter.increment();
+        //other threads may have added to it too, but never so that the call that reaches the limit misses it
+        if (counter.sum() >= maxLimit) {
             logError(new TransformerException("The limit for key '" + name + "' of " + maxLimit + " was exceeded."), context);
         }
     }
@@ -283,7 +315,7 @@ public class Assertion extends AbstractExtensionElement {
      * @param extensionElement
      */
     public void fail(XSLProcessorContext context, final ElemExtensionCall extensionElement){
-        checkTimeout();
+        getState(context).checkTimeout();
         debug(extensionElement);
         String message = "An <assert:fail/> was encountered";
         if (hasAttribute(extensionElement, "message")) {
@@ -306,8 +338,9 @@ public class Assertion extends AbstractExtensionElement {
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes("select")
     public void exists(XSLProcessorContext context, final ElemExtensionCall extensionElement) throws TransformerException {
-        checkTimeout();
+        getState(context).checkTimeout();
         debug(extensionElement);
         if (!passesAttributeValidation(extensionElement, context, "select")) return;
         XObject obj = getXObject("select", context, extensionElement);
@@ -342,15 +375,17 @@ public class Assertion extends AbstractExtensionElement {
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("numberOfTimes")
     public void called(XSLProcessorContext context, final ElemExtensionCall extensionElement) {
-        checkTimeout();
+        AssertionState state = getState(context);
+        state.checkTimeout();
         debug(extensionElement);
         if(!passesAttributeValidation(extensionElement, context, "targetId")) return;
         String id = getAttribute("targetId", context, extensionElement);
         String numOfTimesString = getXPath("numberOfTimes", context, extensionElement);
         try {
             int times = StringUtils.isEmpty(numOfTimesString) ? 1 : Integer.parseInt(numOfTimesString);
-            assertCalledIds.put(id, times);
+            state.calledIds.put(id, times);
         } catch (NumberFormatException e) {
             logError(this.getClass(),
                      extensionElement,
@@ -382,13 +417,15 @@ public class Assertion extends AbstractExtensionElement {
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("numberOfTimes")
     public void calledAtLeast(XSLProcessorContext context, ElemExtensionCall extensionElement) {
-        checkTimeout();
+        AssertionState state = getState(context);
+        state.checkTimeout();
         debug(extensionElement);
         if(!passesAttributeValidation(extensionElement, context, "targetId", "numberOfTimes")) return;
         try {
             int numberOfTimes = Integer.parseInt(getXPath("numberOfTimes", context, extensionElement));
-            assertCalledAtLeastIds.put(extensionElement.getAttribute("targetId"), numberOfTimes);
+            state.calledAtLeastIds.put(extensionElement.getAttribute("targetId"), numberOfTimes);
         } catch (NumberFormatException e) {
         }
     }
@@ -410,10 +447,11 @@ public class Assertion extends AbstractExtensionElement {
      * @param extensionElement
      */
     public void notCalled(XSLProcessorContext context, ElemExtensionCall extensionElement) {
-        checkTimeout();
+        AssertionState state = getState(context);
+        state.checkTimeout();
         debug(extensionElement);
         if(!passesAttributeValidation(extensionElement, context, "targetId")) return;
-        assertNotCalledIds.add(getAttribute("targetId", context, extensionElement));
+        state.notCalledIds.add(getAttribute("targetId", context, extensionElement));
     }
 
     /**
@@ -440,8 +478,9 @@ public class Assertion extends AbstractExtensionElement {
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes({"arg1", "arg2"})
     public void equal(XSLProcessorContext context, ElemExtensionCall extensionElement) {
-        checkTimeout();
+        getState(context).checkTimeout();
         debug(extensionElement);
         if(!passesAttributeValidation(extensionElement, context, "arg1", "arg2")) return;
         String base = getXPath("arg1", context, extensionElement);
@@ -477,8 +516,9 @@ public class Assertion extends AbstractExtensionElement {
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes({"arg1", "arg2"})
     public void notEqual(XSLProcessorContext context, ElemExtensionCall extensionElement) {
-        checkTimeout();
+        getState(context).checkTimeout();
         debug(extensionElement);
         if(!passesAttributeValidation(extensionElement, context, "arg1", "arg2")) return;
         String base = getXPath("arg1", context, extensionElement);
@@ -505,8 +545,9 @@ public class Assertion extends AbstractExtensionElement {
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes({"pattern", "test"})
     public void matches(XSLProcessorContext context, ElemExtensionCall extensionElement){
-        checkTimeout();
+        getState(context).checkTimeout();
         debug(extensionElement);
         if(!passesAttributeValidation(extensionElement, context, "test", "pattern")) return;
         String pattern = getXPath("pattern", context, extensionElement);
@@ -532,8 +573,9 @@ public class Assertion extends AbstractExtensionElement {
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("test")
     public void isTrue(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException {
-        checkTimeout();
+        getState(context).checkTimeout();
         debug(extensionElement);
         if(!passesAttributeValidation(extensionElement, context, "test")) return;
         boolean test = getXObject("test", context, extensionElement).bool();
@@ -544,6 +586,68 @@ public class Assertion extends AbstractExtensionElement {
         }
     }
 
+    /**
+     * Asserts that the enclosed block finishes within a budget, so that performance regressions in critical parts of a
+     * stylesheet can be caught by the same tests as everything else.  The block is always run (and its output kept),
+     * the budget is only checked once it has finished.
+     * <br/><br/>
+     * <code>&lt;assert:budget name="sectors" maxMillis="500" maxAllocatedBytes="1048576"&gt;...&lt;/assert:budget&gt;</code>
+     * <br/><br/>
+     * The allocation is measured for the transforming thread only (work handed to other threads by the concurrency
+     * elements isn't included), and is not checked at all on a JVM that can't measure allocation per thread.
+     * <br/><br/>
+     * <table border="1">
+     *  <tr><th align="left">Attribute Name</th><th align="left">Type</th><th align="left">Description</th><th align="left">Mandatory?</th></tr>
+     *  <tr><td>name</td><td>Template</td><td>A name for the block, used in the error message.</td><td>No</td></tr>
+     *  <tr><td>maxMillis</td><td>XPath</td><td>The maximum time (in milliseconds) the block may take.</td><td>No (but one of maxMillis or maxAllocatedBytes must be present)</td></tr>
+     *  <tr><td>maxAllocatedBytes</td><td>XPath</td><td>The maximum number of bytes the block may allocate.</td><td>No (but one of maxMillis or maxAllocatedBytes must be present)</td></tr>
+     * </table>
+     *
+     * @param context
+     * @param extensionElement
+     */
+    @XPathAttributes({"maxMillis", "maxAllocatedBytes"})
+    public void budget(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException {
+        getState(context).checkTimeout();
+        debug(extensionElement);
+        boolean hasMaxMillis = StringUtils.isNotEmpty(extensionElement.getAttribute("maxMillis"));
+        boolean hasMaxBytes = StringUtils.isNotEmpty(extensionElement.getAttribute("maxAllocatedBytes"));
+        if (!hasMaxMillis && !hasMaxBytes) {
+            logError(this.getClass(), extensionElement, "One of the attributes maxMillis or maxAllocatedBytes must be specified", context);
+            return;
+        }
+        String maxMillisString = hasMaxMillis ? getXPath("maxMillis", context, extensionElement) : null;
+        String maxBytesString = hasMaxBytes ? getXPath("maxAllocatedBytes", context, extensionElement) : null;
+        long maxMillis;
+        long maxBytes;
+        try {
+            maxMillis = StringUtils.isEmpty(maxMillisString) ? -1 : Long.parseLong(maxMillisString);
+            maxBytes = StringUtils.isEmpty(maxBytesString) ? -1 : Long.parseLong(maxBytesString);
+        } catch (NumberFormatException e) {
+            logError(this.getClass(), extensionElement, "Budget limits must be whole numbers: " + e.getMessage(), context);
+            return;
+        }
+        long threadId = Thread.currentThread().getId();
+        boolean measureAllocation = maxBytes >= 0 && threads != null && threads.isThreadAllocatedMemoryEnabled();
+        long allocatedAtStart = measureAllocation ? threads.getThreadAllocatedBytes(threadId) : 0;
+        long start = System.nanoTime();
+        context.getTransformer().executeChildTemplates(extensionElement, true);
+        long elapsed = System.nanoTime() - start;
+        long allocated = measureAllocation ? threads.getThreadAllocatedBytes(threadId) - allocatedAtStart : 0;
+        String name = getAttribute("name", context, extensionElement);
+        String block = StringUtils.isEmpty(name) ? "Budget" : "Budget '" + name + "'";
+        if (maxMillis >= 0 && elapsed > maxMillis * 1000000L) {
+            logError(this.getClass(), extensionElement,
+                    block + " exceeded: took " + (elapsed / 1000000L) + "ms, but was only allowed " + maxMillis + "ms",
+                    context);
+        }
+        if (measureAllocation && allocated > maxBytes) {
+            logError(this.getClass(), extensionElement,
+                    block + " exceeded: allocated " + allocated + " bytes, but was only allowed " + maxBytes + " bytes",
+                    context);
+        }
+    }
+
     @Override
     public void trace(TracerEvent event) {
         try {
@@ -554,21 +658,16 @@ public class Assertion extends AbstractExtensionElement {
                 log.debug("StyleSheet Node: " + event.m_styleNode);
             }
             Node styleSheetNode = event.m_styleNode;
-            if (styleSheetNode.getNodeType() == Node.ELEMENT_NODE && !(styleSheetNode instanceof ElemTemplateElement)) {
+            boolean literal = styleSheetNode instanceof ElemLiteralResult && !(styleSheetNode instanceof ElemExtensionCall);
+            if (styleSheetNode.getNodeType() == Node.ELEMENT_NODE && (literal || !(styleSheetNode instanceof ElemTemplateElement))) {
                 Element element = (Element) styleSheetNode;
                 String id = element.getAttribute("id");
-                if (assertNotCalledIds.contains(id)) {
+                if (StringUtils.isEmpty(id)) return;
+                AssertionState state = getState(event.m_processor, maxProcessingTime);
+                if (state.notCalledIds.contains(id)) {
                     logError(new TransformerException("Node '" + id + "' was called but was registered as 'assertNotCalled'"), event.m_processor.getErrorListener());
                 }
-                if (assertCalledAtLeastIds.keySet().contains(id) || assertCalledIds.keySet().contains(id)) {
-                    if (assertCalledTracker.keySet().contains(id)) {
-                        int count = assertCalledTracker.get(id);
-                        ++count;
-                        assertCalledTracker.put(id, count);
-                    } else {
-                        assertCalledTracker.put(id, 1);
-                    }
-                }
+                counter(state.callCounts, id).increment();
             }
         } catch (Throwable t) {
             //we don't want to let any errors get out of the trace method
@@ -586,18 +685,139 @@ public class Assertion extends AbstractExtensionElement {
         this.maxProcessingTime = maxProcessingTime;
     }
 
-    private void checkTimeout() {
-        long timeRunning = System.currentTimeMillis() - startTime;
-        if (timeRunning > maxProcessingTime && !suspendTimeout) {
-            throw new RuntimeException("Xalan Transformer Timeout!");
+    /**
+     * Adds a counting hook in front of every element targeted by an <code>&lt;assert:called/&gt;</code>,
+     * <code>&lt;assert:calledAtLeast/&gt;</code> or <code>&lt;assert:notCalled/&gt;</code>, so that
+     * <code>&lt;assert:init/&gt;</code> doesn't have to trace the whole transformation to count them.  The hooks are
+     * inserted into the compiled stylesheet, which transformers read without any locking, so call it straight after the
+     * stylesheet is compiled, before any transformer is created from it.  Calling it again does nothing.  A stylesheet
+     * whose targets can't be worked out up front (a <i>targetId</i> that is an attribute value template) is left alone,
+     * and traced as before.
+     *
+     * @return The number of hooks added.
+     * @throws IllegalStateException If the stylesheet has already been used for a transformation.
+     */
+    public static int instrument(Templates templates) {
+        return templates instanceof StylesheetRoot ? instrument((StylesheetRoot)templates) : 0;
+    }
+
+    /**
+     * @see #instrument(Templates)
+     */
+    public static synchronized int instrument(StylesheetRoot stylesheet) {
+        if (instrumented.get(stylesheet) != null) return 0;
+        if (transformed.get(stylesheet) != null) {
+            throw new IllegalStateException("Stylesheet has already been used, it must be instrumented before any transformers are created from it");
+        }
+        Set<String> targetIds = new HashSet<String>();
+        for (ElemTemplateElement root : getStylesheets(stylesheet)) {
+            if (!collectTargetIds(root, targetIds)) return 0;
+        }
+        int count = 0;
+        if (!targetIds.isEmpty()) {
+            for (ElemTemplateElement root : getStylesheets(stylesheet)) {
+                count += addHooks(root, targetIds);
+            }
+        }
+        instrumented.computeIfAbsent(stylesheet, s -> Boolean.TRUE);
+        return count;
+    }
+
+    private static Set<ElemTemplateElement> getStylesheets(StylesheetRoot stylesheet) {
+        Set<ElemTemplateElement> stylesheets = new LinkedHashSet<ElemTemplateElement>();
+        for (int i = 0; i < stylesheet.getGlobalImportCount(); i++) {
+            StylesheetComposed imported = stylesheet.getGlobalImport(i);
+            //-1 is the stylesheet itself
+            for (int j = -1; j < imported.getIncludeCountComposed(); j++) {
+                stylesheets.add(imported.getIncludeComposed(j));
+            }
+        }
+        return stylesheets;
+    }
+
+    private static boolean isAssertion(ElemTemplateElement element) {
+        if (!(element instanceof ElemExtensionCall)) return false;
+        String namespace = ((ElemExtensionCall)element).getNamespace();
+        return namespace != null && namespace.endsWith(Assertion.class.getName());
+    }
+
+    /**
+     * @return false if a target id can only be worked out while transforming.
+     */
+    private static boolean collectTargetIds(ElemTemplateElement element, Set<String> targetIds) {
+        for (ElemTemplateElement child = element.getFirstChildElem(); child != null; child = child.getNextSiblingElem()) {
+            if (isAssertion(child) && CALLED_ASSERTIONS.contains(child.getLocalName())) {
+                String targetId = ((ElemExtensionCall)child).getAttribute("targetId");
+                if (StringUtils.contains(targetId, '{')) return false;
+                if (StringUtils.isNotEmpty(targetId)) targetIds.add(targetId);
+            }
+            if (!collectTargetIds(child, targetIds)) return false;
+        }
+        return true;
+    }
+
+    private static int addHooks(ElemTemplateElement element, Set<String> targetIds) {
+        int count = 0;
+        ElemTemplateElement child = element.getFirstChildElem();
+        while (child != null) {
+            ElemTemplateElement next = child.getNextSiblingElem();
+            //tokens (and any other extension elements) count themselves
+            if (child instanceof ElemLiteralResult && !(child instanceof ElemExtensionCall)) {
+                String id = ((ElemLiteralResult)child).getAttribute("id");
+                if (targetIds.contains(id)) {
+                    element.insertBefore(new CallCounter(id), child);
+                    count++;
+                }
+            }
+            count += addHooks(child, targetIds);
+            child = next;
+        }
+        return count;
+    }
+
+    private static ThreadMXBean getThreadMXBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof ThreadMXBean) || !((ThreadMXBean)bean).isThreadAllocatedMemorySupported()) {
+            log.info("Allocation can't be measured on this JVM, assert:budget will only check the time taken");
+            return null;
         }
+        return (ThreadMXBean)bean;
     }
 
-    private void processAssertCalled(XSLProcessorContext context) {
-        for (String id : assertCalledIds.keySet()) {
-            int numberOfTimes = assertCalledIds.get(id);
-            if (assertCalledTracker.containsKey(id)) {
-                int actual = assertCalledTracker.get(id);
+    private AssertionState getState(XSLProcessorContext context) {
+        return getState(context.getTransformer(), maxProcessingTime);
+    }
+
+    private static AssertionState getState(TransformerImpl transformer, int maxProcessingTime) {
+        //parallel branches share the state of the transformation they belong to
+        TransformationContext root = TransformationContext.get(transformer).getRoot();
+        //xalan sets up a new extensions table for every transformation (which the branches share), so a reused
+        //transformer that was never completed doesn't carry the last run's state into this one
+        Object run = transformer.getExtensionsTable();
+        AssertionState state = root.get(assertionState);
+        if (state != null && state.run == run) return state;
+        synchronized (root) {
+            state = root.get(assertionState);
+            if (state == null || state.run != run) {
+                state = new AssertionState(run, maxProcessingTime);
+                root.set(assertionState, state);
+            }
+            return state;
+        }
+    }
+
+    private static LongAdder counter(Map<String, LongAdder> counters, String key) {
+        LongAdder counter = counters.get(key);
+        return counter != null ? counter : counters.computeIfAbsent(key, k -> new LongAdder());
+    }
+
+    private void processAssertCalled(XSLProcessorContext context, AssertionState state) {
+        for (Map.Entry<String, Integer> expected : state.calledIds.entrySet()) {
+            String id = expected.getKey();
+            int numberOfTimes = expected.getValue();
+            LongAdder counter = state.callCounts.get(id);
+            if (counter != null) {
+                long actual = counter.sum();
                 if (numberOfTimes != actual) {
                     logError(this.getClass(), 
                             "Element with id " + id + " was called " + actual + " times, but was supposed to be called " + numberOfTimes + " times.",
@@ -611,11 +831,13 @@ public class Assertion extends AbstractExtensionElement {
         }
     }
 
-    private void processAssertCalledAtLeast(XSLProcessorContext context) {
-        for (String id : assertCalledAtLeastIds.keySet()) {
-            int numberOfTimes = assertCalledAtLeastIds.get(id);
-            if (assertCalledTracker.containsKey(id)) {
-                int actual = assertCalledTracker.get(id);
+    private void processAssertCalledAtLeast(XSLProcessorContext context, AssertionState state) {
+        for (Map.Entry<String, Integer> expected : state.calledAtLeastIds.entrySet()) {
+            String id = expected.getKey();
+            int numberOfTimes = expected.getValue();
+            LongAdder counter = state.callCounts.get(id);
+            if (counter != null) {
+                long actual = counter.sum();
                 if (numberOfTimes > actual) {
                     logError(this.getClass(), 
                             "Element with id " + id + " was called " + actual + " times, but was supposed to be called at least " + numberOfTimes + " times.",
@@ -629,4 +851,68 @@ public class Assertion extends AbstractExtensionElement {
         }
     }
 
+    /**
+     * The assertions registered by, and the counts kept for, a single transformation.
+     */
+    private static final class AssertionState {
+
+        final Object run;
+        final Map<String, Integer> calledIds = new ConcurrentHashMap<String, Integer>();
+        final Map<String, Integer> calledAtLeastIds = new ConcurrentHashMap<String, Integer>();
+        final Set<String> notCalledIds = ConcurrentHashMap.newKeySet();
+        final Map<String, LongAdder> callCounts = new ConcurrentHashMap<String, LongAdder>();
+        final Map<String, LongAdder> limitCounts = new ConcurrentHashMap<String, LongAdder>();
+        volatile int maxProcessingTime;
+        volatile long startTime = System.currentTimeMillis();
+        volatile boolean suspendTimeout = false;
+        boolean initialized = false;
+
+        AssertionState(Object run, int maxProcessingTime) {
+            this.run = run;
+            this.maxProcessingTime = maxProcessingTime;
+        }
+
+        void checkTimeout() {
+            long timeRunning = System.currentTimeMillis() - startTime;
+            if (timeRunning > maxProcessingTime && !suspendTimeout) {
+                throw new RuntimeException("Xalan Transformer Timeout!");
+            }
+        }
+
+    }
+
+    /**
+     * Counts a call to the element that follows it, added by {@link Assertion#instrument(StylesheetRoot)}.
+     */
+    private static final class CallCounter extends ElemTemplateElement {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String id;
+
+        CallCounter(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public int getXSLToken() {
+            return Constants.ELEMNAME_UNDEFINED;
+        }
+
+        @Override
+        public String getNodeName() {
+            return "assert-call-counter";
+        }
+
+        @Override
+        public void execute(TransformerImpl transformer) throws TransformerException {
+            AssertionState state = getState(transformer, DEFAULT_MAX_PROCESSING_TIME);
+            if (state.notCalledIds.contains(id)) {
+                XSLTUtil.logError(Assertion.class, "Node '" + id + "' was called but was registered as 'assertNotCalled'", transformer.getErrorListener());
+            }
+            counter(state.callCounts, id).increment();
+        }
+
+    }
+
 }
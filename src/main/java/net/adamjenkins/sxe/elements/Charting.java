@@ -175,6 +175,7 @@ public class Charting extends AbstractExtensionElement{
      * @throws TransformerException
      * @throws IOException
      */
+    @XPathAttributes({"height", "width", "output"})
     public void image(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException, IOException {
         configureFromAttributes(context, extensionElement);
         if((format == OutputType.JPEG || format == OutputType.PNG) && (out == null)){
@@ -243,6 +244,7 @@ public class Charting extends AbstractExtensionElement{
      * @param extensionElement
      * @throws TransformerException
      */
+    @XPathAttributes({"titleFontSize", "subtitleFontSize", "categoryAxisFontSize", "valueAxisFontSize", "borderWeight"})
     public void chart(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         /*
          * Chart attributes:
@@ -384,6 +386,7 @@ public class Charting extends AbstractExtensionElement{
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("weight")
     public void category(XSLProcessorContext context, ElemExtensionCall extensionElement){
          /*
          * name, color?, weight?, timeperiod?, dateformat?
@@ -417,6 +420,7 @@ public class Charting extends AbstractExtensionElement{
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("value")
     public void addValue(XSLProcessorContext context, ElemExtensionCall extensionElement){
         /*
          * series, category, value, type
@@ -19,9 +19,20 @@ package net.adamjenkins.sxe.elements;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.MalformedURLException;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
@@ -32,12 +43,27 @@ import javax.xml.transform.TransformerException;
 
 import org.apache.xalan.extensions.XSLProcessorContext;
 import org.apache.xalan.templates.ElemExtensionCall;
+import org.apache.xalan.templates.ElemVariable;
+import org.apache.xalan.transformer.TransformerImpl;
 import org.apache.xml.serializer.SerializationHandler;
+import org.apache.xpath.NodeSetDTM;
 import org.apache.xpath.objects.XObject;
+import org.xml.sax.SAXException;
 
+import net.adamjenkins.sxe.elements.concurrency.AsyncResult;
+import net.adamjenkins.sxe.elements.concurrency.BranchEnvironment;
+import net.adamjenkins.sxe.elements.concurrency.BranchScope;
+import net.adamjenkins.sxe.elements.concurrency.ChunkedForEachTask;
 import net.adamjenkins.sxe.elements.concurrency.EmbeddedStylesheetDefinition;
+import net.adamjenkins.sxe.elements.concurrency.NamedThreadPool;
+import net.adamjenkins.sxe.elements.concurrency.RejectionPolicy;
+import net.adamjenkins.sxe.elements.concurrency.ResultSlot;
 import net.adamjenkins.sxe.elements.concurrency.SXEMultithreadedSerializationHandler;
+import net.adamjenkins.sxe.elements.concurrency.StripedLock;
+import net.adamjenkins.sxe.elements.concurrency.ThreadPoolRegistry;
 import net.adamjenkins.sxe.elements.concurrency.ThreadedXalanProcessor;
+import net.adamjenkins.sxe.elements.concurrency.VirtualThreadSupport;
+import net.adamjenkins.sxe.util.TransformationContext;
 import net.adamjenkins.sxe.util.XSLTUtil;
 
 /**
@@ -57,9 +83,9 @@ import net.adamjenkins.sxe.util.XSLTUtil;
  * if you have resources that are being accessed concurrently that need to be protected, you can either create an use
  * a read/write lock or you can synchronize the block of code being executed.
  * <br/><br/>
- * <b>Note:</b> While concurrent operations will give you a faster processing time, they cannot specify the order
- * that the concurrent elements will be added to the final document, and they do increase the memory footprint for your
- * transformation.
+ * <b>Note:</b> While concurrent operations will give you a faster processing time, they do increase the memory footprint
+ * for your transformation.  The output of each parallel element is written to the final document in document order (i.e.
+ * where the parallel element appears), anything that follows an unfinished parallel element is held back until it completes.
  * <br/><br/>
  * To register the concurrency elements with Xalan, add the following to your stylesheet declaration:
  * <br/><br/>
@@ -73,9 +99,10 @@ import net.adamjenkins.sxe.util.XSLTUtil;
  * <code>
  * <pre>
  * &lt;template match="/"&gt;
- *  &lt;div id="allcontacts-unordered"&gt;
- *      &lt;xsl:apply-templates select="contacts/*"/&gt;
- *      &lt;concurrent:waitForThreads/&gt;
+ *  &lt;div id="allcontacts"&gt;
+ *      &lt;concurrent:scope&gt;
+ *          &lt;xsl:apply-templates select="contacts/*"/&gt;
+ *      &lt;/concurrent:scope&gt;
  *  &lt;/div&gt;
  * &lt;/template&gt;
  *
@@ -93,17 +120,28 @@ import net.adamjenkins.sxe.util.XSLTUtil;
  */
 public class Concurrency extends AbstractExtensionElement{
 
-    private final HashSet<Thread> runningThreads = new HashSet<Thread>();
+    private final BranchScope allBranches = new BranchScope(false);
 
-    private final HashMap<ElemExtensionCall,EmbeddedStylesheetDefinition> stylesheetCache = new HashMap<ElemExtensionCall, EmbeddedStylesheetDefinition>();
+    //the concurrent:scope elements currently open, innermost first
+    private final ConcurrentHashMap<TransformerImpl, Deque<BranchScope>> openScopes = new ConcurrentHashMap<TransformerImpl, Deque<BranchScope>>();
+
+    private final ConcurrentHashMap<ElemExtensionCall,EmbeddedStylesheetDefinition> stylesheetCache = new ConcurrentHashMap<ElemExtensionCall, EmbeddedStylesheetDefinition>();
 
     private final ReentrantLock synchronizationLock = new ReentrantLock();
 
+    private final StripedLock keyedLocks = new StripedLock();
+
     /**
      * Allows part of the XSLT document processing that is being performed on another thread to be done
      * in a thread safe manner.  It is similar to the java <i>synchronized</i> keyword, but allows for reentrant
      * behaviour.  While reentrant synchronization is supported, it should not be considered best practice.
      * <br/><br/>
+     * Without a key, every synchronize element in the transformation shares a single lock.  If you give a key (for
+     * example the id of the customer or the name of the service being called) only synchronize elements with the same
+     * key wait for each other.  Keys are mapped onto a fixed set of locks, so two different keys will occasionally share
+     * a lock, which means you shouldn't nest synchronize elements with different keys (two threads nesting them in the
+     * opposite order could wait on each other forever).
+     * <br/><br/>
      * Usage Example
      * <br/><br/>
      * <code>
@@ -112,7 +150,7 @@ public class Concurrency extends AbstractExtensionElement{
      *      &lt;concurrent:parallel&gt;
      *          &lt;div&gt;
      *              &lt;xsl:value-of select="@name"/&gt;
-     *              &lt;concurrent:synchronize&gt;
+     *              &lt;concurrent:synchronize key="@name"&gt;
      *                  &lt;bean:invoke target="$phoneBookEJB" method="lookupPhoneNumberByName"&gt;
      *                      &lt;bean:parameter select="@name"/&gt;
      *                  &lt;/bean:invoke&gt;
@@ -122,22 +160,29 @@ public class Concurrency extends AbstractExtensionElement{
      * &lt;/template&gt;
      * </pre>
      * </code>
+     * <table border="1">
+     *  <tr><th align="left">Attribute Name</th><th align="left">Type</th><th align="left">Description</th><th align="left">Mandatory?</th></tr>
+     *  <tr><td>key</td><td>XPath</td><td>The resource being protected, evaluated as a string.</td><td>No (defaults to a single lock for the whole transformation)</td></tr>
+     * </table>
      *
      * @param context
      * @param extensionElement
      * @throws TransformerException
      */
+    @XPathAttributes("key")
     public void synchronize(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
-        synchronizationLock.lock();
+        ReentrantLock lock = hasAttribute(extensionElement, "key") ? keyedLocks.getLock(getXPath("key", context, extensionElement)) : synchronizationLock;
+        lock.lock();
         try{
             context.getTransformer().executeChildTemplates(extensionElement, true);
         }finally{
-            synchronizationLock.unlock();
+            lock.unlock();
         }
     }
 
     /**
-     * Waits for all currently executing threads to finish.
+     * Waits for all currently executing threads to finish.  Use <code>&lt;concurrent:scope/&gt;</code> if you only want
+     * to wait for some of them.
      * <br/><br/>
      * Usage Example:
      * <br/><br/>
@@ -146,11 +191,74 @@ public class Concurrency extends AbstractExtensionElement{
      * @param context
      * @param extensionElement
      */
-    public synchronized void waitForThreads(XSLProcessorContext context, ElemExtensionCall extensionElement){
-        while(runningThreads.size() > 0){
-            try{
-                Thread.sleep(10l);
-            }catch(InterruptedException ignore){}
+    public void waitForThreads(XSLProcessorContext context, ElemExtensionCall extensionElement){
+        try{
+            allBranches.await(0);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            logError(this.getClass(), extensionElement, "Interrupted while waiting for parallel threads", context);
+        }
+    }
+
+    /**
+     * Processes its children, then waits for every parallel element started inside it to finish.  Parallel elements
+     * started in other parts of the document aren't waited on.
+     * <br/><br/>
+     * If one of the parallel elements in the scope fails, the rest are cancelled (ones that haven't started yet won't
+     * run, running ones are interrupted) and the failure is reported as an error of the scope element, so an
+     * <code>&lt;xsl:fallback/&gt;</code> inside the scope will be run.  The same happens if the timeout is reached.
+     * The output of cancelled parallel elements is discarded.
+     * <br/><br/>
+     * Usage Example:
+     * <br/><br/>
+     * <code>
+     * <pre>
+     * &lt;concurrent:scope timeout="5000"&gt;
+     *      &lt;xsl:for-each select="contact"&gt;
+     *          &lt;concurrent:parallel&gt;
+     *              &lt;xsl:value-of select="@name"/&gt;
+     *          &lt;/concurrent:parallel&gt;
+     *      &lt;/xsl:for-each&gt;
+     * &lt;/concurrent:scope&gt;
+     * </pre>
+     * </code>
+     * <table border="1">
+     *  <tr><th align="left">Attribute Name</th><th align="left">Type</th><th align="left">Description</th><th align="left">Mandatory?</th></tr>
+     *  <tr><td>timeout</td><td>XPath</td><td>The maximum time to wait (in milliseconds) for the parallel elements to finish.</td><td>No (defaults to waiting as long as it takes)</td></tr>
+     * </table>
+     * @param context
+     * @param extensionElement
+     * @throws TransformerException
+     */
+    @XPathAttributes("timeout")
+    public void scope(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
+        long timeout = getIntegerXPath("timeout", context, extensionElement, 0);
+        BranchScope scope = new BranchScope(true);
+        TransformerImpl transformer = context.getTransformer();
+        Deque<BranchScope> scopes = openScopes.computeIfAbsent(transformer, t -> new ArrayDeque<BranchScope>());
+        scopes.push(scope);
+        try{
+            transformer.executeChildTemplates(extensionElement, true);
+        }catch(TransformerException | RuntimeException e){
+            scope.cancel();
+            throw e;
+        }finally{
+            scopes.pop();
+            if(scopes.isEmpty()) openScopes.remove(transformer);
+        }
+        try{
+            if(!scope.await(timeout)){
+                scope.cancel();
+                throw new TransformerException("Parallel elements did not finish within " + timeout + "ms", extensionElement);
+            }
+        }catch(InterruptedException e){
+            scope.cancel();
+            Thread.currentThread().interrupt();
+            throw new TransformerException("Interrupted while waiting for parallel elements", extensionElement, e);
+        }
+        Throwable failure = scope.getFailure();
+        if(failure != null){
+            throw new TransformerException("Parallel element failed: " + failure.getMessage(), extensionElement, failure);
         }
     }
 
@@ -171,6 +279,7 @@ public class Concurrency extends AbstractExtensionElement{
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("milliseconds")
     public void wait(XSLProcessorContext context, ElemExtensionCall extensionElement){
         try{
             long time = Long.parseLong(getXPath("milliseconds", context, extensionElement));
@@ -185,10 +294,12 @@ public class Concurrency extends AbstractExtensionElement{
      * this at your own peril...it is a very advanced XSLT element and you can really screw your output documents up if you're
      * not managing your parallel threads effectively.
      * <br/><br/>
-     * <b>Note:</b> When the first parallel element runs, a brand new XSLT stylesheet is created in memory from both the contents of
-     * the <code>&lt:concurrent:parallel/&gt; element and any templates that are referenced by it (recursively) which is a somewhat expensive
-     * operation.  So you need to make up your own mind whether you will get performance gains from parallelling your processing...it's really a
-     * very use case dependant gain.
+     * <b>Note:</b> The body of the parallel element is run by a transformer of its own, created from the already compiled
+     * stylesheet, so any templates it calls work as normal.  The first time a parallel element runs, the local variables and
+     * parameters that are in scope are worked out, after that each branch only has to copy their values (result tree fragments
+     * are copied in full, so keep them small).  Global variables that haven't been used before the branch starts are evaluated
+     * by the branch itself.  You need to make up your own mind whether you will get performance gains from parallelling your
+     * processing...it's really a very use case dependant gain.
      * <br/><br/>
      * Usage Example:
      * <br/><br/>
@@ -207,72 +318,357 @@ public class Concurrency extends AbstractExtensionElement{
      * </code>
      * <table border="1">
      *  <tr><th align="left">Attribute Name</th><th align="left">Type</th><th align="left">Description</th><th align="left">Mandatory?</th></tr>
-     *  <tr><td>pool</td><td>XPath</td><td>A previously created thread pool to use.</td><td>No</td></tr>
+     *  <tr><td>pool</td><td>XPath</td><td>A previously created thread pool to use, or the name of a shared thread pool (a string, e.g. <code>pool="'reports'"</code>).</td><td>No</td></tr>
      * </table>
      * @param context
      * @param extensionElement
      */
-    public synchronized void parallel(XSLProcessorContext context, ElemExtensionCall extensionElement) throws ParserConfigurationException {
-        //TODO: finish this extension BIG JOB!
-        EmbeddedStylesheetDefinition styleSheet;
-        SerializationHandler handler = context.getTransformer().getSerializationHandler();
-        if(!(handler instanceof SXEMultithreadedSerializationHandler)){
-            //we're still using an old handler here, better do something with it
-            handler = new SXEMultithreadedSerializationHandler(handler);
-            context.getTransformer().setSerializationHandler(handler);
+    @XPathAttributes("pool")
+    public void parallel(XSLProcessorContext context, ElemExtensionCall extensionElement) throws ParserConfigurationException, TransformerException {
+        SXEMultithreadedSerializationHandler multithreadedHandler = getMultithreadedHandler(context);
+        EmbeddedStylesheetDefinition styleSheet = getStylesheetDefinition(context, extensionElement);
+        List<BranchScope> scopes = getScopes(context);
+        ResultSlot slot = multithreadedHandler.reserveSlot();
+        ThreadedXalanProcessor processor;
+        try{
+            processor = new ThreadedXalanProcessor(
+                    context,
+                    extensionElement,
+                    scopes,
+                    styleSheet,
+                    slot);
+        }catch(TransformerException | ParserConfigurationException | RuntimeException e){
+            slot.cancel();
+            throw e;
         }
-        //we have to swap out the serialization handler here
-        //TODO: change this to use read/write lock to speed things up
-        synchronized(stylesheetCache){
-            if(!stylesheetCache.containsKey(extensionElement)){
-                stylesheetCache.put(extensionElement, XSLTUtil.createNewStylesheetFromChildren(context, extensionElement));
-            }
-            styleSheet = stylesheetCache.get(extensionElement);
+        dispatch(context, extensionElement, processor, "sxe-parallel");
+    }
+
+    /**
+     * Starts processing the child elements on another thread, the same way <code>&lt;concurrent:parallel/&gt;</code>
+     * does, but rather than writing the output into the document the output is kept as a handle which is assigned to
+     * the enclosing variable.  The handle can then be passed to <code>&lt;concurrent:await/&gt;</code> (as many times
+     * as you like) to wait for the block to finish and write out the output, so a slow call can be started early and
+     * its result used further down the template.
+     * <br/><br/>
+     * The element must be the only child of an <code>&lt;xsl:variable/&gt;</code>.  Like the other branches, the block
+     * is included in <code>&lt;concurrent:waitForThreads/&gt;</code> and in any <code>&lt;concurrent:scope/&gt;</code>
+     * it is started inside.  If the block fails, <code>&lt;concurrent:await/&gt;</code> reports an error instead of
+     * writing anything.
+     * <br/><br/>
+     * Usage Example:
+     * <br/><br/>
+     * <code>
+     * <pre>
+     * &lt;xsl:variable name="prices"&gt;
+     *      &lt;concurrent:async pool="'ioPool'"&gt;
+     *          &lt;xsl:apply-templates select="products/product" mode="lookupPrice"/&gt;
+     *      &lt;/concurrent:async&gt;
+     * &lt;/xsl:variable&gt;
+     * &lt;xsl:apply-templates select="customers/customer"/&gt;
+     * &lt;prices&gt;
+     *      &lt;concurrent:await select="$prices" timeout="30000"/&gt;
+     * &lt;/prices&gt;
+     * </pre>
+     * </code>
+     * <table border="1">
+     *  <tr><th align="left">Attribute Name</th><th align="left">Type</th><th align="left">Description</th><th align="left">Mandatory?</th></tr>
+     *  <tr><td>pool</td><td>XPath</td><td>A previously created thread pool to use, or the name of a shared thread pool (a string, e.g. <code>pool="'reports'"</code>).</td><td>No</td></tr>
+     * </table>
+     * @param context
+     * @param extensionElement
+     */
+    @XPathAttributes("pool")
+    public void async(XSLProcessorContext context, ElemExtensionCall extensionElement) throws ParserConfigurationException, TransformerException {
+        if(!(extensionElement.getParentElem() instanceof ElemVariable)){
+            logError(this.getClass(), extensionElement, "<concurrent:async/> must be inside an <xsl:variable/>", context);
+            return;
         }
+        EmbeddedStylesheetDefinition styleSheet = getStylesheetDefinition(context, extensionElement);
+        AsyncResult result = new AsyncResult();
         ThreadedXalanProcessor processor = new ThreadedXalanProcessor(
                 context,
                 extensionElement,
-                runningThreads,
-                styleSheet);
+                getScopes(context),
+                styleSheet,
+                result);
+        try{
+            setVariableIfPossible(context.getTransformer(), result, extensionElement);
+        }catch(TransformerException | RuntimeException e){
+            processor.abandon();
+            throw e;
+        }
+        dispatch(context, extensionElement, processor, "sxe-async");
+    }
+
+    /**
+     * Waits for a <code>&lt;concurrent:async/&gt;</code> block to finish and writes its output at this point in the
+     * document (or into the enclosing variable).  An error is reported if the block failed, or if it doesn't finish
+     * within the timeout.
+     * <br/><br/>
+     * Usage Example:
+     * <br/><br/>
+     * <code>&lt;concurrent:await select="$prices" timeout="30000"/&gt;</code>
+     * <br/><br/>
+     * <table border="1">
+     *  <tr><th align="left">Attribute Name</th><th align="left">Type</th><th align="left">Description</th><th align="left">Mandatory?</th></tr>
+     *  <tr><td>select</td><td>XPath</td><td>The variable assigned by <code>&lt;concurrent:async/&gt;</code>.</td><td>Yes</td></tr>
+     *  <tr><td>timeout</td><td>XPath</td><td>The maximum time to wait (in milliseconds).</td><td>No (defaults to waiting for as long as it takes)</td></tr>
+     * </table>
+     * @param context
+     * @param extensionElement
+     * @throws TransformerException
+     */
+    @XPathAttributes({"select", "timeout"})
+    public void await(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
+        if(!passesAttributeValidation(extensionElement, context, "select")) return;
+        Object value = getXObject("select", context, extensionElement).object();
+        if(!(value instanceof AsyncResult)){
+            logError(this.getClass(), extensionElement, "Attribute 'select' must reference a variable assigned by <concurrent:async/>", context);
+            return;
+        }
+        AsyncResult result = (AsyncResult)value;
+        long timeout = getIntegerXPath("timeout", context, extensionElement, 0);
+        try{
+            if(!result.await(timeout)){
+                logError(this.getClass(), extensionElement, "Asynchronous block did not finish within " + timeout + "ms", context);
+                return;
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            logError(this.getClass(), extensionElement, "Interrupted while waiting for asynchronous block", context);
+            return;
+        }
+        if(result.isCancelled()){
+            logError(this.getClass(), extensionElement, "Asynchronous block failed or was cancelled", context);
+            return;
+        }
+        try{
+            result.writeTo(context.getTransformer().getSerializationHandler());
+        }catch(SAXException e){
+            throw new TransformerException(e);
+        }
+    }
+
+    private void dispatch(XSLProcessorContext context, ElemExtensionCall extensionElement, ThreadedXalanProcessor processor, String threadName){
+        //branches log into the root transformation, so make sure it completes even if nobody calls complete
+        TransformationContext.completeAtEndOfDocument(context.getTransformer());
         if(hasAttribute(extensionElement, "pool")){
             try{
-                ThreadPoolExecutor executor = (ThreadPoolExecutor)getXObject("pool", context, extensionElement).object();
+                Executor executor = getExecutor(context, extensionElement);
                 executor.execute(processor);
+            }catch(RejectedExecutionException e){
+                //nothing will ever write to the result, release it so the rest of the document isn't held up
+                processor.abandon();
+                logError(this.getClass(), extensionElement, "Branch rejected by thread pool: " + e.getMessage(), context);
             }catch(Exception e){
-                throw new RuntimeException("Could not get reference to thread pool");
+                processor.abandon();
+                throw new RuntimeException("Could not get reference to thread pool", e);
             }
         }else{
-            processor.start();
+            new Thread(processor, threadName).start();
+        }
+    }
+
+    /**
+     * Processes its children once for each node in a node set, like <code>&lt;xsl:for-each/&gt;</code>, but spread across
+     * all the available processors.  The nodes are split into chunks which are run on a fork/join pool, so threads that
+     * finish their chunks early take over work from busy ones, and only as many threads as there are processors are used
+     * no matter how many nodes there are.  The output of each chunk is written in node order, just as if the nodes had
+     * been processed one after another.  <code>position()</code> and <code>last()</code> work the same way as they do
+     * inside <code>&lt;xsl:for-each/&gt;</code>, sorting isn't supported.
+     * <br/><br/>
+     * Like <code>&lt;concurrent:parallel/&gt;</code>, the element doesn't wait for the chunks to finish, put it inside a
+     * <code>&lt;concurrent:scope/&gt;</code> if you need to.  Fork/join pools work best when the body doesn't block, if
+     * the body spends most of its time waiting on I/O use <code>&lt;concurrent:parallel/&gt;</code> with a thread pool.
+     * <br/><br/>
+     * Usage Example:
+     * <br/><br/>
+     * <code>
+     * <pre>
+     * &lt;concurrent:forEach select="contacts/contact" chunkSize="500"&gt;
+     *      &lt;div&gt;
+     *          &lt;xsl:value-of select="@name"/&gt;
+     *      &lt;/div&gt;
+     * &lt;/concurrent:forEach&gt;
+     * </pre>
+     * </code>
+     * <table border="1">
+     *  <tr><th align="left">Attribute Name</th><th align="left">Type</th><th align="left">Description</th><th align="left">Mandatory?</th></tr>
+     *  <tr><td>select</td><td>XPath</td><td>The nodes to process.</td><td>Yes</td></tr>
+     *  <tr><td>chunkSize</td><td>XPath</td><td>The number of nodes processed by each task.</td><td>No (defaults to splitting the nodes into four chunks per processor)</td></tr>
+     *  <tr><td>pool</td><td>XPath</td><td>A fork/join pool to use.</td><td>No (defaults to the common fork/join pool)</td></tr>
+     * </table>
+     * @param context
+     * @param extensionElement
+     * @throws TransformerException
+     * @throws ParserConfigurationException
+     */
+    @XPathAttributes({"select", "chunkSize", "pool"})
+    public void forEach(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException, ParserConfigurationException{
+        if(!passesAttributeValidation(extensionElement, context, "select")) return;
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        if(hasAttribute(extensionElement, "pool")){
+            Object value = getXObject("pool", context, extensionElement).object();
+            if(!(value instanceof ForkJoinPool)){
+                logError(this.getClass(), extensionElement, "Attribute 'pool' must reference a fork/join pool", context);
+                return;
+            }
+            pool = (ForkJoinPool)value;
+        }
+        NodeSetDTM nodes = new NodeSetDTM(getXObject("select", context, extensionElement).iter());
+        int[] selection = new int[nodes.getLength()];
+        for(int i = 0; i < selection.length; i++){
+            selection[i] = nodes.item(i);
+        }
+        if(selection.length == 0) return;
+        int defaultChunkSize = Math.max(1, selection.length / (pool.getParallelism() * 4));
+        int chunkSize = Math.max(1, getIntegerXPath("chunkSize", context, extensionElement, defaultChunkSize));
+        SXEMultithreadedSerializationHandler multithreadedHandler = getMultithreadedHandler(context);
+        EmbeddedStylesheetDefinition styleSheet = getStylesheetDefinition(context, extensionElement);
+        List<BranchScope> scopes = getScopes(context);
+        ThreadedXalanProcessor[] chunks = new ThreadedXalanProcessor[(selection.length + chunkSize - 1) / chunkSize];
+        //the variables and the node list are captured once, and shared by every chunk
+        BranchEnvironment environment = new BranchEnvironment(context, extensionElement, styleSheet, selection, chunks.length);
+        for(int i = 0; i < chunks.length; i++){
+            int from = i * chunkSize;
+            chunks[i] = new ThreadedXalanProcessor(environment, scopes, multithreadedHandler.reserveSlot(),
+                    from, Math.min(from + chunkSize, selection.length));
         }
+        pool.execute(new ChunkedForEachTask(chunks));
     }
 
     /**
      * Creates a thread pool for use with parallel processing.
      * <br/><br/>
+     * By default the pool queues up as many parallel elements as it is given.  Setting a queue capacity bounds the memory
+     * used by waiting parallel elements, once the queue is full the pool grows up to its maximum size, after that the
+     * rejection policy decides what happens to new parallel elements:
+     * <ul>
+     *  <li><b>caller-runs</b> - the thread that reached the parallel element processes it itself, slowing the stylesheet down to
+     *  the speed of the pool (the default).</li>
+     *  <li><b>block</b> - the thread that reached the parallel element waits for room in the queue (unless it is one of the
+     *  pool's own threads, which processes the parallel element itself rather than risk waiting forever).</li>
+     *  <li><b>abort</b> - the parallel element isn't processed and an error is reported.</li>
+     *  <li><b>discard-oldest</b> - the longest waiting parallel element is dropped and its output is left out of the document.</li>
+     * </ul>
+     * Giving the pool a name makes it a shared pool, held in the {@link ThreadPoolRegistry} and used by every transformation
+     * in the JVM, rather than one that is created (and thrown away) each time the stylesheet runs.  Parallel elements can then
+     * refer to it by name.  Idle threads in a shared pool are stopped once the timeout has passed, even below the minimum size.
+     * <br/><br/>
+     * A <i>virtual</i> pool starts a new virtual thread for every parallel element instead of keeping a fixed set of
+     * threads, which lets you have thousands of parallel elements waiting on I/O (web service calls, JMS, database
+     * queries etc) at the same time.  It needs Java 21 or later, the size and timeout attributes are ignored.  Virtual
+     * threads are still tied to their carrier thread while they wait inside <code>&lt;concurrent:synchronize/&gt;</code>,
+     * so keep slow calls out of synchronized blocks.
+     * <br/><br/>
      * Usage Example:
      * <br/><br/>
      * <code><pre>
      * &lt;xsl:variable name="pool"&gt;
      *  &lt;concurrent:threadPool minSize="1" maxSize="10"/&gt;
      * &lt;/xsl:variable&gt;
+     * &lt;xsl:variable name="boundedPool"&gt;
+     *  &lt;concurrent:threadPool minSize="4" maxSize="8" queueCapacity="100" rejection="caller-runs" prestart="true()"/&gt;
+     * &lt;/xsl:variable&gt;
+     * &lt;xsl:variable name="ioPool"&gt;
+     *  &lt;concurrent:threadPool type="virtual"/&gt;
+     * &lt;/xsl:variable&gt;
+     * &lt;concurrent:threadPool name="reports" minSize="2" maxSize="16"/&gt;
      * </pre></code>
      * <table border="1">
      *  <tr><th align="left">Attribute Name</th><th align="left">Type</th><th align="left">Description</th><th align="left">Mandatory?</th></tr>
+     *  <tr><td>name</td><td>Template</td><td>The name of a shared pool to create (or use, if it already exists).</td><td>No</td></tr>
+     *  <tr><td>type</td><td>Template</td><td>The kind of threads to use, either platform or virtual (case sensitive).</td><td>No (defaults to platform)</td></tr>
      *  <tr><td>minSize</td><td>XPath</td><td>The minimum available threads to create.</td><td>No (defaults to 1)</td></tr>
      *  <tr><td>maxize</td><td>XPath</td><td>The maximum available threads to create.</td><td>No (defaults to 5)</td></tr>
      *  <tr><td>timeout</td><td>XPath</td><td>The timeout for idle threads (in seconds).</td><td>No (defaults to 60)</td></tr>
+     *  <tr><td>queueCapacity</td><td>XPath</td><td>The maximum number of parallel elements waiting for a thread.</td><td>No (defaults to unbounded)</td></tr>
+     *  <tr><td>rejection</td><td>Template</td><td>What to do with new parallel elements when the queue is full, either caller-runs, block, abort or discard-oldest (case sensitive).</td><td>No (defaults to caller-runs)</td></tr>
+     *  <tr><td>prestart</td><td>XPath</td><td>Whether to start the minimum number of threads straight away rather than when the first parallel elements arrive.</td><td>No (defaults to false)</td></tr>
      * </table>
      * @param context
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes({"minSize", "maxSize", "timeout", "queueCapacity", "prestart"})
     public void threadPool(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
-        int min = getIntegerXPath("minSize", context, extensionElement, 1);
-        int max = getIntegerXPath("maxSize", context, extensionElement, 5);
+        if(hasAttribute(extensionElement, "name")){
+            String name = getAttribute("name", context, extensionElement);
+            NamedThreadPool pool = ThreadPoolRegistry.getOrCreate(name, factory -> createExecutor(context, extensionElement, factory, true));
+            //null if the settings were wrong, which has already been reported
+            if(pool == null) return;
+            setVariableIfPossible(context.getTransformer(), pool, extensionElement);
+        }else{
+            ExecutorService executor = createExecutor(context, extensionElement, Executors.defaultThreadFactory(), false);
+            if(executor != null) setVariableIfPossible(context.getTransformer(), executor, extensionElement);
+        }
+    }
+
+    /**
+     * Shuts down a shared thread pool created with <code>&lt;concurrent:threadPool name="..."/&gt;</code>, waiting
+     * for the parallel elements it is processing to finish.  Most applications will shut their shared pools down
+     * from java with {@link ThreadPoolRegistry#shutdownAll(long)} instead.
+     * <br/><br/>
+     * Usage Example:
+     * <br/><br/>
+     * <code>&lt;concurrent:shutdownPool name="reports" timeout="30"/&gt;</code>
+     * <br/><br/>
+     * <table border="1">
+     *  <tr><th align="left">Attribute Name</th><th align="left">Type</th><th align="left">Description</th><th align="left">Mandatory?</th></tr>
+     *  <tr><td>name</td><td>Template</td><td>The name of the shared pool.</td><td>Yes</td></tr>
+     *  <tr><td>timeout</td><td>XPath</td><td>How long to wait (in seconds) for outstanding work before interrupting it.</td><td>No (defaults to 60)</td></tr>
+     * </table>
+     * @param context
+     * @param extensionElement
+     * @throws TransformerException
+     */
+    @XPathAttributes("timeout")
+    public void shutdownPool(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
+        if(!passesAttributeValidation(extensionElement, context, "name")) return;
+        String name = getAttribute("name", context, extensionElement);
         int timeout = getIntegerXPath("timeout", context, extensionElement, 60);
-        setVariableIfPossible(context.getTransformer(), new ThreadPoolExecutor(min, max,timeout, TimeUnit.SECONDS,new LinkedBlockingQueue<Runnable>()),
-                                extensionElement);
+        try{
+            if(!ThreadPoolRegistry.shutdown(name, TimeUnit.SECONDS.toMillis(timeout))){
+                logError(this.getClass(), extensionElement, "Thread pool '" + name + "' did not finish within " + timeout + " seconds", context);
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            logError(this.getClass(), extensionElement, "Interrupted while shutting down thread pool '" + name + "'", context);
+        }
+    }
 
+    private ExecutorService createExecutor(XSLProcessorContext context, ElemExtensionCall extensionElement, ThreadFactory threadFactory, boolean shared){
+        String type = hasAttribute(extensionElement, "type") ? getAttribute("type", context, extensionElement) : "platform";
+        if("virtual".equals(type)){
+            if(!VirtualThreadSupport.isAvailable()){
+                logError(this.getClass(), extensionElement, "Virtual thread pools need Java 21 or later", context);
+                return null;
+            }
+            return VirtualThreadSupport.newExecutor();
+        }else if("platform".equals(type)){
+            int min = getIntegerXPath("minSize", context, extensionElement, 1);
+            int max = getIntegerXPath("maxSize", context, extensionElement, 5);
+            int timeout = getIntegerXPath("timeout", context, extensionElement, 60);
+            int capacity = getIntegerXPath("queueCapacity", context, extensionElement, 0);
+            String rejection = hasAttribute(extensionElement, "rejection") ? getAttribute("rejection", context, extensionElement) : RejectionPolicy.CALLER_RUNS.getAttributeValue();
+            RejectionPolicy policy = RejectionPolicy.forAttributeValue(rejection);
+            if(policy == null){
+                logError(this.getClass(), extensionElement, "Unknown rejection policy '" + rejection + "', must be caller-runs, block, abort or discard-oldest", context);
+                return null;
+            }
+            BlockingQueue<Runnable> queue = capacity > 0 ? new ArrayBlockingQueue<Runnable>(capacity) : new LinkedBlockingQueue<Runnable>();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(min, max,timeout, TimeUnit.SECONDS, queue, policy.createThreadFactory(threadFactory), policy.createHandler());
+            //shared pools live as long as the JVM, so let them shrink right down when they aren't being used
+            if(shared && timeout > 0) executor.allowCoreThreadTimeOut(true);
+            if(hasAttribute(extensionElement, "prestart") && getXObject("prestart", context, extensionElement).bool()){
+                executor.prestartAllCoreThreads();
+            }
+            return executor;
+        }else{
+            logError(this.getClass(), extensionElement, "Unknown thread pool type '" + type + "', must be platform or virtual", context);
+            return null;
+        }
     }
 
     /**
@@ -308,6 +704,7 @@ public class Concurrency extends AbstractExtensionElement{
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes("lock")
     public void lockForReading(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{ 
         ReentrantReadWriteLock lock = getLock(context, extensionElement);
         if(lock != null) lock.readLock().lock();
@@ -323,6 +720,7 @@ public class Concurrency extends AbstractExtensionElement{
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes("lock")
     public void lockForWriting(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         ReentrantReadWriteLock lock = getLock(context, extensionElement);
         if(lock != null) lock.writeLock().lock();
@@ -338,6 +736,7 @@ public class Concurrency extends AbstractExtensionElement{
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes("lock")
     public void unLockForReading(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         ReentrantReadWriteLock lock = getLock(context, extensionElement);
         if(lock != null) lock.readLock().unlock();
@@ -353,11 +752,51 @@ public class Concurrency extends AbstractExtensionElement{
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes("lock")
     public void unLockForWriting(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         ReentrantReadWriteLock lock = getLock(context, extensionElement);
         if(lock != null) lock.writeLock().unlock();
     }
 
+    private SXEMultithreadedSerializationHandler getMultithreadedHandler(XSLProcessorContext context){
+        //has to go beneath the multithreaded handler, so the branches are merged before the transformation completes
+        TransformationContext.completeAtEndOfDocument(context.getTransformer());
+        //we have to swap out the serialization handler here so the branches can be merged back in document order
+        SerializationHandler handler = context.getTransformer().getSerializationHandler();
+        if(handler instanceof SXEMultithreadedSerializationHandler){
+            return (SXEMultithreadedSerializationHandler)handler;
+        }else{
+            //we're still using an old handler here, better do something with it
+            SXEMultithreadedSerializationHandler multithreadedHandler = new SXEMultithreadedSerializationHandler(handler);
+            context.getTransformer().setSerializationHandler(multithreadedHandler);
+            return multithreadedHandler;
+        }
+    }
+
+    private EmbeddedStylesheetDefinition getStylesheetDefinition(XSLProcessorContext context, ElemExtensionCall extensionElement){
+        EmbeddedStylesheetDefinition definition = stylesheetCache.get(extensionElement);
+        if(definition != null) return definition;
+        return stylesheetCache.computeIfAbsent(extensionElement, e -> XSLTUtil.createNewStylesheetFromChildren(context, e));
+    }
+
+    private List<BranchScope> getScopes(XSLProcessorContext context){
+        List<BranchScope> scopes = new ArrayList<BranchScope>(2);
+        scopes.add(allBranches);
+        Deque<BranchScope> open = openScopes.get(context.getTransformer());
+        if(open != null && !open.isEmpty()) scopes.add(open.peek());
+        return scopes;
+    }
+
+    private Executor getExecutor(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
+        XObject pool = getXObject("pool", context, extensionElement);
+        if(pool.object() instanceof Executor) return (Executor)pool.object();
+        //not a reference to a pool, so it must be the name of a shared one
+        String name = pool.str();
+        NamedThreadPool shared = ThreadPoolRegistry.get(name);
+        if(shared == null) throw new IllegalArgumentException("No thread pool named '" + name + "'");
+        return shared;
+    }
+
     private ReentrantReadWriteLock getLock(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "lock")) return null;
         XObject obj = getXObject("lock", context, extensionElement);
@@ -75,6 +75,7 @@ public class EJB extends AbstractExtensionElement{
      * @throws IOException
      * @throws NamingException
      */
+    @XPathAttributes("context")
     public void lookup(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException, MalformedURLException, FileNotFoundException, IOException, NamingException{
         if(!passesAttributeValidation(extensionElement, context, "ref")) return;
         String s = getAttribute("ref", context, extensionElement);
@@ -83,6 +83,7 @@ public class HTTP {
     
     private static final Logger log = LoggerFactory.getLogger(HTTP.class);
     
+    @XPathAttributes("select")
     public void input(XSLProcessorContext context, final ElemExtensionCall extensionElement){
         try{
             context.outputToResultTree(context.getStylesheet(), extensionElement);
@@ -91,6 +92,7 @@ public class HTTP {
         }            
     }    
     
+    @XPathAttributes({"form", "client", "input", "base"})
     public void formSubmit(XSLProcessorContext context, final ElemExtensionCall extensionElement){
         try{
             log.debug("performing form submit from xslt");
@@ -235,6 +235,7 @@ public class Hibernate extends AbstractExtensionElement {
      * @throws TransformerException 
      * @throws HibernateException 
      */
+    @XPathAttributes("sessionFactory")
     public void openSession(XSLProcessorContext context, ElemExtensionCall extensionElement) throws HibernateException, TransformerException{
         //setVariableIfPossible(getSession(context, extensionElement, true), extensionElement);
         if(!setVariableIfPossible(context.getTransformer(), getSessionFactory(context, extensionElement).openSession(), extensionElement)){
@@ -267,6 +268,7 @@ public class Hibernate extends AbstractExtensionElement {
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes("session")
     public void closeSession(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         Session s = getSession(context, extensionElement, false);
         if(s == null){
@@ -303,6 +305,7 @@ public class Hibernate extends AbstractExtensionElement {
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes("session")
     public void beginTransaction(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         Session session = getSession(context, extensionElement, false);
         if(session == null) {
@@ -335,6 +338,7 @@ public class Hibernate extends AbstractExtensionElement {
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes("transaction")
     public void commit(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         Transaction t = getTransaction(context, extensionElement);
         if(t != null){
@@ -365,6 +369,7 @@ public class Hibernate extends AbstractExtensionElement {
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes("transaction")
     public void rollback(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         Transaction t = getTransaction(context, extensionElement);
         if(t != null){
@@ -401,6 +406,7 @@ public class Hibernate extends AbstractExtensionElement {
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes({"session", "sessionFactory"})
     public void query(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException, IOException{
         Session s = getSession(context, extensionElement, true);
         String query = extensionElement.getFirstChild().getNodeValue();
@@ -441,6 +447,7 @@ public class Hibernate extends AbstractExtensionElement {
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes({"entity", "session", "sessionFactory"})
     public void delete(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "entity")) return;
         Session session = getSession(context, extensionElement, true);
@@ -469,6 +476,7 @@ public class Hibernate extends AbstractExtensionElement {
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes({"session", "sessionFactory"})
     public void flush(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "session")) return;
         getSession(context, extensionElement, true).flush();
@@ -494,6 +502,7 @@ public class Hibernate extends AbstractExtensionElement {
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes({"id", "entityName", "className", "session", "sessionFactory"})
     public void load(XSLProcessorContext context, ElemExtensionCall extensionElement) throws ClassNotFoundException, TransformerException, IOException{
         if(!passesAttributeValidation(extensionElement, context, "id")) return;
         Session session = getSession(context, extensionElement, true);
@@ -545,6 +554,7 @@ public class Hibernate extends AbstractExtensionElement {
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes({"entity", "session", "sessionFactory"})
     public void save(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "entity")) return;
         Session session = getSession(context, extensionElement, true);
@@ -573,6 +583,7 @@ public class Hibernate extends AbstractExtensionElement {
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes({"entity", "session", "sessionFactory"})
     public void update(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "entity")) return;
         Session session = getSession(context, extensionElement, true);
@@ -609,6 +620,7 @@ public class Hibernate extends AbstractExtensionElement {
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes({"entity", "session", "sessionFactory"})
     public void saveOrUpdate(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "entity")) return;
         Session session = getSession(context, extensionElement, true);
@@ -42,6 +42,7 @@ import javax.naming.NamingException;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 import net.adamjenkins.sxe.util.EnumerationIterator;
+import net.adamjenkins.sxe.util.TransformationContext;
 import org.apache.xalan.extensions.XSLProcessorContext;
 import org.apache.xalan.templates.ElemExtensionCall;
 import org.w3c.dom.Attr;
@@ -71,7 +72,7 @@ public class JMS extends AbstractExtensionElement{
         "connectionFactory", "queue", "timeout", "topic",  "select", "selector"
     };
 
-    private Map<Thread,Message> messagesUnderConstruction = new HashMap<Thread,Message>();
+    private static final TransformationContext.Slot<Message> messagesUnderConstruction = TransformationContext.newSlot();
 
     /**
      * Reads a message from a queue.
@@ -102,6 +103,7 @@ public class JMS extends AbstractExtensionElement{
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes({"timeout", "context"})
     public void messageValue(XSLProcessorContext context, ElemExtensionCall extensionElement) throws NamingException, JMSException, TransformerException, MalformedURLException, FileNotFoundException, IOException{
         if(!passesAttributeValidation(extensionElement, context, "connectionFactory", "queue")) return;
         Context ctx;
@@ -197,6 +199,7 @@ public class JMS extends AbstractExtensionElement{
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes({"select", "context", "queue", "topic"})
     public void publish(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException, NamingException, JMSException, ParserConfigurationException, IOException{
         if(!passesAttributeValidation(extensionElement, context, "connectionFactory")) return;
         if(hasAttribute(extensionElement, "queue") || hasAttribute(extensionElement, "topic")){
@@ -227,9 +230,13 @@ public class JMS extends AbstractExtensionElement{
             }else{
                 if(elementContainsProperties(extensionElement)){
                     msg = sess.createMapMessage();
-                    messagesUnderConstruction.put(Thread.currentThread(), msg);
-                    context.getTransformer().executeChildTemplates(extensionElement, true);
-                    messagesUnderConstruction.remove(Thread.currentThread());
+                    TransformationContext state = TransformationContext.get(context);
+                    Message outer = state.set(messagesUnderConstruction, msg);
+                    try{
+                        context.getTransformer().executeChildTemplates(extensionElement, true);
+                    }finally{
+                        state.set(messagesUnderConstruction, outer);
+                    }
                 }else{
                     msg = sess.createTextMessage(processBody(context, extensionElement));
                 }
@@ -285,10 +292,15 @@ public class JMS extends AbstractExtensionElement{
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes("select")
     public void property(XSLProcessorContext context, ElemExtensionCall extensionElement) throws JMSException, TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "name", "select")) return;
         try{
-            MapMessage m = (MapMessage)messagesUnderConstruction.get(Thread.currentThread());
+            MapMessage m = (MapMessage)TransformationContext.get(context).get(messagesUnderConstruction);
+            if(m == null){
+                logError(this.getClass(), extensionElement, "<jms:property/> must be inside <jms:publish/>", context);
+                return;
+            }
             m.setObject(getAttribute("name", context, extensionElement), getXObject("select", context, extensionElement).object());
         }catch(ClassCastException e){
             logError(this.getClass(), 
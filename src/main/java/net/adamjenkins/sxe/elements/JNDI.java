@@ -19,13 +19,12 @@ package net.adamjenkins.sxe.elements;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.MalformedURLException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Properties;
 import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.xml.transform.TransformerException;
+import net.adamjenkins.sxe.util.TransformationContext;
 import org.apache.xalan.extensions.XSLProcessorContext;
 import org.apache.xalan.templates.ElemExtensionCall;
 
@@ -68,7 +67,7 @@ public class JNDI extends AbstractExtensionElement{
 
     private Context defaultContext;
 
-    private Map<Thread, Properties> propertyCapture = new HashMap<Thread, Properties>();
+    private static final TransformationContext.Slot<Properties> propertyCapture = TransformationContext.newSlot();
 
     /**
      * Configures a new context for use.  The context will be placed on the top of the variable stack, so you
@@ -98,9 +97,14 @@ public class JNDI extends AbstractExtensionElement{
      * @param extensionElement      This element
      */
     public void context(XSLProcessorContext context, ElemExtensionCall extensionElement) throws NamingException, TransformerException, MalformedURLException, FileNotFoundException, IOException{
-        propertyCapture.put(Thread.currentThread(), new Properties());
-        context.getTransformer().executeChildTemplates(extensionElement, true);
-        Properties configuration = propertyCapture.remove(Thread.currentThread());
+        TransformationContext state = TransformationContext.get(context);
+        Properties configuration = new Properties();
+        Properties outer = state.set(propertyCapture, configuration);
+        try{
+            context.getTransformer().executeChildTemplates(extensionElement, true);
+        }finally{
+            state.set(propertyCapture, outer);
+        }
         InitialContext ctx;
         if(configuration.size() > 0) ctx = new InitialContext(configuration);
         else ctx = new InitialContext();
@@ -121,6 +125,7 @@ public class JNDI extends AbstractExtensionElement{
      * </pre></code>
      * @throws TransformerException 
      */
+    @XPathAttributes("context")
     public void defaultContext(XSLProcessorContext context, ElemExtensionCall extensionElement) throws NamingException, TransformerException{
         setVariableIfPossible(context.getTransformer(), getInitialContext(context, extensionElement), extensionElement);
     }
@@ -144,7 +149,12 @@ public class JNDI extends AbstractExtensionElement{
      */
     public void property(XSLProcessorContext context, ElemExtensionCall extensionElement){
         if(!passesAttributeValidation(extensionElement, context, "name", "value")) return;
-        propertyCapture.get(Thread.currentThread()).setProperty(
+        Properties properties = TransformationContext.get(context).get(propertyCapture);
+        if(properties == null){
+            logError(this.getClass(), extensionElement, "Properties must be inside a <jndi:context/> element", context);
+            return;
+        }
+        properties.setProperty(
                 getAttribute("name", context, extensionElement),
                 getAttribute("value", context, extensionElement)
         );
@@ -177,6 +187,7 @@ public class JNDI extends AbstractExtensionElement{
      * @param context               The XSLT Processor context
      * @param extensionElement      This element
      */
+    @XPathAttributes("context")
     public void lookup(XSLProcessorContext context, ElemExtensionCall extensionElement) throws NamingException, TransformerException, MalformedURLException, FileNotFoundException, IOException{
         if(!passesAttributeValidation(extensionElement, context, "ref")) return;
         Context ctx = getInitialContext(context, extensionElement);
@@ -207,6 +218,7 @@ public class JNDI extends AbstractExtensionElement{
      * @param extensionElement      This element
      * @throws TransformerException 
      */
+    @XPathAttributes("context")
     public void subcontext(XSLProcessorContext context, ElemExtensionCall extensionElement) throws NamingException, TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "ref")) return;
         Context ctx = getInitialContext(context, extensionElement);
@@ -237,6 +249,7 @@ public class JNDI extends AbstractExtensionElement{
      * @param extensionElement      This element
      * @throws TransformerException 
      */
+    @XPathAttributes({"value", "context"})
     public void bind(XSLProcessorContext context, ElemExtensionCall extensionElement) throws NamingException, TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "ref", "value")) return;
         Context ctx = getInitialContext(context, extensionElement);
@@ -18,11 +18,8 @@ package net.adamjenkins.sxe.elements;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.lang.Thread;
 import java.net.MalformedURLException;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
@@ -30,6 +27,7 @@ import javax.persistence.EntityTransaction;
 import javax.persistence.Persistence;
 import javax.persistence.Query;
 import javax.xml.transform.TransformerException;
+import net.adamjenkins.sxe.util.TransformationContext;
 import org.apache.xalan.extensions.XSLProcessorContext;
 import org.apache.xalan.templates.ElemExtensionCall;
 import org.w3c.dom.Attr;
@@ -56,7 +54,7 @@ import org.w3c.dom.NamedNodeMap;
  */
 public class JPA extends AbstractExtensionElement{
 
-    private Map<Thread, Properties> emPropertyOverride = new HashMap<Thread, Properties>();
+    private static final TransformationContext.Slot<Properties> emPropertyOverride = TransformationContext.newSlot();
 
     private EntityManager globalEntityManager;
 
@@ -95,9 +93,14 @@ public class JPA extends AbstractExtensionElement{
     public void entityManager(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "persistenceUnit")) return;
         EntityManagerFactory factory = Persistence.createEntityManagerFactory(getAttribute("persistenceUnit", context, extensionElement));
-        emPropertyOverride.put(Thread.currentThread(), new Properties());
-        context.getTransformer().executeChildTemplates(extensionElement, true);
-        Properties props = emPropertyOverride.remove(Thread.currentThread());
+        TransformationContext state = TransformationContext.get(context);
+        Properties props = new Properties();
+        Properties outer = state.set(emPropertyOverride, props);
+        try{
+            context.getTransformer().executeChildTemplates(extensionElement, true);
+        }finally{
+            state.set(emPropertyOverride, outer);
+        }
         EntityManager manager;
         if(props.size() > 0) manager = factory.createEntityManager(props);
         else manager = factory.createEntityManager();
@@ -127,7 +130,12 @@ public class JPA extends AbstractExtensionElement{
       */
     public void property(XSLProcessorContext context, ElemExtensionCall extensionElement){
         if(!passesAttributeValidation(extensionElement, context, "name", "value")) return;
-        emPropertyOverride.get(Thread.currentThread()).setProperty(
+        Properties properties = TransformationContext.get(context).get(emPropertyOverride);
+        if(properties == null){
+            logError(this.getClass(), extensionElement, "Properties must be inside a <jpa:entityManager/> element", context);
+            return;
+        }
+        properties.setProperty(
               getAttribute("name", context, extensionElement),
               getAttribute("value", context, extensionElement)
         );
@@ -153,6 +161,7 @@ public class JPA extends AbstractExtensionElement{
       * @param extensionElement
      * @throws TransformerException 
       */
+    @XPathAttributes("manager")
     public void beginTransaction(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         EntityManager m = getEntityManager(context, extensionElement);
         if(m == null){
@@ -181,6 +190,7 @@ public class JPA extends AbstractExtensionElement{
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes("transaction")
     public void commit(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         EntityTransaction t = getEntityTransaction(context, extensionElement);
         if(t == null){
@@ -205,6 +215,7 @@ public class JPA extends AbstractExtensionElement{
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes("transaction")
     public void rollback(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         EntityTransaction t = getEntityTransaction(context, extensionElement);
         if(t == null){
@@ -229,6 +240,7 @@ public class JPA extends AbstractExtensionElement{
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes("manager")
     public void flush(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         EntityManager m = getEntityManager(context, extensionElement);
         if(m == null){
@@ -258,6 +270,7 @@ public class JPA extends AbstractExtensionElement{
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes({"id", "manager"})
     public void reference(XSLProcessorContext context, ElemExtensionCall extensionElement) throws ClassNotFoundException, TransformerException, MalformedURLException, FileNotFoundException, IOException{
         if(!passesAttributeValidation(extensionElement, context, "class", "id")) return;
         EntityManager m = getEntityManager(context, extensionElement);
@@ -294,6 +307,7 @@ public class JPA extends AbstractExtensionElement{
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes({"id", "manager"})
     public void find(XSLProcessorContext context, ElemExtensionCall extensionElement) throws ClassNotFoundException, IOException, TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "class", "id")) return;
         EntityManager m = getEntityManager(context, extensionElement);
@@ -326,6 +340,7 @@ public class JPA extends AbstractExtensionElement{
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes({"entity", "manager"})
     public void persist(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "entity")) return;
         EntityManager m = getEntityManager(context, extensionElement);
@@ -352,6 +367,7 @@ public class JPA extends AbstractExtensionElement{
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes({"entity", "manager"})
     public void refresh(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "entity")) return;
         EntityManager m = getEntityManager(context, extensionElement);
@@ -378,6 +394,7 @@ public class JPA extends AbstractExtensionElement{
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes({"entity", "manager"})
     public void remove(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "entity")) return;
         EntityManager m = getEntityManager(context, extensionElement);
@@ -411,6 +428,7 @@ public class JPA extends AbstractExtensionElement{
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("manager")
     public void query(XSLProcessorContext context, ElemExtensionCall extensionElement) throws IOException, TransformerException{
         EntityManager m = getEntityManager(context, extensionElement);
         if(m == null){
@@ -21,7 +21,6 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 import javax.xml.transform.TransformerException;
@@ -40,6 +39,7 @@ import org.apache.xpath.objects.XObject;
 import org.w3c.dom.Attr;
 import org.w3c.dom.NamedNodeMap;
 
+import net.adamjenkins.sxe.util.TransformationContext;
 import net.adamjenkins.sxe.util.XSLTUtil;
 
 /**
@@ -64,7 +64,7 @@ import net.adamjenkins.sxe.util.XSLTUtil;
  */
 public class JavaBean extends AbstractExtensionElement{
 
-    private HashMap<Thread, List<Object>> parameterCapture = new HashMap<Thread, List<Object>>();
+    private static final TransformationContext.Slot<List<Object>> parameterCapture = TransformationContext.newSlot();
 
     /**
      * Instantiates a java object.
@@ -98,11 +98,13 @@ public class JavaBean extends AbstractExtensionElement{
     public void instantiate(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException, NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException, FileNotFoundException, ClassNotFoundException, MalformedURLException, IOException{
         if(!passesAttributeValidation(extensionElement, context, "class")) throw new TransformerException("Must spedify class name");
         String className = getAttribute("class", context, extensionElement);
+        TransformationContext state = TransformationContext.get(context);
+        List<Object> params = new ArrayList<Object>();
+        List<Object> outer = state.set(parameterCapture, params);
         try{
-            parameterCapture.put(Thread.currentThread(), new ArrayList<Object>());
             context.getTransformer().executeChildTemplates(extensionElement, true);
             int expected = countParams(extensionElement);
-            int actual = parameterCapture.get(Thread.currentThread()).size();
+            int actual = params.size();
             if(expected != actual){
                 logError(this.getClass(),
                         extensionElement,
@@ -110,11 +112,11 @@ public class JavaBean extends AbstractExtensionElement{
                         context);
                 throw null;
             }
-            Object newObj = ConstructorUtils.invokeConstructor(Class.forName(className), parameterCapture.get(Thread.currentThread()).toArray());
+            Object newObj = ConstructorUtils.invokeConstructor(Class.forName(className), params.toArray());
             XSLTUtil.setVariable(context, extensionElement, newObj);
             
         }finally{
-            parameterCapture.remove(Thread.currentThread());
+            state.set(parameterCapture, outer);
         }
     }
     
@@ -142,6 +144,7 @@ public class JavaBean extends AbstractExtensionElement{
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("target")
     public void invoke(XSLProcessorContext context, ElemExtensionCall extensionElement) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException, TransformerException, MalformedURLException, FileNotFoundException, IOException{
         if(!passesAttributeValidation(extensionElement, context, "target", "method")) return;
         XObject target = getXObject("target", context, extensionElement);
@@ -155,11 +158,13 @@ public class JavaBean extends AbstractExtensionElement{
         }
         Object bean = target.object();
         Object result = null;
+        TransformationContext state = TransformationContext.get(context);
+        List<Object> params = new ArrayList<Object>();
+        List<Object> outer = state.set(parameterCapture, params);
         try{
-            parameterCapture.put(Thread.currentThread(), new ArrayList<Object>());
             context.getTransformer().executeChildTemplates(extensionElement, true);
             int expected = countParams(extensionElement);
-            int actual = parameterCapture.get(Thread.currentThread()).size();
+            int actual = params.size();
             if(expected != actual){
                 logError(this.getClass(),
                         extensionElement,
@@ -167,9 +172,9 @@ public class JavaBean extends AbstractExtensionElement{
                         context);
                 return;
             }
-            result = MethodUtils.invokeMethod(bean, methodName, parameterCapture.get(Thread.currentThread()).toArray());
+            result = MethodUtils.invokeMethod(bean, methodName, params.toArray());
         }finally{
-            parameterCapture.remove(Thread.currentThread());
+            state.set(parameterCapture, outer);
         }
         if(result != null) {
             setVariableOrWriteToOutput(result, context, extensionElement);
@@ -199,10 +204,15 @@ public class JavaBean extends AbstractExtensionElement{
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes("select")
     public void parameter(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "select")) return;
         XObject obj = getXObject("select", context, extensionElement);
-        List<Object> params = parameterCapture.get(Thread.currentThread());
+        List<Object> params = TransformationContext.get(context).get(parameterCapture);
+        if(params == null){
+            logError(this.getClass(), extensionElement, "Parameters must be inside an <bean:instantiate/> or <bean:invoke/> element", context);
+            return;
+        }
         if(isNull(obj)){
             params.add(null);
         }else{
@@ -231,6 +241,7 @@ public class JavaBean extends AbstractExtensionElement{
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes({"target", "value"})
     public void setProperty(XSLProcessorContext context, ElemExtensionCall extensionElement) throws IllegalAccessException, InvocationTargetException, NoSuchMethodException, TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "target", "property", "value")) return;
         Object target = getXObject("target", context, extensionElement).object();
@@ -260,6 +271,7 @@ public class JavaBean extends AbstractExtensionElement{
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("target")
     public void getProperty(XSLProcessorContext context, ElemExtensionCall extensionElement) throws IllegalAccessException, InvocationTargetException, NoSuchMethodException, TransformerException, MalformedURLException, FileNotFoundException, IOException{
         if(!passesAttributeValidation(extensionElement, context, "target", "property")) return;
         Object target = getXObject("target", context, extensionElement).object();
@@ -292,6 +304,7 @@ public class JavaBean extends AbstractExtensionElement{
      * @param extensionElement
      * @throws TransformerException 
      */
+    @XPathAttributes("target")
     public void bind(XSLProcessorContext context, ElemExtensionCall extensionElement) throws IllegalAccessException, NoSuchMethodException, InvocationTargetException, TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "target")) return;
         Object target = getXObject("target", context, extensionElement).object();
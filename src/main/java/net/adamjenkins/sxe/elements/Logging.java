@@ -17,13 +17,23 @@
 package net.adamjenkins.sxe.elements;
 
 import java.io.Writer;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.Transformer;
 
 import org.apache.xalan.extensions.XSLProcessorContext;
 import org.apache.xalan.templates.ElemExtensionCall;
+import org.apache.xalan.transformer.TransformerImpl;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import net.adamjenkins.sxe.elements.logging.AsyncLogAppender;
+import net.adamjenkins.sxe.elements.logging.LogCaptureSink;
+import net.adamjenkins.sxe.elements.logging.RecordLimiter;
+import net.adamjenkins.sxe.elements.logging.SuppressedRecords;
+import net.adamjenkins.sxe.util.ConcurrentWeakIdentityMap;
+import net.adamjenkins.sxe.util.TransformationContext;
+
 /**
  * Element for logging (built on <a href="http://www.slf4j.org">SLF4j</a>).
  * <br/><br/>
@@ -50,6 +60,21 @@ import org.slf4j.LoggerFactory;
  * &lt;log:error message="some message"/&gt; or &lt;log:error select="some xpath"/&gt;
  * </pre></code>
  * 
+ * Nothing is evaluated unless the level is enabled for the category, so a disabled <i>log:debug</i> in a busy
+ * template costs no more than a level check.  To keep transforms from waiting on slow appenders, call
+ * {@link #enableAsyncLogging(int)} and records will be written by a background thread instead (if it falls too far
+ * behind records are dropped, except for errors, which are then written straight away).
+ * <br/><br/>
+ * Log elements in templates that fire very often can be limited with the <i>sampleEvery</i> and <i>maxPerSecond</i>
+ * attributes (for example <code>&lt;log:info message="..." sampleEvery="1000" maxPerSecond="50"/&gt;</code>).  The
+ * number of records each element suppressed is logged when the transformation ends its result document (or when it
+ * is completed with {@link TransformationContext#complete(TransformerImpl)}, if that comes first).
+ * <br/><br/>
+ * The output of a single transformation can also be captured (to show it to a user, for example) by giving the
+ * transformer a {@link LogCaptureSink} with {@link #capture(Transformer, LogCaptureSink)}.  The sink is flushed when
+ * the transformation ends, closing it is left to the caller.
+ * <br/><br/>
+ * 
  * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
  */
 public class Logging extends AbstractExtensionElement{
@@ -58,22 +83,83 @@ public class Logging extends AbstractExtensionElement{
     
     public enum Level {TRACE, DEBUG, INFO, WARN, ERROR}        
     
-    private static final HashMap<Long,Level> outputLevels =
-            new HashMap<Long,Level>();
+    private static final TransformationContext.Slot<LogCaptureSink> captureSink = TransformationContext.newInheritedSlot();
     
-    private static final HashMap<Long,Writer> outputChannel =
-            new HashMap<Long,Writer>();
+    private static final ThreadLocal<LogCaptureSink> threadCaptureSink = new ThreadLocal<LogCaptureSink>();
     
+    private static final TransformationContext.Slot<SuppressedRecords> suppressedRecords = TransformationContext.newSlot();
+    
+    private static final RecordLimiter UNLIMITED = new RecordLimiter(1, 0);
+    
+    private static final ConcurrentWeakIdentityMap<ElemExtensionCall,RecordLimiter> limiters =
+            new ConcurrentWeakIdentityMap<ElemExtensionCall,RecordLimiter>();
+    
+    private static final ConcurrentHashMap<String,Logger> loggers =
+            new ConcurrentHashMap<String,Logger>();
+    
+    private static volatile AsyncLogAppender asyncAppender;
+    
+    /**
+     * Writes log records on a background thread from now on.
+     * 
+     * @param capacity  The number of records that can be waiting to be written before new ones are dropped.
+     */
+    public static synchronized void enableAsyncLogging(int capacity){
+        AsyncLogAppender previous = asyncAppender;
+        asyncAppender = new AsyncLogAppender(capacity);
+        if(previous != null) previous.close();
+    }
+    
+    /**
+     * Goes back to writing log records on the transforming thread, once everything already queued has been written.
+     */
+    public static synchronized void disableAsyncLogging(){
+        AsyncLogAppender previous = asyncAppender;
+        asyncAppender = null;
+        if(previous != null) previous.close();
+    }
+    
+    
+    /**
+     * Captures the log output of a transformation, including any parallel branches it starts.  Call this before the
+     * transformation is run; it only applies to that transformation.  The sink is flushed when the transformation ends
+     * its result document (or is completed with {@link TransformationContext#complete(TransformerImpl)}), so
+     * everything logged has been written by the time <code>transform</code> returns, but it is not closed, that is
+     * still up to the caller.
+     * 
+     * @param transformer   A Xalan transformer.
+     * @param sink          Where to send the output, or null to stop capturing.
+     * @return The sink that was capturing the output before.
+     */
+    public static LogCaptureSink capture(Transformer transformer, LogCaptureSink sink){
+        TransformationContext state = TransformationContext.get((TransformerImpl)transformer);
+        if(sink != null) state.onComplete(sink::flush);
+        return state.set(captureSink, sink);
+    }
     
     /** start web ui method **/
+    /**
+     * Captures the log output of transformations run on this thread.
+     * 
+     * @deprecated Parallel branches don't run on this thread, use {@link #capture(Transformer, LogCaptureSink)}.
+     */
+    @Deprecated
     public static final void pushConfiguration(Writer writer, Level level){
-        outputLevels.put(Thread.currentThread().getId(), level);
-        outputChannel.put(Thread.currentThread().getId(), writer);
+        LogCaptureSink previous = threadCaptureSink.get();
+        threadCaptureSink.set(new LogCaptureSink(writer, level, LogCaptureSink.DEFAULT_CAPACITY, LogCaptureSink.OverflowPolicy.BLOCK));
+        if(previous != null) previous.close();
     }
     
+    /**
+     * Stops capturing, once everything captured so far has been written.
+     * 
+     * @deprecated Use {@link #capture(Transformer, LogCaptureSink)}.
+     */
+    @Deprecated
     public static final void popConfiguration(){
-        outputLevels.remove(Thread.currentThread().getId());
-        outputChannel.remove(Thread.currentThread().getId());
+        LogCaptureSink sink = threadCaptureSink.get();
+        threadCaptureSink.remove();
+        if(sink != null) sink.close();
     }
     /** end web ui methods **/
     
@@ -90,11 +176,14 @@ public class Logging extends AbstractExtensionElement{
      *  <tr><td>message</td><td>Template</td><td>A message to send.</td><td>No (you must have either a <i>message</i> attribute or a <i>select</i> attribute.</td></tr>
      *  <tr><td>select</td><td>XPath</td><td>An XPath to evaluate and send the result to the logging framework.</td><td>No (you must have either a <i>message</i> attribute or a <i>select</i> attribute.</td></tr>
      *  <tr><td>category</td><td>Template</td><td>A optional logging category.</td><td>No.</td></tr>
+     *  <tr><td>sampleEvery</td><td>Integer</td><td>Only write one in this many records from this element.</td><td>No.</td></tr>
+     *  <tr><td>maxPerSecond</td><td>Integer</td><td>The most records to write from this element each second.</td><td>No.</td></tr>
      * </table>
      * <br/><br/>
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("select")
     public void trace(XSLProcessorContext context, ElemExtensionCall extensionElement){
         log(context, extensionElement, Level.TRACE);
     }
@@ -111,12 +200,15 @@ public class Logging extends AbstractExtensionElement{
      *  <tr><td>message</td><td>Template</td><td>A message to send.</td><td>No (you must have either a <i>message</i> attribute or a <i>select</i> attribute.</td></tr>
      *  <tr><td>select</td><td>XPath</td><td>An XPath to evaluate and send the result to the logging framework.</td><td>No (you must have either a <i>message</i> attribute or a <i>select</i> attribute.</td></tr>
      *  <tr><td>category</td><td>Template</td><td>A optional logging category.</td><td>No.</td></tr>
+     *  <tr><td>sampleEvery</td><td>Integer</td><td>Only write one in this many records from this element.</td><td>No.</td></tr>
+     *  <tr><td>maxPerSecond</td><td>Integer</td><td>The most records to write from this element each second.</td><td>No.</td></tr>
      * </table>
      * <br/><br/>
      * <br/><br/>
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("select")
     public void debug(XSLProcessorContext context, ElemExtensionCall extensionElement){
         log(context, extensionElement, Level.DEBUG);
     }
@@ -133,12 +225,15 @@ public class Logging extends AbstractExtensionElement{
      *  <tr><td>message</td><td>Template</td><td>A message to send.</td><td>No (you must have either a <i>message</i> attribute or a <i>select</i> attribute.</td></tr>
      *  <tr><td>select</td><td>XPath</td><td>An XPath to evaluate and send the result to the logging framework.</td><td>No (you must have either a <i>message</i> attribute or a <i>select</i> attribute.</td></tr>
      *  <tr><td>category</td><td>Template</td><td>A optional logging category.</td><td>No.</td></tr>
+     *  <tr><td>sampleEvery</td><td>Integer</td><td>Only write one in this many records from this element.</td><td>No.</td></tr>
+     *  <tr><td>maxPerSecond</td><td>Integer</td><td>The most records to write from this element each second.</td><td>No.</td></tr>
      * </table>
      * <br/><br/>
      * <br/><br/>
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("select")
     public void info(XSLProcessorContext context, ElemExtensionCall extensionElement) {
         log(context, extensionElement, Level.INFO);
     }    
@@ -155,12 +250,15 @@ public class Logging extends AbstractExtensionElement{
      *  <tr><td>message</td><td>Template</td><td>A message to send.</td><td>No (you must have either a <i>message</i> attribute or a <i>select</i> attribute.</td></tr>
      *  <tr><td>select</td><td>XPath</td><td>An XPath to evaluate and send the result to the logging framework.</td><td>No (you must have either a <i>message</i> attribute or a <i>select</i> attribute.</td></tr>
      *  <tr><td>category</td><td>Template</td><td>A optional logging category.</td><td>No.</td></tr>
+     *  <tr><td>sampleEvery</td><td>Integer</td><td>Only write one in this many records from this element.</td><td>No.</td></tr>
+     *  <tr><td>maxPerSecond</td><td>Integer</td><td>The most records to write from this element each second.</td><td>No.</td></tr>
      * </table>
      * <br/><br/>
      * <br/><br/>
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("select")
     public void warn(XSLProcessorContext context, ElemExtensionCall extensionElement) {
         log(context, extensionElement, Level.WARN);
     }  
@@ -177,17 +275,30 @@ public class Logging extends AbstractExtensionElement{
      *  <tr><td>message</td><td>Template</td><td>A message to send.</td><td>No (you must have either a <i>message</i> attribute or a <i>select</i> attribute.</td></tr>
      *  <tr><td>select</td><td>XPath</td><td>An XPath to evaluate and send the result to the logging framework.</td><td>No (you must have either a <i>message</i> attribute or a <i>select</i> attribute.</td></tr>
      *  <tr><td>category</td><td>Template</td><td>A optional logging category.</td><td>No.</td></tr>
+     *  <tr><td>sampleEvery</td><td>Integer</td><td>Only write one in this many records from this element.</td><td>No.</td></tr>
+     *  <tr><td>maxPerSecond</td><td>Integer</td><td>The most records to write from this element each second.</td><td>No.</td></tr>
      * </table>
      * <br/><br/>
      * <br/><br/>
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("select")
     public void error(XSLProcessorContext context, ElemExtensionCall extensionElement){
         log(context, extensionElement, Level.ERROR);
     }      
     
     private void log(XSLProcessorContext context, ElemExtensionCall extensionElement, Level logLevel) {                
+        Logger log = getLogger(context, extensionElement);
+        boolean external = isEnabled(log, logLevel);
+        LogCaptureSink sink = getCaptureSink(context);
+        boolean internal = sink != null && sink.isEnabled(logLevel);
+        if(!external && !internal) return;
+        RecordLimiter limiter = getLimiter(context, extensionElement);
+        if(limiter != UNLIMITED && !limiter.tryAcquire()){
+            getSuppressedRecords(context).suppressed(extensionElement, log, logLevel, extensionElement.getLineNumber());
+            return;
+        }
         StringBuilder logData = new StringBuilder();
         String message = null;
         String select = null;
@@ -209,50 +320,82 @@ public class Logging extends AbstractExtensionElement{
         if(select != null){
             logData.append(select);
         }
-        Logger log;
-        if(hasAttribute(extensionElement, "category")){
-            log = LoggerFactory.getLogger(getAttribute("category", context, extensionElement));
-        }else{
-            log = staticLog;
+        if(external){
+            String logString = getLogString(lineNumber, logData.toString());
+            AsyncLogAppender appender = asyncAppender;
+            if(appender == null || (!appender.offer(logLevel, log, logString) && logLevel == Level.ERROR)){
+                AsyncLogAppender.write(log, logLevel, logString);
+            }
         }
-        switch(logLevel){
-            case TRACE:
-                log.trace(getLogString(lineNumber, logData.toString()));
-                logInternal(Level.TRACE, log.getName(), logData.toString(), lineNumber);
-                break;
-            case DEBUG:
-                log.debug(getLogString(lineNumber, logData.toString()));
-                logInternal(Level.DEBUG, log.getName(), logData.toString(), lineNumber);
-                break;
-            case INFO:
-                log.info(getLogString(lineNumber, logData.toString()));
-                logInternal(Level.INFO, log.getName(), logData.toString(), lineNumber);
-            case WARN:
-                log.warn(getLogString(lineNumber, logData.toString()));
-                logInternal(Level.WARN, log.getName(), logData.toString(), lineNumber);
-                break;
-            case ERROR:
-                log.error(getLogString(lineNumber, logData.toString()));
-                logInternal(Level.ERROR, log.getName(), logData.toString(), lineNumber);
-                break;
+        if(internal) sink.capture(log.getName() + "::" + logLevel + getLogString(lineNumber, logData.toString()) + "\r\n");
+    }
+    
+    private Logger getLogger(XSLProcessorContext context, ElemExtensionCall extensionElement){
+        if(!hasAttribute(extensionElement, "category")) return staticLog;
+        String category = extensionElement.getAttribute("category");
+        //only evaluate the category if it's actually a template
+        if(category.indexOf('{') >= 0) category = getAttribute("category", context, extensionElement);
+        if(category == null) return staticLog;
+        Logger log = loggers.get(category);
+        if(log == null){
+            log = LoggerFactory.getLogger(category);
+            Logger existing = loggers.putIfAbsent(category, log);
+            if(existing != null) log = existing;
         }
-    }        
-
-    private void logInternal(Level level, String category, String logData, int lineNumber){
-        Level internalLevel = outputLevels.get(Thread.currentThread().getId());
-        Writer internalWriter = outputChannel.get(Thread.currentThread().getId());
-        if(internalLevel != null && internalWriter != null){
-            if(level.ordinal() >= internalLevel.ordinal()){ 
-                try{
-                    internalWriter.write(category + "::");
-                    internalWriter.write(level.toString());
-                    internalWriter.write(getLogString(lineNumber, logData));
-                    internalWriter.write("\r\n");
-                }catch(Throwable failSilently){                    
-                }
-            }
+        return log;
+    }
+    
+    private RecordLimiter getLimiter(XSLProcessorContext context, ElemExtensionCall extensionElement){
+        RecordLimiter limiter = limiters.get(extensionElement);
+        if(limiter != null) return limiter;
+        return limiters.computeIfAbsent(extensionElement, e -> {
+            int sampleEvery = getIntegerAttribute("sampleEvery", context, e);
+            int maxPerSecond = getIntegerAttribute("maxPerSecond", context, e);
+            return sampleEvery <= 1 && maxPerSecond <= 0 ? UNLIMITED : new RecordLimiter(sampleEvery, maxPerSecond);
+        });
+    }
+    
+    private int getIntegerAttribute(String attributeName, XSLProcessorContext context, ElemExtensionCall extensionElement){
+        if(!hasAttribute(extensionElement, attributeName)) return 0;
+        try{
+            return Integer.parseInt(extensionElement.getAttribute(attributeName).trim());
+        }catch(NumberFormatException e){
+            logError(this.getClass(), extensionElement, "Attribute " + attributeName + " must be an integer, it will be ignored", context);
+            return 0;
         }
     }
+    
+    private SuppressedRecords getSuppressedRecords(XSLProcessorContext context){
+        //branches count against the transformation they belong to, which is the one that reports them
+        TransformationContext root = TransformationContext.get(context).getRoot();
+        SuppressedRecords records = root.get(suppressedRecords);
+        if(records != null) return records;
+        SuppressedRecords created = new SuppressedRecords();
+        records = root.putIfAbsent(suppressedRecords, created);
+        if(records != null) return records;
+        root.onComplete(created::report);
+        //a no-op on a branch, the transformation it was started from has already been set up to complete
+        TransformationContext.completeAtEndOfDocument(context.getTransformer());
+        return created;
+    }
+    
+    private boolean isEnabled(Logger log, Level level){
+        switch(level){
+            case TRACE: return log.isTraceEnabled();
+            case DEBUG: return log.isDebugEnabled();
+            case INFO: return log.isInfoEnabled();
+            case WARN: return log.isWarnEnabled();
+            default: return log.isErrorEnabled();
+        }
+    }
+    
+    private LogCaptureSink getCaptureSink(XSLProcessorContext context){
+        LogCaptureSink sink = TransformationContext.get(context).get(captureSink);
+        if(sink == null) return threadCaptureSink.get();
+        //the sink is drained when the document ends, the transformer can only be set up for that while it is running
+        TransformationContext.completeAtEndOfDocument(context.getTransformer());
+        return sink;
+    }
 
     private String getLogString(int lineNumber, String logData)  {
         StringBuilder builder = new StringBuilder();
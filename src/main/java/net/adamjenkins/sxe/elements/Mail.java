@@ -17,8 +17,6 @@
 package net.adamjenkins.sxe.elements;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Properties;
 import javax.mail.Authenticator;
 import javax.mail.Message.RecipientType;
@@ -34,6 +32,7 @@ import javax.naming.NamingException;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
+import net.adamjenkins.sxe.util.TransformationContext;
 import org.apache.xalan.extensions.XSLProcessorContext;
 import org.apache.xalan.templates.ElemExtensionCall;
 import org.apache.xml.utils.DOMBuilder;
@@ -62,7 +61,7 @@ public class Mail extends AbstractExtensionElement{
 
     private Properties mailProperties;
 
-    private Map<Thread, MimeMessage> emailsUnderCreation = new HashMap<Thread, MimeMessage>();
+    private static final TransformationContext.Slot<MimeMessage> emailsUnderCreation = TransformationContext.newSlot();
 
     /**
      * Creates a new mail session and optionally attaches it to a variable.
@@ -95,6 +94,7 @@ public class Mail extends AbstractExtensionElement{
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("context")
     public void session(XSLProcessorContext context, ElemExtensionCall extensionElement) throws NamingException, TransformerException{
         Session session;
         mailProperties = new Properties();
@@ -175,6 +175,7 @@ public class Mail extends AbstractExtensionElement{
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("session")
     public void email(XSLProcessorContext context, ElemExtensionCall extensionElement) throws MessagingException, TransformerException{
         if(!passesAttributeValidation(extensionElement, context, "from", "subject")) return;
         Session s;
@@ -186,9 +187,13 @@ public class Mail extends AbstractExtensionElement{
         MimeMessage message = new MimeMessage(s);
         message.setFrom(new InternetAddress(getAttribute("from", context, extensionElement)));
         message.setSubject(getAttribute("subjecct", context, extensionElement));
-        emailsUnderCreation.put(Thread.currentThread(), message);
-        context.getTransformer().executeChildTemplates(extensionElement, true);
-        message = emailsUnderCreation.remove(Thread.currentThread());
+        TransformationContext state = TransformationContext.get(context);
+        MimeMessage outer = state.set(emailsUnderCreation, message);
+        try{
+            context.getTransformer().executeChildTemplates(extensionElement, true);
+        }finally{
+            state.set(emailsUnderCreation, outer);
+        }
         message.saveChanges(); 
         Transport transport = s.getTransport("smtp");
         transport.connect();
@@ -220,7 +225,8 @@ public class Mail extends AbstractExtensionElement{
      */
     public void body(XSLProcessorContext context, ElemExtensionCall extensionElement) throws MessagingException, TransformerException, ParserConfigurationException, IOException{
         if(!passesAttributeValidation(extensionElement, context, "type")) return;
-        MimeMessage msg = emailsUnderCreation.get(Thread.currentThread());
+        MimeMessage msg = getEmailUnderCreation(context, extensionElement, "body");
+        if(msg == null) return;
         msg.setContent(processBody(context, extensionElement), getAttribute("type", context, extensionElement));
     }
 
@@ -243,7 +249,8 @@ public class Mail extends AbstractExtensionElement{
      * @param extensionElement
      */
     public void to(XSLProcessorContext context, ElemExtensionCall extensionElement) throws MessagingException, TransformerException, ParserConfigurationException, IOException{
-        MimeMessage msg = emailsUnderCreation.get(Thread.currentThread());
+        MimeMessage msg = getEmailUnderCreation(context, extensionElement, "to");
+        if(msg == null) return;
         msg.addRecipient(RecipientType.TO, new InternetAddress(processBody(context, extensionElement)));
     }
 
@@ -267,7 +274,8 @@ public class Mail extends AbstractExtensionElement{
      * @param extensionElement
      */
     public void cc(XSLProcessorContext context, ElemExtensionCall extensionElement) throws MessagingException, TransformerException, ParserConfigurationException, IOException{
-        MimeMessage msg = emailsUnderCreation.get(Thread.currentThread());
+        MimeMessage msg = getEmailUnderCreation(context, extensionElement, "cc");
+        if(msg == null) return;
         msg.addRecipient(RecipientType.CC, new InternetAddress(processBody(context, extensionElement)));
     }
 
@@ -291,10 +299,19 @@ public class Mail extends AbstractExtensionElement{
      * @param extensionElement
      */
     public void bcc(XSLProcessorContext context, ElemExtensionCall extensionElement) throws MessagingException, TransformerException, ParserConfigurationException, IOException{
-        MimeMessage msg = emailsUnderCreation.get(Thread.currentThread());
+        MimeMessage msg = getEmailUnderCreation(context, extensionElement, "bcc");
+        if(msg == null) return;
         msg.addRecipient(RecipientType.BCC, new InternetAddress(processBody(context, extensionElement)));
     }
 
+    private MimeMessage getEmailUnderCreation(XSLProcessorContext context, ElemExtensionCall extensionElement, String elementName){
+        MimeMessage msg = TransformationContext.get(context).get(emailsUnderCreation);
+        if(msg == null){
+            logError(this.getClass(), extensionElement, "<mail:" + elementName + "/> must be inside <mail:email/>", context);
+        }
+        return msg;
+    }
+
     private static class DefaultPasswordAuthentication extends Authenticator{
         private String username;
         private String password;
@@ -19,8 +19,6 @@ package net.adamjenkins.sxe.elements;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.MalformedURLException;
-import java.util.HashMap;
-import java.util.Map;
 import javax.xml.soap.MessageFactory;
 import javax.xml.soap.MimeHeaders;
 import javax.xml.soap.SOAPBody;
@@ -33,6 +31,7 @@ import javax.xml.soap.SOAPHeader;
 import javax.xml.soap.SOAPMessage;
 import javax.xml.soap.SOAPPart;
 import javax.xml.transform.TransformerException;
+import net.adamjenkins.sxe.util.TransformationContext;
 import net.adamjenkins.sxe.util.XSLTErrorListener;
 import org.apache.xalan.extensions.XSLProcessorContext;
 import org.apache.xalan.templates.ElemExtensionCall;
@@ -58,7 +57,7 @@ import org.apache.xml.utils.DOMBuilder;
  */
 public class SOAP extends AbstractExtensionElement{
 
-    private Map<Thread, SOAPEnvelope> envelopesUnderDevelopment = new HashMap<Thread, SOAPEnvelope>();
+    private static final TransformationContext.Slot<SOAPEnvelope> envelopesUnderDevelopment = TransformationContext.newSlot();
 
     /**
      * Invokes a SOAP service and incorporates the response into the XSLT context.
@@ -105,11 +104,15 @@ public class SOAP extends AbstractExtensionElement{
         }
         SOAPPart soapPart = message.getSOAPPart();
         SOAPEnvelope envelope = soapPart.getEnvelope();
-        envelopesUnderDevelopment.put(Thread.currentThread(), envelope);
-        DOMBuilder handler = new DOMBuilder(envelope.getOwnerDocument(), envelope);
-        context.getTransformer().executeChildTemplates(extensionElement, handler);
-        message.saveChanges();
-        envelopesUnderDevelopment.remove(Thread.currentThread());
+        TransformationContext state = TransformationContext.get(context);
+        SOAPEnvelope outer = state.set(envelopesUnderDevelopment, envelope);
+        try{
+            DOMBuilder handler = new DOMBuilder(envelope.getOwnerDocument(), envelope);
+            context.getTransformer().executeChildTemplates(extensionElement, handler);
+            message.saveChanges();
+        }finally{
+            state.set(envelopesUnderDevelopment, outer);
+        }
         XSLTErrorListener listener = resetErrorListener(context);
         if(listener.getAllErrors().size() > 0){
             listener.transferTo(context.getTransformer().getErrorListener());
@@ -139,7 +142,8 @@ public class SOAP extends AbstractExtensionElement{
      * @param extensionElement
      */
     public void header(XSLProcessorContext context, ElemExtensionCall extensionElement) throws SOAPException, TransformerException{
-        SOAPEnvelope envelope = envelopesUnderDevelopment.get(Thread.currentThread());
+        SOAPEnvelope envelope = getEnvelopeUnderDevelopment(context, extensionElement, "header");
+        if(envelope == null) return;
         SOAPHeader header = envelope.getHeader();
         DOMBuilder handler = new DOMBuilder(header.getOwnerDocument(), header);
         context.getTransformer().executeChildTemplates(extensionElement, handler);
@@ -151,10 +155,19 @@ public class SOAP extends AbstractExtensionElement{
      * @param extensionElement
      */
     public void body(XSLProcessorContext context, ElemExtensionCall extensionElement) throws SOAPException, TransformerException{
-        SOAPEnvelope envelope = envelopesUnderDevelopment.get(Thread.currentThread());
+        SOAPEnvelope envelope = getEnvelopeUnderDevelopment(context, extensionElement, "body");
+        if(envelope == null) return;
         SOAPBody body = envelope.getBody();
         DOMBuilder handler = new DOMBuilder(body.getOwnerDocument(), body);
         context.getTransformer().executeChildTemplates(extensionElement, handler);
     }
 
+    private SOAPEnvelope getEnvelopeUnderDevelopment(XSLProcessorContext context, ElemExtensionCall extensionElement, String elementName){
+        SOAPEnvelope envelope = TransformationContext.get(context).get(envelopesUnderDevelopment);
+        if(envelope == null){
+            logError(this.getClass(), extensionElement, "<soap:" + elementName + "/> must be inside <soap:invoke/>", context);
+        }
+        return envelope;
+    }
+
 }
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+
+import org.apache.xalan.extensions.ExtensionHandlerJavaClass;
+import org.apache.xalan.extensions.ExtensionNamespaceSupport;
+import org.apache.xalan.extensions.XSLProcessorContext;
+import org.apache.xalan.templates.ElemExtensionCall;
+import org.apache.xalan.templates.ElemTemplateElement;
+import org.apache.xalan.templates.Stylesheet;
+import org.apache.xalan.templates.StylesheetRoot;
+import org.apache.xalan.transformer.TransformerImpl;
+
+/**
+ * A Xalan extension handler for the SXE element classes, which calls the element methods through method handles
+ * rather than reflection.  The method for each element is looked up once (per JVM, not per transformation) and the
+ * call itself is a plain method handle invocation, which the JIT can inline, so elements that run once per node of a
+ * large document cost about the same as a normal java call.  Extension functions are still handled by Xalan.
+ * <br/><br/>
+ * Xalan doesn't let a stylesheet pick its extension handlers, so the handler has to be installed into the compiled
+ * stylesheet with {@link #install(StylesheetRoot)} before it is used to create any transformers (the
+ * {@link net.adamjenkins.sxe.execution.BatchTransformer} does this for you).  Stylesheets that haven't been through
+ * install work exactly as before.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class SXEExtensionHandler extends ExtensionHandlerJavaClass {
+
+    private static final String[] JAVA_NAMESPACE_PREFIXES = {
+        "xalan://", "class:", "http://xml.apache.org/xalan/java/", "http://xml.apache.org/xslt/java/"
+    };
+
+    private static final String[] NO_ATTRIBUTES = new String[0];
+
+    private static final MethodType ELEMENT_TYPE = MethodType.methodType(Object.class, Object.class, XSLProcessorContext.class, ElemExtensionCall.class);
+
+    private static final ClassValue<ConcurrentHashMap<String, ElementMethod>> elementMethods = new ClassValue<ConcurrentHashMap<String, ElementMethod>>() {
+        @Override
+        protected ConcurrentHashMap<String, ElementMethod> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<String, ElementMethod>();
+        }
+    };
+
+    private final Class<?> elementClass;
+    private volatile Object instance;
+
+    /**
+     * Called by Xalan (with the same arguments it would pass to {@link ExtensionHandlerJavaClass}) when a
+     * transformation starts.
+     */
+    public SXEExtensionHandler(String namespaceUri, String scriptLang, String className) throws ClassNotFoundException {
+        super(namespaceUri, scriptLang, className);
+        this.elementClass = loadClass(className);
+    }
+
+    /**
+     * Swaps the standard java extension handler for this one, for every namespace in the stylesheet that refers to
+     * an SXE element class.
+     *
+     * @return The number of namespaces now handled by this class.
+     */
+    @SuppressWarnings("unchecked")
+    public static int install(StylesheetRoot stylesheet){
+        Vector<Object> extensions = stylesheet.getExtensions();
+        if(extensions == null) return 0;
+        int count = 0;
+        synchronized(extensions){
+            for(int i = 0; i < extensions.size(); i++){
+                ExtensionNamespaceSupport support = (ExtensionNamespaceSupport)extensions.get(i);
+                String className = getElementClassName(support.getNamespace());
+                if(className == null) continue;
+                extensions.set(i, new ExtensionNamespaceSupport(
+                        support.getNamespace(),
+                        SXEExtensionHandler.class.getName(),
+                        new Object[]{support.getNamespace(), "javaclass", className}));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Installs the handler into a stylesheet compiled by Xalan, anything else is ignored.
+     *
+     * @return The number of namespaces now handled by this class.
+     */
+    public static int install(Templates templates){
+        return templates instanceof StylesheetRoot ? install((StylesheetRoot)templates) : 0;
+    }
+
+    /**
+     * Gets the attributes an SXE element evaluates as XPath expressions, as declared by its method with
+     * {@link XPathAttributes}.
+     *
+     * @param namespace The namespace of the element.
+     * @param localPart The name of the element.
+     * @return The attribute names, empty if the element isn't an SXE element or doesn't declare any.
+     */
+    public static String[] getXPathAttributes(String namespace, String localPart){
+        String className = getElementClassName(namespace);
+        if(className == null) return NO_ATTRIBUTES;
+        try{
+            for(Method m : loadClass(className).getMethods()){
+                XPathAttributes declared = m.getAnnotation(XPathAttributes.class);
+                if(declared != null && m.getName().equals(localPart)) return declared.value();
+            }
+        }catch(ClassNotFoundException | LinkageError e){
+            //already checked by getElementClassName
+        }
+        return NO_ATTRIBUTES;
+    }
+
+    @Override
+    public boolean isElementAvailable(String element) {
+        return findElementMethod(element) != null || super.isElementAvailable(element);
+    }
+
+    @Override
+    public void processElement(String localPart, ElemTemplateElement element, TransformerImpl transformer, Stylesheet stylesheetTree, Object methodKey) throws TransformerException, IOException {
+        ElementMethod target = element instanceof ElemExtensionCall ? findElementMethod(localPart) : null;
+        if(target == null){
+            //not one of ours, or not a shape we recognise, let xalan deal with it
+            super.processElement(localPart, element, transformer, stylesheetTree, methodKey);
+            return;
+        }
+        XSLProcessorContext context = new XSLProcessorContext(transformer, stylesheetTree);
+        Object elementInstance = getInstance(target);
+        Object result;
+        if(TransformerImpl.S_DEBUG){
+            Object[] args = new Object[]{context, element};
+            transformer.getTraceManager().fireExtensionEvent(target.method, elementInstance, args);
+            try{
+                result = invoke(target, elementInstance, context, (ElemExtensionCall)element);
+            }finally{
+                transformer.getTraceManager().fireExtensionEndEvent(target.method, elementInstance, args);
+            }
+        }else{
+            result = invoke(target, elementInstance, context, (ElemExtensionCall)element);
+        }
+        if(result != null){
+            context.outputToResultTree(stylesheetTree, result);
+        }
+    }
+
+    private Object invoke(ElementMethod target, Object elementInstance, XSLProcessorContext context, ElemExtensionCall element) throws TransformerException{
+        try{
+            return (Object)target.handle.invokeExact(elementInstance, context, element);
+        }catch(TransformerException e){
+            throw e;
+        }catch(Throwable t){
+            //same as xalan does for reflective calls
+            throw new TransformerException(t.getMessage(), t);
+        }
+    }
+
+    private Object getInstance(ElementMethod target) throws TransformerException{
+        if(target.isStatic) return null;
+        Object current = instance;
+        if(current == null){
+            synchronized(this){
+                current = instance;
+                if(current == null){
+                    try{
+                        current = elementClass.getDeclaredConstructor().newInstance();
+                    }catch(ReflectiveOperationException e){
+                        throw new TransformerException("Could not create " + elementClass.getName() + ": " + e.getMessage(), e);
+                    }
+                    instance = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    private ElementMethod findElementMethod(String localPart){
+        ConcurrentHashMap<String, ElementMethod> methods = elementMethods.get(elementClass);
+        ElementMethod found = methods.get(localPart);
+        if(found != null) return found == ElementMethod.NONE ? null : found;
+        found = resolve(localPart);
+        ElementMethod existing = methods.putIfAbsent(localPart, found == null ? ElementMethod.NONE : found);
+        if(existing != null) found = existing;
+        return found == ElementMethod.NONE ? null : found;
+    }
+
+    private ElementMethod resolve(String localPart){
+        for(Method m : elementClass.getMethods()){
+            if(!m.getName().equals(localPart)) continue;
+            Class<?>[] params = m.getParameterTypes();
+            if(params.length != 2
+                    || !params[0].isAssignableFrom(XSLProcessorContext.class)
+                    || !params[1].isAssignableFrom(ElemExtensionCall.class)){
+                continue;
+            }
+            try{
+                MethodHandle handle = MethodHandles.publicLookup().unreflect(m);
+                if(Modifier.isStatic(m.getModifiers())){
+                    handle = MethodHandles.dropArguments(handle, 0, Object.class);
+                }
+                return new ElementMethod(m, handle.asType(ELEMENT_TYPE));
+            }catch(IllegalAccessException e){
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static String getElementClassName(String namespace){
+        if(namespace == null) return null;
+        for(String prefix : JAVA_NAMESPACE_PREFIXES){
+            if(namespace.startsWith(prefix)){
+                String className = namespace.substring(prefix.length());
+                try{
+                    return AbstractExtensionElement.class.isAssignableFrom(loadClass(className)) ? className : null;
+                }catch(ClassNotFoundException | LinkageError e){
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Class<?> loadClass(String className) throws ClassNotFoundException{
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if(loader != null){
+            try{
+                return Class.forName(className, true, loader);
+            }catch(ClassNotFoundException e){
+                //fall through to our own loader
+            }
+        }
+        return Class.forName(className);
+    }
+
+    /**
+     * An element method, with a handle of type (instance, context, element) -&gt; result.
+     */
+    private static final class ElementMethod {
+
+        static final ElementMethod NONE = new ElementMethod(null, null);
+
+        final Method method;
+        final MethodHandle handle;
+        final boolean isStatic;
+
+        ElementMethod(Method method, MethodHandle handle){
+            this.method = method;
+            this.handle = handle;
+            this.isStatic = method != null && Modifier.isStatic(method.getModifiers());
+        }
+
+    }
+
+}
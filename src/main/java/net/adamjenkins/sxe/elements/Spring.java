@@ -165,6 +165,7 @@ public class Spring extends AbstractExtensionElement{
      * @param context
      * @param extensionElement
      */
+    @XPathAttributes("context")
     public void bean(XSLProcessorContext context, ElemExtensionCall extensionElement) throws TransformerException, MalformedURLException, FileNotFoundException, IOException{
         if(!passesAttributeValidation(extensionElement, context, "id")) return;
         AbstractApplicationContext ctx;
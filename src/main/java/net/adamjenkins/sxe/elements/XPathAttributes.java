@@ -0,0 +1,43 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Names the attributes of an extension element that its method evaluates as XPath expressions, so they can be
+ * compiled before the stylesheet is first used (see
+ * {@link net.adamjenkins.sxe.util.CompiledXPathCache#precompile(org.apache.xalan.templates.StylesheetRoot)}).
+ * Attributes that aren't listed still work, they are just compiled the first time they are evaluated.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface XPathAttributes {
+
+    /**
+     * @return The attribute names.
+     */
+    String[] value();
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.concurrency;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.xml.serializer.SerializationHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * The output of a <code>&lt;concurrent:async/&gt;</code> block, which is kept until it is written out by one or
+ * more <code>&lt;concurrent:await/&gt;</code> elements.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class AsyncResult extends BranchResult {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean cancelled = false;
+
+    public void close(){
+        if(getBuffer().isComplete()) return;
+        getBuffer().complete();
+        done.countDown();
+    }
+
+    public void cancel(){
+        if(getBuffer().isComplete()) return;
+        cancelled = true;
+        getBuffer().clear();
+        close();
+    }
+
+    /**
+     * @return Whether the block failed or was cancelled, in which case it has no output.
+     */
+    public boolean isCancelled(){
+        return cancelled;
+    }
+
+    /**
+     * Waits for the block to finish.
+     *
+     * @param timeout   The maximum time to wait in milliseconds, zero or less to wait for as long as it takes.
+     * @return Whether the block finished in time.
+     * @throws InterruptedException
+     */
+    public boolean await(long timeout) throws InterruptedException{
+        if(timeout <= 0){
+            done.await();
+            return true;
+        }
+        return done.await(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes the output of the block, which must have finished.  Can be called any number of times.
+     */
+    public void writeTo(SerializationHandler target) throws SAXException{
+        if(!isClosed()) throw new IllegalStateException("Asynchronous block has not finished");
+        getBuffer().replay(target, false);
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.concurrency;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.dom.DOMSource;
+
+import net.adamjenkins.sxe.util.TransformationContext;
+import org.apache.xalan.extensions.XSLProcessorContext;
+import org.apache.xalan.templates.ElemExtensionCall;
+import org.apache.xalan.templates.ElemVariable;
+import org.apache.xalan.templates.XUnresolvedVariable;
+import org.apache.xalan.transformer.TransformerImpl;
+import org.apache.xml.dtm.DTM;
+import org.apache.xml.dtm.DTMIterator;
+import org.apache.xpath.DTMManagerBridge;
+import org.apache.xpath.NodeSetDTM;
+import org.apache.xpath.VariableStack;
+import org.apache.xpath.XPathContext;
+import org.apache.xpath.objects.XNodeSet;
+import org.apache.xpath.objects.XObject;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+/**
+ * Everything a branch needs from the parent transformation, captured once on the parent's thread: the variables the
+ * body can see, the node list for <code>&lt;concurrent:forEach/&gt;</code>, and the branch transformers.
+ * <br/><br/>
+ * Several branches (the chunks of one <code>&lt;concurrent:forEach/&gt;</code>) can share an environment.  They then
+ * share one transformer per thread they run on, rather than setting up a transformer (and copying the variables into
+ * it) for every chunk.  The environment is released, along with any result tree fragments copied into it, once the
+ * last branch using it has finished.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class BranchEnvironment {
+
+    private static final Field EXTENSIONS_TABLE = getExtensionsTableField();
+
+    private final TransformerImpl parent;
+    private final ElemExtensionCall extensionElement;
+    private final EmbeddedStylesheetDefinition stylesheet;
+    private final int contextNode;
+    //the node list being processed by concurrent:forEach (null for a single branch), never changed once captured
+    private final int[] selection;
+    private final XObject[] globals;
+    //either an XObject, the nodes of a node set, or a copy of a result tree fragment
+    private final Object[] params;
+    private final ConcurrentHashMap<Thread, Worker> workers = new ConcurrentHashMap<Thread, Worker>();
+    private final List<DTM> fragments = new ArrayList<DTM>();
+    private final AtomicInteger users;
+
+    /**
+     * Must be called on the thread running the parent transformation, as this is where the variables that are
+     * in scope are captured.
+     *
+     * @param selection The node list to process (null to process the current node once), which must not be changed
+     *                  afterwards.
+     * @param users     The number of branches that will use the environment.
+     */
+    public BranchEnvironment(XSLProcessorContext ctx,
+                             ElemExtensionCall extensionElement,
+                             EmbeddedStylesheetDefinition stylesheet,
+                             int[] selection,
+                             int users) throws TransformerException, ParserConfigurationException{
+        this.parent = ctx.getTransformer();
+        this.extensionElement = extensionElement;
+        this.stylesheet = stylesheet;
+        this.selection = selection;
+        this.users = new AtomicInteger(users);
+        XPathContext xctxt = parent.getXPathContext();
+        VariableStack vars = xctxt.getVarStack();
+        this.contextNode = selection == null ? xctxt.getCurrentNode() : selection[0];
+        //global variables that haven't been evaluated yet are left for the branch to evaluate if it needs them
+        this.globals = new XObject[stylesheet.getStylesheet().getVariablesAndParamsComposed().size()];
+        for(int i = 0; i < globals.length; i++){
+            XObject value = vars.elementAt(i);
+            if(value != null && value.getType() != XObject.CLASS_UNRESOLVEDVARIABLE) globals[i] = value;
+        }
+        List<ElemVariable> inScope = stylesheet.getParams();
+        this.params = new Object[inScope.size()];
+        DocumentBuilder builder = null;
+        for(int i = 0; i < params.length; i++){
+            XObject value = vars.getLocalVariable(inScope.get(i).getIndex(), vars.getStackFrame());
+            if(value == null){
+                continue;
+            }else if(value.getType() == XObject.CLASS_RTREEFRAG){
+                //the parent reuses the space for result tree fragments once it leaves the template, so take a copy
+                if(builder == null) builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+                Document doc = builder.newDocument();
+                params[i] = doc.importNode(value.rtree(xctxt), true);
+            }else if(value.getType() == XObject.CLASS_NODESET){
+                //node set iterators hold state, so each branch transformer gets its own iterator over the nodes
+                try{
+                    DTMIterator source = value.iter().cloneWithReset();
+                    NodeSetDTM copy = new NodeSetDTM(source);
+                    int[] nodes = new int[copy.getLength()];
+                    for(int j = 0; j < nodes.length; j++){
+                        nodes[j] = copy.item(j);
+                    }
+                    params[i] = nodes;
+                }catch(CloneNotSupportedException e){
+                    throw new TransformerException("Could not copy node set for parallel processing", e);
+                }
+            }else{
+                params[i] = value;
+            }
+        }
+    }
+
+    public TransformerImpl getParent(){
+        return parent;
+    }
+
+    public ElemExtensionCall getExtensionElement(){
+        return extensionElement;
+    }
+
+    public int getContextNode(){
+        return contextNode;
+    }
+
+    /**
+     * @return The node list being processed, or null if the body is only run for the current node.
+     */
+    public int[] getSelection(){
+        return selection;
+    }
+
+    /**
+     * Takes the branch transformer for the calling thread, setting one up the first time the thread asks.  A thread
+     * that is already using its transformer (a branch that ran another branch of the same environment on its own
+     * thread) gets a new one.  Hand it back with {@link #returnTransformer(TransformerImpl)}.
+     */
+    public TransformerImpl borrowTransformer() throws TransformerException{
+        Worker worker = workers.computeIfAbsent(Thread.currentThread(), t -> new Worker());
+        if(worker.transformer != null && !worker.busy){
+            worker.busy = true;
+            return worker.transformer;
+        }
+        TransformerImpl transformer = createBranchTransformer();
+        if(worker.transformer == null){
+            worker.transformer = transformer;
+            worker.busy = true;
+        }
+        return transformer;
+    }
+
+    public void returnTransformer(TransformerImpl transformer){
+        Worker worker = workers.get(Thread.currentThread());
+        if(worker != null && worker.transformer == transformer) worker.busy = false;
+    }
+
+    /**
+     * Called by each branch once it has finished, the last one releases the environment.
+     */
+    public void release(){
+        if(users.decrementAndGet() > 0) return;
+        workers.clear();
+        synchronized(fragments){
+            for(DTM fragment : fragments){
+                parent.getXPathContext().getDTMManager().release(fragment, true);
+            }
+            fragments.clear();
+        }
+    }
+
+    private TransformerImpl createBranchTransformer() throws TransformerException{
+        TransformerImpl branch = (TransformerImpl)stylesheet.getTemplates().newTransformer();
+        branch.setErrorListener(parent.getErrorListener());
+        if(parent.getURIResolver() != null) branch.setURIResolver(parent.getURIResolver());
+        //the extension element instances belong to the transformation, not the transformer
+        try{
+            EXTENSIONS_TABLE.set(branch, parent.getExtensionsTable());
+        }catch(IllegalAccessException e){
+            throw new TransformerException("Could not share the extensions with a parallel branch", e);
+        }
+        TransformationContext.get(branch).inheritFrom(TransformationContext.get(parent));
+        XPathContext xctxt = branch.getXPathContext();
+        DTMManagerBridge.shareDTMManager(parent.getXPathContext(), xctxt);
+        VariableStack vars = xctxt.getVarStack();
+        Vector declarations = stylesheet.getStylesheet().getVariablesAndParamsComposed();
+        vars.link(globals.length);
+        int root = xctxt.getDTM(contextNode).getDocumentRoot(contextNode);
+        for(int i = 0; i < globals.length; i++){
+            if(globals[i] != null){
+                vars.setGlobalVariable(i, globals[i]);
+            }else{
+                vars.setGlobalVariable(i, new XUnresolvedVariable((ElemVariable)declarations.elementAt(i), root, branch, vars.getStackFrame(), 0, true));
+            }
+        }
+        vars.link(stylesheet.getFrameSize());
+        List<ElemVariable> inScope = stylesheet.getParams();
+        for(int i = 0; i < params.length; i++){
+            if(params[i] instanceof Node){
+                DTM fragment = xctxt.getDTM(new DOMSource((Node)params[i]), true, null, false, false);
+                synchronized(fragments){
+                    fragments.add(fragment);
+                }
+                vars.setLocalVariable(inScope.get(i).getIndex(), new XNodeSet(fragment.getDocument(), xctxt.getDTMManager()));
+            }else if(params[i] instanceof int[]){
+                NodeSetDTM nodes = new NodeSetDTM(xctxt.getDTMManager());
+                for(int node : (int[])params[i]){
+                    nodes.addNode(node);
+                }
+                vars.setLocalVariable(inScope.get(i).getIndex(), new XNodeSet(nodes));
+            }else if(params[i] != null){
+                vars.setLocalVariable(inScope.get(i).getIndex(), (XObject)params[i]);
+            }
+        }
+        xctxt.pushNamespaceContext(extensionElement);
+        xctxt.pushSAXLocatorNull();
+        return branch;
+    }
+
+    private static Field getExtensionsTableField(){
+        try{
+            Field field = TransformerImpl.class.getDeclaredField("m_extensionsTable");
+            field.setAccessible(true);
+            return field;
+        }catch(NoSuchFieldException e){
+            throw new IllegalStateException("Unsupported Xalan version, parallel processing is not available", e);
+        }
+    }
+
+    /**
+     * The transformer kept for one thread, only ever touched by that thread.
+     */
+    private static final class Worker {
+
+        TransformerImpl transformer;
+        boolean busy;
+
+    }
+
+}
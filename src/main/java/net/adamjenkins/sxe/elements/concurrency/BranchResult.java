@@ -0,0 +1,196 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.concurrency;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Somewhere for a branch running on another thread to write its output.  The output is recorded (as SAX events)
+ * on the branch thread, and written out later by whoever owns the result.  If the buffer has been allowed to spill,
+ * events past its limit are encoded straight into the repository instead.  Document start and end events are
+ * ignored, the result only ever holds a fragment.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public abstract class BranchResult implements ContentHandler, LexicalHandler {
+
+    private final SerializationEventBuffer buffer = new SerializationEventBuffer();
+
+    SerializationEventBuffer getBuffer(){
+        return buffer;
+    }
+
+    /**
+     * Called by the branch once it has written all of its output.
+     */
+    public abstract void close();
+
+    /**
+     * Called instead of {@link #close()} when the branch fails or is cancelled part way through, anything already
+     * written is thrown away so that a half written fragment doesn't end up in the output.
+     */
+    public abstract void cancel();
+
+    public boolean isClosed(){
+        return buffer.isComplete();
+    }
+
+    public void setDocumentLocator(Locator locator) {
+    }
+
+    public void startDocument() throws SAXException {
+    }
+
+    public void endDocument() throws SAXException {
+    }
+
+    public void startPrefixMapping(final String prefix, final String uri) throws SAXException {
+        SpilledEvents spill = buffer.getSpill();
+        if(spill != null){
+            spill.startPrefixMapping(prefix, uri);
+            return;
+        }
+        buffer.add(target -> target.startPrefixMapping(prefix, uri));
+    }
+
+    public void endPrefixMapping(final String prefix) throws SAXException {
+        SpilledEvents spill = buffer.getSpill();
+        if(spill != null){
+            spill.endPrefixMapping(prefix);
+            return;
+        }
+        buffer.add(target -> target.endPrefixMapping(prefix));
+    }
+
+    public void startElement(final String uri, final String localName, final String qName, Attributes atts) throws SAXException {
+        SpilledEvents spill = buffer.getSpill();
+        if(spill != null){
+            spill.startElement(uri, localName, qName, atts);
+            return;
+        }
+        final Attributes copy = new AttributesImpl(atts);
+        buffer.add(target -> target.startElement(uri, localName, qName, copy));
+    }
+
+    public void endElement(final String uri, final String localName, final String qName) throws SAXException {
+        SpilledEvents spill = buffer.getSpill();
+        if(spill != null){
+            spill.endElement(uri, localName, qName);
+            return;
+        }
+        buffer.add(target -> target.endElement(uri, localName, qName));
+    }
+
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        SpilledEvents spill = buffer.getSpill();
+        if(spill != null){
+            spill.characters(ch, start, length);
+            return;
+        }
+        final char[] copy = new char[length];
+        System.arraycopy(ch, start, copy, 0, length);
+        buffer.add(target -> target.characters(copy, 0, copy.length));
+    }
+
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        SpilledEvents spill = buffer.getSpill();
+        if(spill != null){
+            spill.ignorableWhitespace(ch, start, length);
+            return;
+        }
+        final char[] copy = new char[length];
+        System.arraycopy(ch, start, copy, 0, length);
+        buffer.add(target -> target.ignorableWhitespace(copy, 0, copy.length));
+    }
+
+    public void processingInstruction(final String target, final String data) throws SAXException {
+        SpilledEvents spill = buffer.getSpill();
+        if(spill != null){
+            spill.processingInstruction(target, data);
+            return;
+        }
+        buffer.add(handler -> handler.processingInstruction(target, data));
+    }
+
+    public void skippedEntity(final String name) throws SAXException {
+        SpilledEvents spill = buffer.getSpill();
+        if(spill != null){
+            spill.skippedEntity(name);
+            return;
+        }
+        buffer.add(target -> target.skippedEntity(name));
+    }
+
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+    }
+
+    public void endDTD() throws SAXException {
+    }
+
+    public void startEntity(final String name) throws SAXException {
+        SpilledEvents spill = buffer.getSpill();
+        if(spill != null){
+            spill.startEntity(name);
+            return;
+        }
+        buffer.add(target -> target.startEntity(name));
+    }
+
+    public void endEntity(final String name) throws SAXException {
+        SpilledEvents spill = buffer.getSpill();
+        if(spill != null){
+            spill.endEntity(name);
+            return;
+        }
+        buffer.add(target -> target.endEntity(name));
+    }
+
+    public void startCDATA() throws SAXException {
+        SpilledEvents spill = buffer.getSpill();
+        if(spill != null){
+            spill.startCDATA();
+            return;
+        }
+        buffer.add(target -> target.startCDATA());
+    }
+
+    public void endCDATA() throws SAXException {
+        SpilledEvents spill = buffer.getSpill();
+        if(spill != null){
+            spill.endCDATA();
+            return;
+        }
+        buffer.add(target -> target.endCDATA());
+    }
+
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        SpilledEvents spill = buffer.getSpill();
+        if(spill != null){
+            spill.comment(ch, start, length);
+            return;
+        }
+        final char[] copy = new char[length];
+        System.arraycopy(ch, start, copy, 0, length);
+        buffer.add(target -> target.comment(copy, 0, copy.length));
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.concurrency;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A group of parallel branches that can be waited on together.
+ * <br/><br/>
+ * Every branch belongs to the scope of the transformation (used by <code>&lt;concurrent:waitForThreads/&gt;</code>)
+ * and to the innermost <code>&lt;concurrent:scope/&gt;</code> it was started in, if any.  Waiting threads are woken
+ * as soon as the last branch of the scope finishes.  A failing scope remembers the first failure of its branches and
+ * cancels the rest of them.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class BranchScope {
+
+    private final boolean failFast;
+    private final Set<ThreadedXalanProcessor> branches = ConcurrentHashMap.newKeySet();
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition finished = lock.newCondition();
+
+    /**
+     * @param failFast  Whether the first branch failure should cancel the remaining branches and be reported
+     *                  by whoever waits on this scope.
+     */
+    public BranchScope(boolean failFast){
+        this.failFast = failFast;
+    }
+
+    void register(ThreadedXalanProcessor branch){
+        branches.add(branch);
+    }
+
+    /**
+     * Called by a branch when it finishes, successfully or not.
+     *
+     * @return Whether the failure (if any) will be reported by this scope.
+     */
+    boolean completed(ThreadedXalanProcessor branch, Throwable error){
+        boolean reported = false;
+        if(error != null && failFast){
+            reported = true;
+            if(failure.compareAndSet(null, error)) cancel();
+        }
+        branches.remove(branch);
+        if(branches.isEmpty()){
+            lock.lock();
+            try{
+                finished.signalAll();
+            }finally{
+                lock.unlock();
+            }
+        }
+        return reported;
+    }
+
+    /**
+     * Waits for every branch in this scope to finish.
+     *
+     * @param timeout   The maximum time to wait in milliseconds, zero or less to wait for as long as it takes.
+     * @return Whether all the branches finished in time.
+     * @throws InterruptedException
+     */
+    public boolean await(long timeout) throws InterruptedException{
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lockInterruptibly();
+        try{
+            while(!branches.isEmpty()){
+                if(timeout <= 0){
+                    finished.await();
+                }else{
+                    if(remaining <= 0) return false;
+                    remaining = finished.awaitNanos(remaining);
+                }
+            }
+            return true;
+        }finally{
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cancels every branch that hasn't finished yet.  Branches that haven't started won't run, running branches are
+     * interrupted and their output is discarded.
+     */
+    public void cancel(){
+        for(ThreadedXalanProcessor branch : branches){
+            branch.cancel();
+        }
+    }
+
+    /**
+     * @return The first failure of a branch in this scope, or null if none have failed.
+     */
+    public Throwable getFailure(){
+        return failure.get();
+    }
+
+    public int getRunningCount(){
+        return branches.size();
+    }
+
+}
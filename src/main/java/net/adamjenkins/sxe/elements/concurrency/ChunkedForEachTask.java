@@ -0,0 +1,56 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.concurrency;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the chunks of a <code>&lt;concurrent:forEach/&gt;</code> on a fork/join pool.  The chunks are split in half
+ * until a single chunk is left, so idle threads can steal the unprocessed halves from busy ones.  Each chunk writes to
+ * its own result slot, which was reserved in node order, so the order in which the chunks run doesn't matter.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class ChunkedForEachTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ThreadedXalanProcessor[] chunks;
+    private final int from;
+    private final int to;
+
+    public ChunkedForEachTask(ThreadedXalanProcessor[] chunks){
+        this(chunks, 0, chunks.length);
+    }
+
+    private ChunkedForEachTask(ThreadedXalanProcessor[] chunks, int from, int to){
+        this.chunks = chunks;
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+        if(to - from == 1){
+            chunks[from].run();
+        }else if(to > from){
+            int middle = (from + to) >>> 1;
+            invokeAll(new ChunkedForEachTask(chunks, from, middle), new ChunkedForEachTask(chunks, middle, to));
+        }
+    }
+
+}
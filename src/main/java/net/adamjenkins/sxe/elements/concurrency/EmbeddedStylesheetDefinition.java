@@ -16,22 +16,77 @@
  */
 package net.adamjenkins.sxe.elements.concurrency;
 
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
-import org.w3c.dom.Document;
+
+import javax.xml.transform.Templates;
+
+import org.apache.xalan.templates.ElemExtensionCall;
+import org.apache.xalan.templates.ElemVariable;
+import org.apache.xalan.templates.StylesheetRoot;
+import org.apache.xml.utils.QName;
 
 /**
- * An embedded stylesheet declaration.
+ * The compiled form of the body of a <code>&lt;concurrent:parallel/&gt;</code> element.
+ * <br/><br/>
+ * Rather than writing the body (and everything it references) out as a new stylesheet document, the definition keeps
+ * hold of the already compiled stylesheet, which is itself a {@link Templates} instance, and the element whose children
+ * make up the body.  Each branch gets a transformer of its own from the stylesheet, so the templates, keys and
+ * decimal formats are shared while the processing state isn't.
+ * <br/><br/>
+ * The local variables and parameters that are in scope at the parallel element are passed to each branch as
+ * parameters.  A definition is built once per parallel element and reused for every branch it starts.
  *
  * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
  */
 public class EmbeddedStylesheetDefinition {
 
-    private Document stylesheet;
-    private Set<String> params;
+    private final StylesheetRoot stylesheet;
+    private final ElemExtensionCall body;
+    private final List<ElemVariable> params;
+    private final int frameSize;
 
-    public EmbeddedStylesheetDefinition(Document stylesheet, Set<String> params) {
+    /**
+     * @param stylesheet    The compiled stylesheet the parallel element belongs to.
+     * @param body          The parallel element.
+     * @param params        The local variables and parameters in scope at the parallel element.
+     * @param frameSize     The number of local variable slots the body needs.
+     */
+    public EmbeddedStylesheetDefinition(StylesheetRoot stylesheet, ElemExtensionCall body, List<ElemVariable> params, int frameSize) {
         this.stylesheet = stylesheet;
-        this.params = params;
+        this.body = body;
+        this.params = Collections.unmodifiableList(params);
+        this.frameSize = frameSize;
+    }
+
+    public Templates getTemplates(){
+        return stylesheet;
+    }
+
+    public StylesheetRoot getStylesheet(){
+        return stylesheet;
+    }
+
+    public ElemExtensionCall getBody(){
+        return body;
+    }
+
+    public List<ElemVariable> getParams(){
+        return params;
+    }
+
+    public Set<QName> getParamNames(){
+        Set<QName> names = new LinkedHashSet<QName>();
+        for(ElemVariable var : params){
+            names.add(var.getName());
+        }
+        return names;
+    }
+
+    public int getFrameSize(){
+        return frameSize;
     }
 
 }
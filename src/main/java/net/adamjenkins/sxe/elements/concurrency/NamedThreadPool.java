@@ -0,0 +1,138 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.concurrency;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread pool held in the {@link ThreadPoolRegistry}, shared by every transformation running in the JVM.
+ * <br/><br/>
+ * Works with both platform thread pools and virtual thread executors, for virtual thread executors the
+ * statistics are kept by the pool itself.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class NamedThreadPool implements Executor {
+
+    private final String name;
+    private final ExecutorService executor;
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+
+    NamedThreadPool(String name, ExecutorService executor){
+        this.name = name;
+        this.executor = executor;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public ExecutorService getExecutor(){
+        return executor;
+    }
+
+    public void execute(Runnable command) {
+        if(executor instanceof ThreadPoolExecutor){
+            //hand the task over as is so the rejection policies can see what it is
+            executor.execute(command);
+        }else{
+            queued.increment();
+            executor.execute(() -> {
+                queued.decrement();
+                active.incrementAndGet();
+                try{
+                    command.run();
+                }finally{
+                    active.decrementAndGet();
+                    completed.increment();
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The number of threads currently processing parallel elements.
+     */
+    public int getActiveCount(){
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getActiveCount() : active.get();
+    }
+
+    /**
+     * @return The number of parallel elements waiting for a thread.
+     */
+    public int getQueuedCount(){
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getQueue().size() : queued.intValue();
+    }
+
+    /**
+     * @return The (approximate) number of parallel elements this pool has finished processing.
+     */
+    public long getCompletedCount(){
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getCompletedTaskCount() : completed.sum();
+    }
+
+    /**
+     * @return The number of threads in the pool, for virtual thread executors this is the active count.
+     */
+    public int getPoolSize(){
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getPoolSize() : active.get();
+    }
+
+    public boolean isShutdown(){
+        return executor.isShutdown();
+    }
+
+    /**
+     * Stops accepting new work and waits for the work already submitted to finish.  Anything still running once the
+     * timeout has passed is interrupted.
+     *
+     * @param timeout   The time to wait, in milliseconds.
+     * @return Whether everything finished within the timeout.
+     */
+    public boolean shutdown(long timeout) throws InterruptedException{
+        executor.shutdown();
+        if(executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) return true;
+        executor.shutdownNow();
+        return false;
+    }
+
+    @Override
+    public String toString(){
+        return name + "[active=" + getActiveCount() + ", queued=" + getQueuedCount() + ", completed=" + getCompletedCount() + "]";
+    }
+
+    /**
+     * Daemon threads named after the pool, so shared pools never keep the JVM alive and show up clearly in thread dumps.
+     */
+    static ThreadFactory threadFactory(final String name){
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, "sxe-" + name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.concurrency;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * What a <code>&lt;concurrent:threadPool/&gt;</code> does with a parallel element when all of its threads are busy
+ * and its queue is full.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public enum RejectionPolicy {
+
+    /** The parallel element is processed by the thread that reached it, which slows the stylesheet down to the speed of the pool. */
+    CALLER_RUNS("caller-runs"),
+    /**
+     * The thread that reached the parallel element waits until there's room in the queue.  If it is one of the pool's
+     * own threads (a parallel element inside a parallel element) it processes the element itself instead, as waiting
+     * for room in its own queue could wait forever.  This only works for pools whose threads come from
+     * {@link #createThreadFactory(ThreadFactory)}.
+     */
+    BLOCK("block"),
+    /** The parallel element isn't processed and an error is reported. */
+    ABORT("abort"),
+    /** The oldest queued parallel element is dropped (its output is left out of the document) to make room. */
+    DISCARD_OLDEST("discard-oldest");
+
+    /** the thread factory that created the current thread, if it was created by a worker thread factory */
+    private static final ThreadLocal<ThreadFactory> workerOf = new ThreadLocal<ThreadFactory>();
+
+    private final String attributeValue;
+
+    private RejectionPolicy(String attributeValue){
+        this.attributeValue = attributeValue;
+    }
+
+    public String getAttributeValue(){
+        return attributeValue;
+    }
+
+    /**
+     * @return The policy for the given attribute value, or null if there isn't one.
+     */
+    public static RejectionPolicy forAttributeValue(String value){
+        for(RejectionPolicy policy : values()){
+            if(policy.attributeValue.equals(value)) return policy;
+        }
+        return null;
+    }
+
+    public RejectedExecutionHandler createHandler(){
+        switch(this){
+            case CALLER_RUNS:
+                return new ThreadPoolExecutor.CallerRunsPolicy();
+            case BLOCK:
+                return new BlockPolicy();
+            case DISCARD_OLDEST:
+                return new DiscardOldestPolicy();
+            default:
+                return new ThreadPoolExecutor.AbortPolicy();
+        }
+    }
+
+    /**
+     * Wraps the factory that creates the threads of a pool using this policy, so the policy can tell when it is
+     * called on one of the pool's own threads.
+     */
+    public ThreadFactory createThreadFactory(ThreadFactory threadFactory){
+        return this == BLOCK ? new WorkerThreadFactory(threadFactory) : threadFactory;
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final ThreadFactory threadFactory;
+
+        WorkerThreadFactory(ThreadFactory threadFactory){
+            this.threadFactory = threadFactory;
+        }
+
+        public Thread newThread(final Runnable r) {
+            return threadFactory.newThread(() -> {
+                workerOf.set(this);
+                r.run();
+            });
+        }
+
+    }
+
+    private static class BlockPolicy implements RejectedExecutionHandler {
+
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if(executor.isShutdown()) throw new RejectedExecutionException("Thread pool has been shut down");
+            if(workerOf.get() == executor.getThreadFactory()){
+                //every worker could end up waiting for room in the queue that only the workers can make
+                r.run();
+                return;
+            }
+            try{
+                executor.getQueue().put(r);
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in the thread pool", e);
+            }
+        }
+
+    }
+
+    /**
+     * The standard discard oldest policy, except that dropped branches are told about it, otherwise the document
+     * would wait for them forever.
+     */
+    private static class DiscardOldestPolicy implements RejectedExecutionHandler {
+
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            if(executor.isShutdown()) throw new RejectedExecutionException("Thread pool has been shut down");
+            Runnable oldest = executor.getQueue().poll();
+            if(oldest instanceof ThreadedXalanProcessor) ((ThreadedXalanProcessor)oldest).abandon();
+            executor.execute(r);
+        }
+
+    }
+
+}
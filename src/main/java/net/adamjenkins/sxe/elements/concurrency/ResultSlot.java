@@ -0,0 +1,51 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.concurrency;
+
+/**
+ * A place in the output document that has been reserved for a single parallel branch.
+ * <br/><br/>
+ * The branch writes its output to the slot (as SAX events) on its own thread, then calls {@link #close()}.  The
+ * owning {@link SXEMultithreadedSerializationHandler} writes the slot contents to the real output as soon as every
+ * slot ahead of it in document order has been closed.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class ResultSlot extends BranchResult {
+
+    private final SXEMultithreadedSerializationHandler owner;
+
+    ResultSlot(SXEMultithreadedSerializationHandler owner){
+        this.owner = owner;
+    }
+
+    /**
+     * Marks this branch as finished, allowing its output (and anything queued behind it) to be written.
+     */
+    public void close(){
+        if(getBuffer().isComplete()) return;
+        getBuffer().complete();
+        owner.slotCompleted(this);
+    }
+
+    public void cancel(){
+        if(getBuffer().isComplete()) return;
+        getBuffer().clear();
+        close();
+    }
+
+}
@@ -19,7 +19,12 @@ package net.adamjenkins.sxe.elements.concurrency;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Properties;
+import java.util.Set;
 import java.util.Vector;
 
 import javax.xml.transform.SourceLocator;
@@ -28,477 +33,677 @@ import javax.xml.transform.Transformer;
 import org.apache.xml.serializer.DOMSerializer;
 import org.apache.xml.serializer.NamespaceMappings;
 import org.apache.xml.serializer.SerializationHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.w3c.dom.Node;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
+import org.xml.sax.helpers.AttributesImpl;
 
 /**
  * A serialization handler that can handle multithreaded input.
+ * <br/><br/>
+ * Every <code>&lt;concurrent:parallel/&gt;</code> branch reserves a {@link ResultSlot} (on the transforming thread,
+ * so slots are reserved in document order) and writes its output into that slot on its own thread.  Output from the
+ * transforming thread that comes after an unfinished slot is buffered behind it.  Whenever a slot is closed, every
+ * finished slot and buffer at the front of the queue is written to the wrapped handler, so output reaches the real
+ * serializer in document order as early as possible.  When nothing is outstanding, calls pass straight through to the
+ * wrapped handler.
+ * <br/><br/>
+ * <code>endDocument()</code> waits for all outstanding slots before finishing the document.
+ * <br/><br/>
+ * Each slot keeps its first {@link #SPILL_AFTER_EVENTS} events on the heap, anything a branch writes after that goes
+ * into a {@link TemporaryProcessingStreamRepository} (by default a {@link SpillingStreamRepository} of the handler's
+ * own, which moves large outputs into memory mapped temporary files), so that thousands of branches writing large
+ * outputs don't have to fit on the heap while they wait their turn.
+ * <br/><br/>
+ * The prefix mappings written through this handler are tracked as they arrive, so namespace lookups
+ * (<code>getPrefix</code>, <code>getNamespaceMappings</code> etc.) take the queued output into account, not just what
+ * the wrapped handler has seen so far.
  * 
  * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
  */
 public class SXEMultithreadedSerializationHandler implements SerializationHandler {
-	
-	private SerializationHandler handler;
-	
-	public SXEMultithreadedSerializationHandler(SerializationHandler hander) {
+
+	private static final Logger log = LoggerFactory.getLogger(SXEMultithreadedSerializationHandler.class);
+
+	/** the number of events a slot keeps on the heap before the rest are written to the repository */
+	public static final int SPILL_AFTER_EVENTS = 1024;
+
+	private final SerializationHandler handler;
+
+	private final TemporaryProcessingStreamRepository repository;
+
+	/** slots and buffers waiting to be written, in document order */
+	private final LinkedList<SerializationEventBuffer> pending = new LinkedList<SerializationEventBuffer>();
+
+	/** the buffer the transforming thread is currently writing into, null when writing straight through */
+	private SerializationEventBuffer tail;
+
+	/** an error raised while a branch thread was flushing, rethrown on the transforming thread */
+	private SAXException deferredError;
+
+	/** the prefix mappings written through this handler that are still in scope, innermost first */
+	private final Deque<PrefixMapping> mappings = new ArrayDeque<PrefixMapping>();
+
+	/** the element depth of the output written through this handler, relative to where it was installed */
+	private int depth;
+
+	private final NamespaceMappings namespaceMappings = new BufferedNamespaceMappings();
+
+	public SXEMultithreadedSerializationHandler(SerializationHandler handler) {
+		this(handler, new SpillingStreamRepository());
+	}
+
+	/**
+	 * @param handler		The handler to write to.
+	 * @param repository	Where large branch outputs are kept until they can be written, null to keep them all on
+	 * 						the heap.
+	 */
+	public SXEMultithreadedSerializationHandler(SerializationHandler handler, TemporaryProcessingStreamRepository repository) {
 		this.handler = handler;
+		this.repository = repository;
+	}
+
+	public SerializationHandler getWrappedHandler() {
+		return handler;
+	}
+
+	/**
+	 * Reserves the next position in the output for a parallel branch.  Must be called on the transforming
+	 * thread at the point in the document where the branch output belongs.
+	 *
+	 * @return	The slot the branch should write to.
+	 */
+	public synchronized ResultSlot reserveSlot() {
+		ResultSlot slot = new ResultSlot(this);
+		if(repository != null) slot.getBuffer().spillTo(repository, SPILL_AFTER_EVENTS);
+		if(tail != null) tail.complete();
+		pending.add(slot.getBuffer());
+		tail = new SerializationEventBuffer();
+		pending.add(tail);
+		return slot;
+	}
+
+	/**
+	 * Waits for every outstanding slot and writes everything that is queued to the wrapped handler, without ending
+	 * the document.  Used when the handler was installed on a branch transformer by a nested
+	 * <code>&lt;concurrent:parallel/&gt;</code>, so the branch output is complete before the branch is.
+	 *
+	 * @throws SAXException	If the wait was interrupted, or the output could not be written.
+	 */
+	public synchronized void finish() throws SAXException {
+		try {
+			awaitCompletion();
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SAXException("Interrupted waiting for parallel output to complete", e);
+		}
+		drain();
+		checkDeferredError();
+	}
+
+	/**
+	 * Blocks until every slot reserved so far has been closed and written.
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void awaitCompletion() throws InterruptedException {
+		while(hasOutstandingSlots()) {
+			wait();
+		}
+	}
+
+	/**
+	 * @return	The number of reserved slots that have not yet been written to the output.
+	 */
+	public synchronized int getOutstandingSlotCount() {
+		int count = 0;
+		for(SerializationEventBuffer b : pending) {
+			if(b != tail) count++;
+		}
+		return count;
+	}
+
+	synchronized void slotCompleted(ResultSlot slot) {
+		try {
+			drain();
+		}catch(SAXException e) {
+			log.error("Could not write parallel output", e);
+			if(deferredError == null) deferredError = e;
+		}finally {
+			notifyAll();
+		}
+	}
+
+	private boolean hasOutstandingSlots() {
+		return !pending.isEmpty() && pending.getFirst() != tail;
+	}
+
+	private void drain() throws SAXException {
+		while(!pending.isEmpty()) {
+			SerializationEventBuffer head = pending.getFirst();
+			if(head == tail) {
+				//everything ahead of the transforming thread is written, go back to writing straight through
+				head.replay(handler);
+				pending.removeFirst();
+				tail = null;
+			}else if(head.isComplete()) {
+				head.replay(handler);
+				pending.removeFirst();
+			}else {
+				return;
+			}
+		}
+	}
+
+	private void checkDeferredError() throws SAXException {
+		if(deferredError != null) {
+			SAXException e = deferredError;
+			deferredError = null;
+			throw e;
+		}
+	}
+
+	private synchronized void write(SerializationEventBuffer.Event event) throws SAXException {
+		checkDeferredError();
+		if(tail == null) {
+			event.replay(handler);
+		}else {
+			tail.add(event);
+		}
+	}
+
+	private void pushElement() {
+		depth++;
+	}
+
+	private void popElement() {
+		while(!mappings.isEmpty() && mappings.peek().depth >= depth) {
+			mappings.pop();
+		}
+		depth--;
+	}
+
+	/**
+	 * @return	true if the mapping is new, false if the prefix was already mapped to the uri
+	 */
+	private boolean pushMapping(String prefix, String uri, int declarationDepth) {
+		if(prefix == null) prefix = "";
+		if(uri == null) uri = "";
+		if(uri.equals(lookupNamespace(prefix))) return false;
+		mappings.push(new PrefixMapping(prefix, uri, declarationDepth));
+		return true;
+	}
+
+	private String lookupNamespace(String prefix) {
+		//once everything queued has been written the wrapped handler is up to date
+		if(tail == null) return handler.getNamespaceURIFromPrefix(prefix);
+		for(PrefixMapping mapping : mappings) {
+			if(mapping.prefix.equals(prefix)) return mapping.uri;
+		}
+		return handler.getNamespaceURIFromPrefix(prefix);
+	}
+
+	private String lookupPrefix(String uri) {
+		if(tail == null) return handler.getPrefix(uri);
+		Set<String> shadowed = new HashSet<String>();
+		for(PrefixMapping mapping : mappings) {
+			if(mapping.uri.equals(uri) && !shadowed.contains(mapping.prefix)) return mapping.prefix;
+			shadowed.add(mapping.prefix);
+		}
+		String prefix = handler.getPrefix(uri);
+		return prefix == null || shadowed.contains(prefix) ? null : prefix;
+	}
+
+	private synchronized void writeQuietly(SerializationEventBuffer.Event event) {
+		try {
+			write(event);
+		}catch(SAXException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
 	}
 
-	public void addAttribute(String uri, String localName, String rawName, String type, String value,
-			boolean XSLAttribute) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void addAttribute(final String uri, final String localName, final String rawName, final String type, final String value,
+			final boolean XSLAttribute) throws SAXException {
+		write(target -> target.addAttribute(uri, localName, rawName, type, value, XSLAttribute));
 	}
 
 	public void addAttributes(Attributes atts) throws SAXException {
-		// TODO Auto-generated method stub
-		
+		final Attributes copy = new AttributesImpl(atts);
+		write(target -> target.addAttributes(copy));
 	}
 
-	public void addAttribute(String qName, String value) {
-		// TODO Auto-generated method stub
-		
+	public void addAttribute(final String qName, final String value) {
+		writeQuietly(target -> target.addAttribute(qName, value));
 	}
 
-	public void characters(String chars) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void characters(final String chars) throws SAXException {
+		write(target -> target.characters(chars));
 	}
 
-	public void characters(Node node) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void characters(final Node node) throws SAXException {
+		write(target -> target.characters(node));
 	}
 
-	public void endElement(String elemName) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public synchronized void endElement(final String elemName) throws SAXException {
+		write(target -> target.endElement(elemName));
+		popElement();
 	}
 
-	public void startElement(String uri, String localName, String qName) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public synchronized void startElement(final String uri, final String localName, final String qName) throws SAXException {
+		write(target -> target.startElement(uri, localName, qName));
+		pushElement();
 	}
 
-	public void startElement(String qName) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public synchronized void startElement(final String qName) throws SAXException {
+		write(target -> target.startElement(qName));
+		pushElement();
 	}
 
-	public void namespaceAfterStartElement(String uri, String prefix) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public synchronized void namespaceAfterStartElement(final String uri, final String prefix) throws SAXException {
+		pushMapping(prefix, uri, depth);
+		write(target -> target.namespaceAfterStartElement(uri, prefix));
 	}
 
-	public boolean startPrefixMapping(String prefix, String uri, boolean shouldFlush) throws SAXException {
-		// TODO Auto-generated method stub
-		return false;
+	public synchronized boolean startPrefixMapping(final String prefix, final String uri, final boolean shouldFlush) throws SAXException {
+		checkDeferredError();
+		//a flushed mapping belongs to the next element, otherwise to the one that has just been started
+		int declarationDepth = shouldFlush ? depth + 1 : depth;
+		boolean pushed = pushMapping(prefix, uri, declarationDepth);
+		if(tail == null) return handler.startPrefixMapping(prefix, uri, shouldFlush);
+		tail.add(target -> target.startPrefixMapping(prefix, uri, shouldFlush));
+		return pushed;
 	}
 
-	public void entityReference(String entityName) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void entityReference(final String entityName) throws SAXException {
+		write(target -> target.entityReference(entityName));
 	}
 
 	public NamespaceMappings getNamespaceMappings() {
-		// TODO Auto-generated method stub
-		return null;
+		return namespaceMappings;
 	}
 
-	public String getPrefix(String uri) {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized String getPrefix(String uri) {
+		return lookupPrefix(uri);
 	}
 
-	public String getNamespaceURI(String name, boolean isElement) {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized String getNamespaceURI(String name, boolean isElement) {
+		return handler.getNamespaceURI(name, isElement);
 	}
 
-	public String getNamespaceURIFromPrefix(String prefix) {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized String getNamespaceURIFromPrefix(String prefix) {
+		return lookupNamespace(prefix);
 	}
 
-	public void setSourceLocator(SourceLocator locator) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setSourceLocator(SourceLocator locator) {
+		handler.setSourceLocator(locator);
 	}
 
-	public void addUniqueAttribute(String qName, String value, int flags) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void addUniqueAttribute(final String qName, final String value, final int flags) throws SAXException {
+		write(target -> target.addUniqueAttribute(qName, value, flags));
 	}
 
-	public void addXSLAttribute(String qName, String value, String uri) {
-		// TODO Auto-generated method stub
-		
+	public void addXSLAttribute(final String qName, final String value, final String uri) {
+		writeQuietly(target -> target.addXSLAttribute(qName, value, uri));
 	}
 
-	public void addAttribute(String uri, String localName, String rawName, String type, String value)
+	public void addAttribute(final String uri, final String localName, final String rawName, final String type, final String value)
 			throws SAXException {
-		// TODO Auto-generated method stub
-		
+		write(target -> target.addAttribute(uri, localName, rawName, type, value));
 	}
 
-	public void setDocumentLocator(Locator locator) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setDocumentLocator(Locator locator) {
+		handler.setDocumentLocator(locator);
 	}
 
 	public void startDocument() throws SAXException {
-		// TODO Auto-generated method stub
-		
+		write(target -> target.startDocument());
 	}
 
-	public void endDocument() throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public synchronized void endDocument() throws SAXException {
+		finish();
+		handler.endDocument();
 	}
 
-	public void startPrefixMapping(String prefix, String uri) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public synchronized void startPrefixMapping(final String prefix, final String uri) throws SAXException {
+		pushMapping(prefix, uri, depth + 1);
+		write(target -> target.startPrefixMapping(prefix, uri));
 	}
 
-	public void endPrefixMapping(String prefix) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void endPrefixMapping(final String prefix) throws SAXException {
+		write(target -> target.endPrefixMapping(prefix));
 	}
 
-	public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public synchronized void startElement(final String uri, final String localName, final String qName, Attributes atts) throws SAXException {
+		final Attributes copy = atts == null ? null : new AttributesImpl(atts);
+		write(target -> target.startElement(uri, localName, qName, copy));
+		pushElement();
 	}
 
-	public void endElement(String uri, String localName, String qName) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public synchronized void endElement(final String uri, final String localName, final String qName) throws SAXException {
+		write(target -> target.endElement(uri, localName, qName));
+		popElement();
 	}
 
 	public void characters(char[] ch, int start, int length) throws SAXException {
-		// TODO Auto-generated method stub
-		
+		final char[] copy = new char[length];
+		System.arraycopy(ch, start, copy, 0, length);
+		write(target -> target.characters(copy, 0, copy.length));
 	}
 
 	public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
-		// TODO Auto-generated method stub
-		
+		final char[] copy = new char[length];
+		System.arraycopy(ch, start, copy, 0, length);
+		write(target -> target.ignorableWhitespace(copy, 0, copy.length));
 	}
 
-	public void processingInstruction(String target, String data) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void processingInstruction(final String target, final String data) throws SAXException {
+		write(h -> h.processingInstruction(target, data));
 	}
 
-	public void skippedEntity(String name) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void skippedEntity(final String name) throws SAXException {
+		write(target -> target.skippedEntity(name));
 	}
 
-	public void comment(String comment) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void comment(final String comment) throws SAXException {
+		write(target -> target.comment(comment));
 	}
 
-	public void startDTD(String name, String publicId, String systemId) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void startDTD(final String name, final String publicId, final String systemId) throws SAXException {
+		write(target -> target.startDTD(name, publicId, systemId));
 	}
 
 	public void endDTD() throws SAXException {
-		// TODO Auto-generated method stub
-		
+		write(target -> target.endDTD());
 	}
 
-	public void startEntity(String name) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void startEntity(final String name) throws SAXException {
+		write(target -> target.startEntity(name));
 	}
 
-	public void endEntity(String name) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void endEntity(final String name) throws SAXException {
+		write(target -> target.endEntity(name));
 	}
 
 	public void startCDATA() throws SAXException {
-		// TODO Auto-generated method stub
-		
+		write(target -> target.startCDATA());
 	}
 
 	public void endCDATA() throws SAXException {
-		// TODO Auto-generated method stub
-		
+		write(target -> target.endCDATA());
 	}
 
 	public void comment(char[] ch, int start, int length) throws SAXException {
-		// TODO Auto-generated method stub
-		
+		final char[] copy = new char[length];
+		System.arraycopy(ch, start, copy, 0, length);
+		write(target -> target.comment(copy, 0, copy.length));
 	}
 
-	public String getDoctypePublic() {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized String getDoctypePublic() {
+		return handler.getDoctypePublic();
 	}
 
-	public String getDoctypeSystem() {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized String getDoctypeSystem() {
+		return handler.getDoctypeSystem();
 	}
 
-	public String getEncoding() {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized String getEncoding() {
+		return handler.getEncoding();
 	}
 
-	public boolean getIndent() {
-		// TODO Auto-generated method stub
-		return false;
+	public synchronized boolean getIndent() {
+		return handler.getIndent();
 	}
 
-	public int getIndentAmount() {
-		// TODO Auto-generated method stub
-		return 0;
+	public synchronized int getIndentAmount() {
+		return handler.getIndentAmount();
 	}
 
-	public String getMediaType() {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized String getMediaType() {
+		return handler.getMediaType();
 	}
 
-	public boolean getOmitXMLDeclaration() {
-		// TODO Auto-generated method stub
-		return false;
+	public synchronized boolean getOmitXMLDeclaration() {
+		return handler.getOmitXMLDeclaration();
 	}
 
-	public String getStandalone() {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized String getStandalone() {
+		return handler.getStandalone();
 	}
 
-	public String getVersion() {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized String getVersion() {
+		return handler.getVersion();
 	}
 
-	public void setCdataSectionElements(Vector URI_and_localNames) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setCdataSectionElements(Vector URI_and_localNames) {
+		handler.setCdataSectionElements(URI_and_localNames);
 	}
 
-	public void setDoctype(String system, String pub) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setDoctype(String system, String pub) {
+		handler.setDoctype(system, pub);
 	}
 
-	public void setDoctypePublic(String doctype) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setDoctypePublic(String doctype) {
+		handler.setDoctypePublic(doctype);
 	}
 
-	public void setDoctypeSystem(String doctype) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setDoctypeSystem(String doctype) {
+		handler.setDoctypeSystem(doctype);
 	}
 
-	public void setEncoding(String encoding) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setEncoding(String encoding) {
+		handler.setEncoding(encoding);
 	}
 
-	public void setIndent(boolean indent) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setIndent(boolean indent) {
+		handler.setIndent(indent);
 	}
 
-	public void setMediaType(String mediatype) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setMediaType(String mediatype) {
+		handler.setMediaType(mediatype);
 	}
 
-	public void setOmitXMLDeclaration(boolean b) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setOmitXMLDeclaration(boolean b) {
+		handler.setOmitXMLDeclaration(b);
 	}
 
-	public void setStandalone(String standalone) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setStandalone(String standalone) {
+		handler.setStandalone(standalone);
 	}
 
-	public void setVersion(String version) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setVersion(String version) {
+		handler.setVersion(version);
 	}
 
-	public String getOutputProperty(String name) {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized String getOutputProperty(String name) {
+		return handler.getOutputProperty(name);
 	}
 
-	public String getOutputPropertyDefault(String name) {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized String getOutputPropertyDefault(String name) {
+		return handler.getOutputPropertyDefault(name);
 	}
 
-	public void setOutputProperty(String name, String val) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setOutputProperty(String name, String val) {
+		handler.setOutputProperty(name, val);
 	}
 
-	public void setOutputPropertyDefault(String name, String val) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setOutputPropertyDefault(String name, String val) {
+		handler.setOutputPropertyDefault(name, val);
 	}
 
-	public void elementDecl(String name, String model) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void elementDecl(final String name, final String model) throws SAXException {
+		write(target -> target.elementDecl(name, model));
 	}
 
-	public void attributeDecl(String eName, String aName, String type, String mode, String value) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void attributeDecl(final String eName, final String aName, final String type, final String mode, final String value) throws SAXException {
+		write(target -> target.attributeDecl(eName, aName, type, mode, value));
 	}
 
-	public void internalEntityDecl(String name, String value) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void internalEntityDecl(final String name, final String value) throws SAXException {
+		write(target -> target.internalEntityDecl(name, value));
 	}
 
-	public void externalEntityDecl(String name, String publicId, String systemId) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void externalEntityDecl(final String name, final String publicId, final String systemId) throws SAXException {
+		write(target -> target.externalEntityDecl(name, publicId, systemId));
 	}
 
-	public void notationDecl(String name, String publicId, String systemId) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public void notationDecl(final String name, final String publicId, final String systemId) throws SAXException {
+		write(target -> target.notationDecl(name, publicId, systemId));
 	}
 
-	public void unparsedEntityDecl(String name, String publicId, String systemId, String notationName)
+	public void unparsedEntityDecl(final String name, final String publicId, final String systemId, final String notationName)
 			throws SAXException {
-		// TODO Auto-generated method stub
-		
+		write(target -> target.unparsedEntityDecl(name, publicId, systemId, notationName));
 	}
 
-	public void warning(SAXParseException exception) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public synchronized void warning(SAXParseException exception) throws SAXException {
+		handler.warning(exception);
 	}
 
-	public void error(SAXParseException exception) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public synchronized void error(SAXParseException exception) throws SAXException {
+		handler.error(exception);
 	}
 
-	public void fatalError(SAXParseException exception) throws SAXException {
-		// TODO Auto-generated method stub
-		
+	public synchronized void fatalError(SAXParseException exception) throws SAXException {
+		handler.fatalError(exception);
 	}
 
-	public void setOutputStream(OutputStream output) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setOutputStream(OutputStream output) {
+		handler.setOutputStream(output);
 	}
 
-	public OutputStream getOutputStream() {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized OutputStream getOutputStream() {
+		return handler.getOutputStream();
 	}
 
-	public void setWriter(Writer writer) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setWriter(Writer writer) {
+		handler.setWriter(writer);
 	}
 
-	public Writer getWriter() {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized Writer getWriter() {
+		return handler.getWriter();
 	}
 
-	public void setOutputFormat(Properties format) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setOutputFormat(Properties format) {
+		handler.setOutputFormat(format);
 	}
 
-	public Properties getOutputFormat() {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized Properties getOutputFormat() {
+		return handler.getOutputFormat();
 	}
 
 	public ContentHandler asContentHandler() throws IOException {
-		// TODO Auto-generated method stub
-		return null;
+		return this;
 	}
 
 	public DOMSerializer asDOMSerializer() throws IOException {
-		// TODO Auto-generated method stub
-		return null;
+		return this;
 	}
 
-	public boolean reset() {
-		// TODO Auto-generated method stub
-		return false;
+	public synchronized boolean reset() {
+		if(!pending.isEmpty()) return false;
+		return handler.reset();
 	}
 
-	public Object asDOM3Serializer() throws IOException {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized Object asDOM3Serializer() throws IOException {
+		return handler.asDOM3Serializer();
 	}
 
-	public void setContentHandler(ContentHandler ch) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setContentHandler(ContentHandler ch) {
+		handler.setContentHandler(ch);
 	}
 
-	public void close() {
-		// TODO Auto-generated method stub
-		
+	public synchronized void close() {
+		handler.close();
 	}
 
-	public void serialize(Node node) throws IOException {
-		// TODO Auto-generated method stub
-		
+	public void serialize(final Node node) throws IOException {
+		try {
+			write(target -> {
+				try {
+					target.serialize(node);
+				}catch(IOException e) {
+					throw new SAXException(e);
+				}
+			});
+		}catch(SAXException e) {
+			throw new IOException(e.getMessage(), e);
+		}
 	}
 
-	public boolean setEscaping(boolean escape) throws SAXException {
-		// TODO Auto-generated method stub
-		return false;
+	public synchronized boolean setEscaping(boolean escape) throws SAXException {
+		checkDeferredError();
+		if(tail == null) return handler.setEscaping(escape);
+		//we can't know the previous value until the buffer is written, assume the default
+		tail.add(target -> target.setEscaping(escape));
+		return true;
 	}
 
-	public void setIndentAmount(int spaces) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setIndentAmount(int spaces) {
+		handler.setIndentAmount(spaces);
 	}
 
-	public void setTransformer(Transformer transformer) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setTransformer(Transformer transformer) {
+		handler.setTransformer(transformer);
 	}
 
-	public Transformer getTransformer() {
-		// TODO Auto-generated method stub
-		return null;
+	public synchronized Transformer getTransformer() {
+		return handler.getTransformer();
 	}
 
-	public void setNamespaceMappings(NamespaceMappings mappings) {
-		// TODO Auto-generated method stub
-		
+	public synchronized void setNamespaceMappings(NamespaceMappings mappings) {
+		handler.setNamespaceMappings(mappings);
 	}
 
 	public void flushPending() throws SAXException {
-		// TODO Auto-generated method stub
-		
+		write(target -> target.flushPending());
+	}
+
+	public synchronized void setDTDEntityExpansion(boolean expand) {
+		handler.setDTDEntityExpansion(expand);
+	}
+
+	private static final class PrefixMapping {
+
+		private final String prefix;
+		private final String uri;
+		private final int depth;
+
+		PrefixMapping(String prefix, String uri, int depth) {
+			this.prefix = prefix;
+			this.uri = uri;
+			this.depth = depth;
+		}
+
 	}
 
-	public void setDTDEntityExpansion(boolean expand) {
-		// TODO Auto-generated method stub
-		
+	/**
+	 * Answers lookups from the mappings tracked by this handler, new prefixes still come from the wrapped handler
+	 * so they don't clash with ones it has already handed out.
+	 */
+	private final class BufferedNamespaceMappings extends NamespaceMappings {
+
+		@Override
+		public String lookupNamespace(String prefix) {
+			return getNamespaceURIFromPrefix(prefix);
+		}
+
+		@Override
+		public String lookupPrefix(String uri) {
+			return getPrefix(uri);
+		}
+
+		@Override
+		public String generateNextPrefix() {
+			synchronized(SXEMultithreadedSerializationHandler.this) {
+				return handler.getNamespaceMappings().generateNextPrefix();
+			}
+		}
+
 	}
 
 }
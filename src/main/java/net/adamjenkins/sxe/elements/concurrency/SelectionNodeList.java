@@ -0,0 +1,80 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.concurrency;
+
+import org.apache.xml.dtm.DTMManager;
+import org.apache.xpath.NodeSetDTM;
+
+/**
+ * A read only node list over the nodes selected by a <code>&lt;concurrent:forEach/&gt;</code>, so every chunk can
+ * use the one array as its context node list (for <code>position()</code> and <code>last()</code>) without copying
+ * it.  Each chunk has its own list object, as the list keeps track of the current position.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+class SelectionNodeList extends NodeSetDTM {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int[] nodes;
+
+    SelectionNodeList(int[] nodes, DTMManager manager){
+        super(manager);
+        this.nodes = nodes;
+        m_firstFree = nodes.length;
+        m_mutable = false;
+    }
+
+    @Override
+    public int size(){
+        return nodes.length;
+    }
+
+    @Override
+    public int getLength(){
+        return nodes.length;
+    }
+
+    @Override
+    public int elementAt(int i){
+        return nodes[i];
+    }
+
+    @Override
+    public int item(int index){
+        return nodes[index];
+    }
+
+    @Override
+    public boolean contains(int node){
+        return indexOf(node, 0) >= 0;
+    }
+
+    @Override
+    public int indexOf(int node){
+        return indexOf(node, 0);
+    }
+
+    @Override
+    public int indexOf(int node, int start){
+        for(int i = start; i < nodes.length; i++){
+            if(nodes[i] == node) return i;
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.concurrency;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.xml.serializer.SerializationHandler;
+import org.xml.sax.SAXException;
+
+/**
+ * A recorded run of serialization events that can be replayed onto a real serialization
+ * handler once everything ahead of it in document order has been written.
+ * <br/><br/>
+ * A buffer can be allowed to spill into a {@link TemporaryProcessingStreamRepository}, once it holds more than a set
+ * number of events the rest are written to the repository (see {@link SpilledEvents}) rather than kept on the heap.
+ * Spilled events can only be replayed once.
+ * <br/><br/>
+ * A buffer is filled by exactly one thread, and is only replayed once it has been marked complete
+ * (or, for the trailing buffer of the transforming thread, while holding the lock of the owning
+ * {@link SXEMultithreadedSerializationHandler}).
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+class SerializationEventBuffer {
+
+    /**
+     * A single recorded serialization call.
+     */
+    interface Event {
+        void replay(SerializationHandler target) throws SAXException;
+    }
+
+    private final List<Event> events = new ArrayList<Event>();
+
+    private volatile boolean complete = false;
+
+    private TemporaryProcessingStreamRepository repository;
+
+    private int maxEvents;
+
+    private SpilledEvents spilled;
+
+    void add(Event event){
+        events.add(event);
+    }
+
+    /**
+     * Lets the events past the first <code>maxEvents</code> be moved out to the repository, must be called before
+     * anything is added.
+     */
+    void spillTo(TemporaryProcessingStreamRepository repository, int maxEvents){
+        this.repository = repository;
+        this.maxEvents = maxEvents;
+    }
+
+    /**
+     * @return Where events should be written instead of {@link #add(Event)}, or null while they are still being kept
+     *          in memory.
+     */
+    SpilledEvents getSpill(){
+        if(spilled == null && repository != null && events.size() >= maxEvents){
+            spilled = new SpilledEvents(repository);
+        }
+        return spilled;
+    }
+
+    void replay(SerializationHandler target) throws SAXException{
+        replay(target, true);
+    }
+
+    /**
+     * @param discard   Whether to throw the events away once they have been replayed, a buffer that is kept can
+     *                  be replayed again (by any thread, once it is complete).
+     */
+    void replay(SerializationHandler target, boolean discard) throws SAXException{
+        for(Event e : events){
+            e.replay(target);
+        }
+        if(discard) events.clear();
+        if(spilled != null){
+            SpilledEvents replayed = spilled;
+            spilled = null;
+            replayed.replay(target);
+        }
+    }
+
+    void clear(){
+        events.clear();
+        if(spilled != null){
+            spilled.discard();
+            spilled = null;
+        }
+    }
+
+    boolean isEmpty(){
+        return events.isEmpty() && spilled == null;
+    }
+
+    void complete(){
+        if(spilled != null) spilled.complete();
+        complete = true;
+    }
+
+    boolean isComplete(){
+        return complete;
+    }
+
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.concurrency;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.xml.serializer.SerializationHandler;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Serialization events that have been moved out of a {@link SerializationEventBuffer} into a
+ * {@link TemporaryProcessingStreamRepository}, so that the output of a large branch isn't held on the heap.  The
+ * events are encoded into a stream borrowed from the repository as they arrive (on the branch thread), and decoded
+ * again when they are replayed, which can only be done once.
+ * <br/><br/>
+ * Only the events recorded by a {@link BranchResult} are supported.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+class SpilledEvents implements ContentHandler, LexicalHandler {
+
+    private static final int START_PREFIX_MAPPING = 1;
+    private static final int END_PREFIX_MAPPING = 2;
+    private static final int START_ELEMENT = 3;
+    private static final int END_ELEMENT = 4;
+    private static final int CHARACTERS = 5;
+    private static final int IGNORABLE_WHITESPACE = 6;
+    private static final int PROCESSING_INSTRUCTION = 7;
+    private static final int SKIPPED_ENTITY = 8;
+    private static final int START_ENTITY = 9;
+    private static final int END_ENTITY = 10;
+    private static final int START_CDATA = 11;
+    private static final int END_CDATA = 12;
+    private static final int COMMENT = 13;
+
+    /** repository ids only have to be unique while the stream is stored */
+    private static final AtomicLong ids = new AtomicLong();
+
+    private final TemporaryProcessingStreamRepository repository;
+    private final long id = ids.incrementAndGet();
+    private final OutputStream stream;
+    private final DataOutputStream out;
+
+    private boolean written = false;
+    private boolean stored = false;
+    private Exception failure;
+
+    SpilledEvents(TemporaryProcessingStreamRepository repository){
+        this.repository = repository;
+        this.stream = repository.borrowOuputStream(id);
+        this.out = new DataOutputStream(new BufferedOutputStream(stream));
+    }
+
+    /**
+     * Hands the encoded events to the repository, called once the branch has finished writing.
+     */
+    void complete(){
+        if(written) return;
+        written = true;
+        try{
+            out.flush();
+        }catch(IOException e){
+            failure = e;
+        }
+        try{
+            //returned even if the flush failed, so the repository can free what it holds
+            repository.returnOuputStream(id, stream);
+            stored = true;
+        }catch(RuntimeException e){
+            if(failure == null) failure = e;
+        }
+    }
+
+    /**
+     * Writes the events to the target and frees them.
+     */
+    void replay(SerializationHandler target) throws SAXException{
+        if(failure != null){
+            discard();
+            throw new SAXException("Could not store parallel output: " + failure.getMessage(), failure);
+        }
+        InputStream stream = repository.borrowInputStream(id);
+        stored = false;
+        try{
+            decode(new DataInputStream(stream), target);
+        }catch(IOException e){
+            throw new SAXException("Could not read parallel output: " + e.getMessage(), e);
+        }finally{
+            repository.returnInputStream(id, stream);
+        }
+    }
+
+    /**
+     * Frees the events without writing them.
+     */
+    void discard(){
+        complete();
+        if(stored){
+            stored = false;
+            repository.returnInputStream(id, null);
+        }
+    }
+
+    private void decode(DataInputStream in, SerializationHandler target) throws IOException, SAXException{
+        int event;
+        while((event = in.read()) != -1){
+            switch(event){
+                case START_PREFIX_MAPPING:
+                    target.startPrefixMapping(readString(in), readString(in));
+                    break;
+                case END_PREFIX_MAPPING:
+                    target.endPrefixMapping(readString(in));
+                    break;
+                case START_ELEMENT:
+                    String uri = readString(in);
+                    String localName = readString(in);
+                    String qName = readString(in);
+                    target.startElement(uri, localName, qName, readAttributes(in));
+                    break;
+                case END_ELEMENT:
+                    target.endElement(readString(in), readString(in), readString(in));
+                    break;
+                case CHARACTERS:
+                    char[] ch = readChars(in);
+                    target.characters(ch, 0, ch.length);
+                    break;
+                case IGNORABLE_WHITESPACE:
+                    char[] whitespace = readChars(in);
+                    target.ignorableWhitespace(whitespace, 0, whitespace.length);
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    target.processingInstruction(readString(in), readString(in));
+                    break;
+                case SKIPPED_ENTITY:
+                    target.skippedEntity(readString(in));
+                    break;
+                case START_ENTITY:
+                    target.startEntity(readString(in));
+                    break;
+                case END_ENTITY:
+                    target.endEntity(readString(in));
+                    break;
+                case START_CDATA:
+                    target.startCDATA();
+                    break;
+                case END_CDATA:
+                    target.endCDATA();
+                    break;
+                case COMMENT:
+                    char[] comment = readChars(in);
+                    target.comment(comment, 0, comment.length);
+                    break;
+                default:
+                    throw new IOException("Unknown event " + event);
+            }
+        }
+    }
+
+    public void setDocumentLocator(Locator locator) {
+    }
+
+    public void startDocument() throws SAXException {
+    }
+
+    public void endDocument() throws SAXException {
+    }
+
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        try{
+            out.write(START_PREFIX_MAPPING);
+            writeString(prefix);
+            writeString(uri);
+        }catch(IOException e){
+            throw writeFailed(e);
+        }
+    }
+
+    public void endPrefixMapping(String prefix) throws SAXException {
+        writeEvent(END_PREFIX_MAPPING, prefix);
+    }
+
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        try{
+            out.write(START_ELEMENT);
+            writeString(uri);
+            writeString(localName);
+            writeString(qName);
+            int length = atts == null ? 0 : atts.getLength();
+            out.writeInt(length);
+            for(int i = 0; i < length; i++){
+                writeString(atts.getURI(i));
+                writeString(atts.getLocalName(i));
+                writeString(atts.getQName(i));
+                writeString(atts.getType(i));
+                writeString(atts.getValue(i));
+            }
+        }catch(IOException e){
+            throw writeFailed(e);
+        }
+    }
+
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        try{
+            out.write(END_ELEMENT);
+            writeString(uri);
+            writeString(localName);
+            writeString(qName);
+        }catch(IOException e){
+            throw writeFailed(e);
+        }
+    }
+
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        writeEvent(CHARACTERS, ch, start, length);
+    }
+
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        writeEvent(IGNORABLE_WHITESPACE, ch, start, length);
+    }
+
+    public void processingInstruction(String target, String data) throws SAXException {
+        try{
+            out.write(PROCESSING_INSTRUCTION);
+            writeString(target);
+            writeString(data);
+        }catch(IOException e){
+            throw writeFailed(e);
+        }
+    }
+
+    public void skippedEntity(String name) throws SAXException {
+        writeEvent(SKIPPED_ENTITY, name);
+    }
+
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+    }
+
+    public void endDTD() throws SAXException {
+    }
+
+    public void startEntity(String name) throws SAXException {
+        writeEvent(START_ENTITY, name);
+    }
+
+    public void endEntity(String name) throws SAXException {
+        writeEvent(END_ENTITY, name);
+    }
+
+    public void startCDATA() throws SAXException {
+        writeEvent(START_CDATA);
+    }
+
+    public void endCDATA() throws SAXException {
+        writeEvent(END_CDATA);
+    }
+
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        writeEvent(COMMENT, ch, start, length);
+    }
+
+    private void writeEvent(int event) throws SAXException{
+        try{
+            out.write(event);
+        }catch(IOException e){
+            throw writeFailed(e);
+        }
+    }
+
+    private void writeEvent(int event, String value) throws SAXException{
+        try{
+            out.write(event);
+            writeString(value);
+        }catch(IOException e){
+            throw writeFailed(e);
+        }
+    }
+
+    private void writeEvent(int event, char[] ch, int start, int length) throws SAXException{
+        try{
+            out.write(event);
+            out.writeInt(length);
+            for(int i = start; i < start + length; i++){
+                out.writeChar(ch[i]);
+            }
+        }catch(IOException e){
+            throw writeFailed(e);
+        }
+    }
+
+    private void writeString(String value) throws IOException{
+        if(value == null){
+            out.writeInt(-1);
+        }else{
+            out.writeInt(value.length());
+            out.writeChars(value);
+        }
+    }
+
+    private SAXException writeFailed(IOException e){
+        return new SAXException("Could not write parallel output: " + e.getMessage(), e);
+    }
+
+    private static String readString(DataInputStream in) throws IOException{
+        int length = in.readInt();
+        return length < 0 ? null : new String(readChars(in, length));
+    }
+
+    private static char[] readChars(DataInputStream in) throws IOException{
+        return readChars(in, in.readInt());
+    }
+
+    private static char[] readChars(DataInputStream in, int length) throws IOException{
+        char[] chars = new char[length];
+        for(int i = 0; i < length; i++){
+            chars[i] = in.readChar();
+        }
+        return chars;
+    }
+
+    private static Attributes readAttributes(DataInputStream in) throws IOException{
+        AttributesImpl atts = new AttributesImpl();
+        int length = in.readInt();
+        for(int i = 0; i < length; i++){
+            atts.addAttribute(readString(in), readString(in), readString(in), readString(in), readString(in));
+        }
+        return atts;
+    }
+
+}
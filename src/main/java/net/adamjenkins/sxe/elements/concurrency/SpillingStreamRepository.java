@@ -0,0 +1,403 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.concurrency;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A tiered stream repository.  Output is written into fixed size chunks taken from a shared pool (either heap or
+ * direct buffers).  Once the output for a processor grows past the spill threshold it is moved into a temporary
+ * file, and when the output stream is returned the file is memory mapped rather than read back onto the heap.
+ * <br/><br/>
+ * Input streams handed out by the repository read straight from the pooled chunks or the mapped file, no copy of the
+ * data is made.  Returning an input stream removes the stored stream from the repository, so each stored stream can be
+ * read once, but the chunks only go back to the pool (and the temporary file is only deleted) once every input stream
+ * borrowed for it has been returned or closed.
+ * <br/><br/>
+ * All methods are safe to call from multiple threads, but a single stream must only be used by one thread at a time.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class SpillingStreamRepository implements TemporaryProcessingStreamRepository {
+
+    private static final Logger log = LoggerFactory.getLogger(SpillingStreamRepository.class);
+
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+
+    public static final long DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+
+    public static final int DEFAULT_MAX_POOLED_CHUNKS = 1024;
+
+    /** the largest region we map in one go, files bigger than this are mapped in several segments */
+    private static final long MAX_MAPPED_SEGMENT = 1024 * 1024 * 1024;
+
+    private final int chunkSize;
+    private final long spillThreshold;
+    private final boolean direct;
+    private final File tempDirectory;
+    private final int maxPooledChunks;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooledChunks = new AtomicInteger();
+    private final ConcurrentHashMap<Long, StoredStream> streams = new ConcurrentHashMap<Long, StoredStream>();
+
+    public SpillingStreamRepository(){
+        this(DEFAULT_CHUNK_SIZE, DEFAULT_SPILL_THRESHOLD, false, null, DEFAULT_MAX_POOLED_CHUNKS);
+    }
+
+    /**
+     * @param chunkSize         The size of each pooled buffer.
+     * @param spillThreshold    The number of bytes a single stream may hold in memory before it is moved to disk.
+     * @param direct            Whether to pool direct (off heap) buffers instead of heap buffers.
+     * @param tempDirectory     Where to create spill files, null for the system temp directory.
+     * @param maxPooledChunks   The maximum number of idle chunks kept in the pool.
+     */
+    public SpillingStreamRepository(int chunkSize, long spillThreshold, boolean direct, File tempDirectory, int maxPooledChunks){
+        if(chunkSize <= 0) throw new IllegalArgumentException("chunkSize must be greater than zero");
+        if(spillThreshold < 0) throw new IllegalArgumentException("spillThreshold must not be negative");
+        this.chunkSize = chunkSize;
+        this.spillThreshold = spillThreshold;
+        this.direct = direct;
+        this.tempDirectory = tempDirectory;
+        this.maxPooledChunks = maxPooledChunks;
+    }
+
+    public InputStream borrowInputStream(long id) {
+        StoredStream stored = streams.get(id);
+        //the stream may have been returned by another reader since we looked it up
+        if(stored == null || !stored.retain()) throw new IllegalStateException("No output has been returned for processor " + id);
+        return new ByteBufferInputStream(stored);
+    }
+
+    public void returnInputStream(long id, InputStream in) {
+        if(in instanceof ByteBufferInputStream) ((ByteBufferInputStream)in).release();
+        StoredStream stored = streams.remove(id);
+        if(stored != null) stored.release();
+    }
+
+    public OutputStream borrowOuputStream(long id) {
+        return new TieredOutputStream();
+    }
+
+    public void returnOuputStream(long id, OutputStream out) {
+        if(!(out instanceof TieredOutputStream)){
+            throw new IllegalArgumentException("Output stream was not borrowed from this repository");
+        }
+        try{
+            StoredStream previous = streams.put(id, ((TieredOutputStream)out).complete());
+            if(previous != null) previous.release();
+        }catch(IOException e){
+            throw new IllegalStateException("Could not store output for processor " + id + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Releases everything held by this repository.
+     */
+    public void clear(){
+        for(Long id : streams.keySet()){
+            returnInputStream(id, null);
+        }
+        pool.clear();
+        pooledChunks.set(0);
+    }
+
+    public int getStoredStreamCount(){
+        return streams.size();
+    }
+
+    public int getPooledChunkCount(){
+        return pooledChunks.get();
+    }
+
+    private ByteBuffer acquireChunk(){
+        ByteBuffer chunk = pool.poll();
+        if(chunk != null){
+            pooledChunks.decrementAndGet();
+            return chunk;
+        }
+        return direct ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+    }
+
+    private void releaseChunk(ByteBuffer chunk){
+        if(pooledChunks.incrementAndGet() <= maxPooledChunks){
+            chunk.clear();
+            pool.offer(chunk);
+        }else{
+            pooledChunks.decrementAndGet();
+        }
+    }
+
+    /**
+     * The finished output of a processor, either a list of pooled chunks or a mapped temporary file.  Counts the
+     * references to it (the repository's own, plus one for each borrowed input stream), and is freed when the last
+     * one is released.
+     */
+    private class StoredStream {
+
+        private final List<ByteBuffer> buffers;
+        private final File file;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        StoredStream(List<ByteBuffer> buffers, File file){
+            this.buffers = buffers;
+            this.file = file;
+        }
+
+        List<ByteBuffer> views(){
+            List<ByteBuffer> views = new ArrayList<ByteBuffer>(buffers.size());
+            for(ByteBuffer b : buffers){
+                views.add(b.duplicate());
+            }
+            return views;
+        }
+
+        /**
+         * @return false if the stream has already been freed.
+         */
+        boolean retain(){
+            int count;
+            do{
+                count = references.get();
+                if(count == 0) return false;
+            }while(!references.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        void release(){
+            if(references.decrementAndGet() > 0) return;
+            if(file == null){
+                for(ByteBuffer b : buffers){
+                    releaseChunk(b);
+                }
+            }else if(!file.delete()){
+                //some platforms won't delete a file while it's mapped
+                file.deleteOnExit();
+            }
+            buffers.clear();
+        }
+
+    }
+
+    private class TieredOutputStream extends OutputStream {
+
+        private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        private ByteBuffer current;
+        private long size = 0;
+        private File spillFile;
+        private FileChannel spillChannel;
+        private boolean closed = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureOpen();
+            if(spillChannel == null && size + 1 > spillThreshold) spill();
+            if(current == null || !current.hasRemaining()) nextChunk();
+            current.put((byte)b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureOpen();
+            if(spillChannel == null && size + len > spillThreshold) spill();
+            while(len > 0){
+                if(current == null || !current.hasRemaining()) nextChunk();
+                int count = Math.min(len, current.remaining());
+                current.put(b, off, count);
+                off += count;
+                len -= count;
+                size += count;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if(spillChannel != null) writeCurrentToFile();
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+        }
+
+        private void ensureOpen() throws IOException {
+            if(closed) throw new IOException("Stream closed");
+        }
+
+        private void nextChunk() throws IOException {
+            if(spillChannel != null){
+                //once we've spilled, a single chunk is used as a write buffer for the file
+                writeCurrentToFile();
+            }else{
+                current = acquireChunk();
+                chunks.add(current);
+            }
+        }
+
+        private void writeCurrentToFile() throws IOException {
+            current.flip();
+            while(current.hasRemaining()){
+                spillChannel.write(current);
+            }
+            current.clear();
+        }
+
+        private void spill() throws IOException {
+            spillFile = File.createTempFile("sxe-parallel-", ".tmp", tempDirectory);
+            spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+            log.debug("Spilling parallel output to {}", spillFile);
+            for(ByteBuffer chunk : chunks){
+                chunk.flip();
+                while(chunk.hasRemaining()){
+                    spillChannel.write(chunk);
+                }
+                if(chunk != current) releaseChunk(chunk);
+            }
+            chunks.clear();
+            if(current == null) current = acquireChunk();
+            current.clear();
+        }
+
+        StoredStream complete() throws IOException {
+            closed = true;
+            if(spillChannel == null){
+                for(ByteBuffer chunk : chunks){
+                    chunk.flip();
+                }
+                return new StoredStream(new ArrayList<ByteBuffer>(chunks), null);
+            }
+            List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+            boolean mapped = false;
+            try{
+                writeCurrentToFile();
+                releaseChunk(current);
+                current = null;
+                long length = spillChannel.size();
+                for(long position = 0; position < length; position += MAX_MAPPED_SEGMENT){
+                    segments.add(spillChannel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAX_MAPPED_SEGMENT, length - position)));
+                }
+                mapped = true;
+            }finally{
+                //the mappings stay valid once the channel is closed
+                spillChannel.close();
+                //if the file couldn't be mapped nothing will ever read it
+                if(!mapped && !spillFile.delete()) spillFile.deleteOnExit();
+            }
+            return new StoredStream(segments, spillFile);
+        }
+
+    }
+
+    /**
+     * Reads sequentially over the buffers of a stored stream without copying them, holding a reference to the stored
+     * stream until it is returned or closed.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final StoredStream stored;
+        private final List<ByteBuffer> buffers;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private int index = 0;
+
+        ByteBufferInputStream(StoredStream stored){
+            this.stored = stored;
+            this.buffers = stored.views();
+        }
+
+        void release(){
+            if(released.compareAndSet(false, true)) stored.release();
+        }
+
+        @Override
+        public void close() throws IOException {
+            release();
+        }
+
+        private ByteBuffer currentBuffer() throws IOException {
+            //once released the chunks may be holding someone else's output
+            if(released.get()) throw new IOException("Stream closed");
+            while(index < buffers.size()){
+                ByteBuffer b = buffers.get(index);
+                if(b.hasRemaining()) return b;
+                index++;
+            }
+            return null;
+        }
+
+        @Override
+        public int read() throws IOException {
+            ByteBuffer b = currentBuffer();
+            return b == null ? -1 : b.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] dest, int off, int len) throws IOException {
+            if(len == 0) return 0;
+            int total = 0;
+            ByteBuffer b;
+            while(len > 0 && (b = currentBuffer()) != null){
+                int count = Math.min(len, b.remaining());
+                b.get(dest, off, count);
+                off += count;
+                len -= count;
+                total += count;
+            }
+            return total == 0 ? -1 : total;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            ByteBuffer b;
+            while(n > 0 && (b = currentBuffer()) != null){
+                int count = (int)Math.min(n, b.remaining());
+                b.position(b.position() + count);
+                n -= count;
+                skipped += count;
+            }
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            if(released.get()) throw new IOException("Stream closed");
+            long available = 0;
+            for(int i = index; i < buffers.size(); i++){
+                available += buffers.get(i).remaining();
+            }
+            return (int)Math.min(Integer.MAX_VALUE, available);
+        }
+
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.concurrency;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed table of locks, each key always maps to the same lock.  Different keys usually get different locks, so
+ * critical sections for unrelated resources don't wait on each other, while only a bounded number of locks ever
+ * exists no matter how many keys are used.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class StripedLock {
+
+    public static final int DEFAULT_STRIPES = 64;
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    public StripedLock(){
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes   The number of locks, rounded up to a power of two.
+     */
+    public StripedLock(int stripes){
+        if(stripes <= 0) throw new IllegalArgumentException("stripes must be greater than zero");
+        int size = Integer.highestOneBit(stripes);
+        if(size < stripes) size <<= 1;
+        this.stripes = new ReentrantLock[size];
+        for(int i = 0; i < size; i++){
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.mask = size - 1;
+    }
+
+    public ReentrantLock getLock(Object key){
+        int h = key.hashCode();
+        //spread the high bits down, as strings that differ only at the end would otherwise bunch together
+        h ^= (h >>> 16);
+        h *= 0x45d9f3b;
+        h ^= (h >>> 16);
+        return stripes[h & mask];
+    }
+
+    public int getStripeCount(){
+        return stripes.length;
+    }
+
+}
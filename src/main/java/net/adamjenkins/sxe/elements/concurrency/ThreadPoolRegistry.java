@@ -0,0 +1,100 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.concurrency;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread pools shared by every transformation running in the JVM, looked up by name.
+ * <br/><br/>
+ * A pool is created the first time <code>&lt;concurrent:threadPool name="..."/&gt;</code> runs (or when it is
+ * registered from Java), after that every transformation using the same name gets the same pool and its warm threads.
+ * The first definition wins, later definitions with different settings are ignored.  Shared pools use daemon threads,
+ * call {@link #shutdownAll(long)} when your application stops to let outstanding work finish.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public final class ThreadPoolRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(ThreadPoolRegistry.class);
+
+    private static final ConcurrentHashMap<String, NamedThreadPool> pools = new ConcurrentHashMap<String, NamedThreadPool>();
+
+    private ThreadPoolRegistry(){}
+
+    /**
+     * Gets the named pool, creating it if it doesn't exist (or has been shut down).
+     *
+     * @param name      The pool name.
+     * @param factory   Creates the executor for a new pool, given the thread factory it should use.  May return null if
+     *                  the pool can't be created.
+     * @return The pool, or null if it didn't exist and couldn't be created.
+     */
+    public static NamedThreadPool getOrCreate(String name, Function<ThreadFactory, ExecutorService> factory){
+        return pools.compute(name, (key, existing) -> {
+            if(existing != null && !existing.isShutdown()) return existing;
+            ExecutorService executor = factory.apply(NamedThreadPool.threadFactory(key));
+            if(executor == null) return null;
+            log.debug("Created shared thread pool {}", key);
+            return new NamedThreadPool(key, executor);
+        });
+    }
+
+    /**
+     * @return The named pool, or null if there isn't one.
+     */
+    public static NamedThreadPool get(String name){
+        return pools.get(name);
+    }
+
+    public static Set<String> getPoolNames(){
+        return new TreeSet<String>(pools.keySet());
+    }
+
+    /**
+     * Removes the named pool and shuts it down, waiting for outstanding work to finish.
+     *
+     * @param timeout   The time to wait in milliseconds.
+     * @return Whether the pool finished its work in time (true if there was no such pool).
+     */
+    public static boolean shutdown(String name, long timeout) throws InterruptedException{
+        NamedThreadPool pool = pools.remove(name);
+        return pool == null || pool.shutdown(timeout);
+    }
+
+    /**
+     * Shuts down every shared pool, waiting up to the timeout for each one.
+     *
+     * @return Whether every pool finished its work in time.
+     */
+    public static boolean shutdownAll(long timeout) throws InterruptedException{
+        boolean clean = true;
+        for(String name : getPoolNames()){
+            clean &= shutdown(name, timeout);
+        }
+        return clean;
+    }
+
+}
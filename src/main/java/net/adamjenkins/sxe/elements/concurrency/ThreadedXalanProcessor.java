@@ -16,61 +16,186 @@
  */
 package net.adamjenkins.sxe.elements.concurrency;
 
-import java.util.HashSet;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+
 import net.adamjenkins.sxe.util.XSLTUtil;
 import org.apache.xalan.extensions.XSLProcessorContext;
 import org.apache.xalan.templates.ElemExtensionCall;
-import org.apache.xalan.xsltc.trax.SAX2DOM;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
+import org.apache.xalan.transformer.TransformerImpl;
+import org.apache.xml.serializer.SerializationHandler;
+import org.apache.xml.serializer.ToXMLSAXHandler;
+import org.apache.xpath.XPathContext;
 
 /**
- * A Xalan processor that runs on a seperate thread.
+ * A Xalan processor that runs on a seperate thread, writing its output into a {@link BranchResult}, either the
+ * {@link ResultSlot} that was reserved for it when the <code>&lt;concurrent:parallel/&gt;</code> element was reached
+ * or the {@link AsyncResult} of a <code>&lt;concurrent:async/&gt;</code> element.
+ * <br/><br/>
+ * The branch runs on a transformer of its own, created from the compiled stylesheet held by the
+ * {@link EmbeddedStylesheetDefinition}, so none of the processing state of the parent transformer is touched
+ * from the branch thread.  The parent's documents are shared (node handles mean the same thing in both
+ * transformers), and the variables the body can see are captured in a {@link BranchEnvironment} when the processor
+ * is created (the chunks of a <code>&lt;concurrent:forEach/&gt;</code> share one environment, and with it one
+ * transformer per thread).
  *
  * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
  */
-public class ThreadedXalanProcessor extends Thread implements Runnable{
+public class ThreadedXalanProcessor implements Runnable{
 
-    private XSLProcessorContext ctx;
-    private ElemExtensionCall extensionElement;
-    private boolean completed = false;
-    private HashSet<Thread> runningThreads;
-    private EmbeddedStylesheetDefinition stylesheet;
+    private final BranchEnvironment environment;
+    private volatile boolean completed = false;
+    private volatile boolean cancelled = false;
+    private final List<BranchScope> scopes;
+    private final Object runnerLock = new Object();
+    private Thread runner;
+    private final BranchResult slot;
+    //when processing part of a node list (for concurrent:forEach), the part this branch covers
+    private final int from;
+    private final int to;
 
+    /**
+     * Must be called on the thread running the parent transformation, as this is where the variables that are
+     * in scope are captured.
+     */
     public ThreadedXalanProcessor(XSLProcessorContext ctx,
                                   ElemExtensionCall extensionElement,
-                                  HashSet<Thread> runningThreads,
-                                  EmbeddedStylesheetDefinition stylesheet){
-        this.ctx = ctx;
-        this.extensionElement = extensionElement;
-        this.runningThreads = runningThreads;
-        this.stylesheet = stylesheet;
-        runningThreads.add(this);
+                                  List<BranchScope> scopes,
+                                  EmbeddedStylesheetDefinition stylesheet,
+                                  BranchResult slot) throws TransformerException, ParserConfigurationException{
+        this(new BranchEnvironment(ctx, extensionElement, stylesheet, null, 1), scopes, slot, 0, 0);
+    }
+
+    /**
+     * Creates a processor that runs the body once for each node in part of the environment's node list, in the same
+     * way as <code>&lt;xsl:for-each/&gt;</code> (<code>position()</code> and <code>last()</code> refer to the whole
+     * list).  The environment can be shared with the processors for the other parts of the list.
+     *
+     * @param from      The index of the first node of the environment's node list to process.
+     * @param to        The index after the last node to process.
+     */
+    public ThreadedXalanProcessor(BranchEnvironment environment,
+                                  List<BranchScope> scopes,
+                                  BranchResult slot,
+                                  int from,
+                                  int to){
+        this.environment = environment;
+        this.scopes = scopes;
+        this.slot = slot;
+        this.from = from;
+        this.to = to;
+        for(BranchScope scope : scopes){
+            scope.register(this);
+        }
     }
 
     @Override
     public void run(){
-        //we need to change this so that it creates a stylesheet with all the trimmings, copies over all the variables
-        //as parameters, and executes each of the new stylesheet as completely indepependant transformations
-        //then incorporates the results
+        synchronized(runnerLock){
+            runner = Thread.currentThread();
+        }
+        Throwable error = null;
+        TransformerImpl branch = null;
         try{
-            Node contextNode = ctx.getContextNode();
-            SAX2DOM dom = new SAX2DOM();
-            ctx.getTransformer().executeChildTemplates(extensionElement, dom);
-            synchronized(ctx.getStylesheet()){
-                ctx.outputToResultTree(ctx.getStylesheet(), dom.getDOM());
+            if(cancelled) return;
+            branch = environment.borrowTransformer();
+            XPathContext xctxt = branch.getXPathContext();
+            ToXMLSAXHandler handler = new ToXMLSAXHandler(slot, slot, "UTF-8");
+            handler.setTransformer(branch);
+            branch.setSerializationHandler(handler);
+            ElemExtensionCall extensionElement = environment.getExtensionElement();
+            int[] selection = environment.getSelection();
+            if(selection == null){
+                int contextNode = environment.getContextNode();
+                xctxt.pushCurrentNodeAndExpression(contextNode, contextNode);
+                try{
+                    branch.executeChildTemplates(extensionElement, true);
+                }finally{
+                    xctxt.popCurrentNodeAndExpression();
+                }
+            }else{
+                SelectionNodeList list = new SelectionNodeList(selection, xctxt.getDTMManager());
+                list.setCurrentPos(from);
+                xctxt.pushContextNodeList(list);
+                try{
+                    for(int i = from; i < to && !cancelled; i++){
+                        int node = list.nextNode();
+                        xctxt.pushCurrentNodeAndExpression(node, node);
+                        try{
+                            branch.executeChildTemplates(extensionElement, true);
+                        }finally{
+                            xctxt.popCurrentNodeAndExpression();
+                        }
+                    }
+                }finally{
+                    xctxt.popContextNodeList();
+                }
+            }
+            //a nested parallel element swaps in its own handler, its branches have to be written out before this one is
+            SerializationHandler current = branch.getSerializationHandler();
+            if(current instanceof SXEMultithreadedSerializationHandler){
+                ((SXEMultithreadedSerializationHandler)current).finish();
+                branch.setSerializationHandler(handler);
             }
+            handler.flushPending();
         }catch(Throwable t){
-            XSLTUtil.logError(this.getClass(), extensionElement, "Error performing parallel XSLT processing: " + t.getMessage(), ctx.getTransformer().getErrorListener());
+            error = t;
         }finally{
-            completed = true;
-            runningThreads.remove(this);
+            if(branch != null) environment.returnTransformer(branch);
+            synchronized(runnerLock){
+                runner = null;
+            }
+            //don't leave an interrupt from cancel() behind for whatever runs on this thread next
+            if(cancelled) Thread.interrupted();
+            finish(cancelled ? null : error);
         }
     }
 
+    /**
+     * Stops this branch.  A branch that hasn't started yet won't run at all, a running branch is interrupted (so it
+     * will stop at its next blocking call) and its output is thrown away.
+     */
+    public void cancel(){
+        cancelled = true;
+        synchronized(runnerLock){
+            if(runner != null) runner.interrupt();
+        }
+    }
+
+    /**
+     * Used when the branch could not be handed to a thread, so that nothing waits on it.
+     */
+    public void abandon(){
+        cancelled = true;
+        finish(null);
+    }
+
+    public boolean isCancelled(){
+        return cancelled;
+    }
+
     public boolean isCompleted(){
         return completed;
     }
 
+    private synchronized void finish(Throwable error){
+        if(completed) return;
+        if(error == null && !cancelled){
+            slot.close();
+        }else{
+            slot.cancel();
+        }
+        environment.release();
+        completed = true;
+        boolean reported = false;
+        for(BranchScope scope : scopes){
+            reported |= scope.completed(this, error);
+        }
+        if(error != null && !reported){
+            XSLTUtil.logError(this.getClass(), environment.getExtensionElement(), "Error performing parallel XSLT processing: " + error.getMessage(), environment.getParent().getErrorListener());
+        }
+    }
 
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.concurrency;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads (Java 21 and above) without needing to compile against a JDK that has them, so the
+ * same jar can be used on older JVMs.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public final class VirtualThreadSupport {
+
+    private static final MethodHandle NEW_EXECUTOR = findExecutorFactory();
+
+    private VirtualThreadSupport(){}
+
+    /**
+     * @return Whether the running JVM supports virtual threads.
+     */
+    public static boolean isAvailable(){
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for every task.
+     *
+     * @throws UnsupportedOperationException if the running JVM doesn't support virtual threads.
+     */
+    public static ExecutorService newExecutor(){
+        if(NEW_EXECUTOR == null) throw new UnsupportedOperationException("Virtual threads need Java 21 or later, running on " + System.getProperty("java.version"));
+        try{
+            return (ExecutorService)NEW_EXECUTOR.invokeExact();
+        }catch(RuntimeException | Error e){
+            throw e;
+        }catch(Throwable t){
+            throw new IllegalStateException("Could not create virtual thread executor", t);
+        }
+    }
+
+    private static MethodHandle findExecutorFactory(){
+        try{
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+        }catch(NoSuchMethodException | IllegalAccessException e){
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.adamjenkins.sxe.elements.Logging.Level;
+
+/**
+ * Hands log records off to a single background thread, so a transform never waits on appender I/O.
+ * <br/><br/>
+ * Records are held in a fixed size ring buffer.  Adding a record never blocks or takes a lock, if the buffer is full
+ * the record is refused (and counted) and it's up to the caller what to do with it.  The background thread reports
+ * the number of refused records every time it catches up.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class AsyncLogAppender implements AutoCloseable {
+
+    private static final Logger staticLog = LoggerFactory.getLogger(AsyncLogAppender.class);
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final RingBuffer<Record> records;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private long droppedReported = 0;
+
+    private final Thread drainer;
+    private volatile boolean sleeping = false;
+    private volatile boolean closed = false;
+
+    /**
+     * @param capacity  The number of records that can be waiting at once, rounded up to a power of two.
+     */
+    public AsyncLogAppender(int capacity){
+        this.records = new RingBuffer<Record>(capacity);
+        this.drainer = new Thread(this::drain, "sxe-log-appender");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Queues a record to be written.
+     *
+     * @return false if the buffer is full (or the appender has been closed) and the record was not queued.
+     */
+    public boolean offer(Level level, Logger log, String message){
+        if(closed) return false;
+        if(!records.offer(new Record(level, log, message))){
+            dropped.incrementAndGet();
+            return false;
+        }
+        if(sleeping) LockSupport.unpark(drainer);
+        return true;
+    }
+
+    /**
+     * @return the number of records refused because the buffer was full.
+     */
+    public long getDroppedCount(){
+        return dropped.get();
+    }
+
+    /**
+     * Stops the background thread once everything already queued has been written.
+     */
+    public void close(){
+        if(closed) return;
+        closed = true;
+        LockSupport.unpark(drainer);
+        try{
+            drainer.join();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain(){
+        while(true){
+            Record record = records.poll();
+            if(record != null){
+                write(record.log, record.level, record.message);
+                continue;
+            }
+            reportDropped();
+            if(closed && records.isEmpty()) return;
+            sleeping = true;
+            //re-check after publishing the flag, a producer that missed it has already made its record visible
+            if(records.isEmpty() && !closed) LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            sleeping = false;
+        }
+    }
+
+    private void reportDropped(){
+        long total = dropped.get();
+        if(total != droppedReported){
+            staticLog.warn("{} log records were dropped because the async log buffer was full", total - droppedReported);
+            droppedReported = total;
+        }
+    }
+
+    /**
+     * Writes a message to a logger at the given level.
+     */
+    public static void write(Logger log, Level level, String message){
+        switch(level){
+            case TRACE:
+                log.trace(message);
+                break;
+            case DEBUG:
+                log.debug(message);
+                break;
+            case INFO:
+                log.info(message);
+                break;
+            case WARN:
+                log.warn(message);
+                break;
+            case ERROR:
+                log.error(message);
+                break;
+        }
+    }
+
+    private static final class Record {
+
+        final Level level;
+        final Logger log;
+        final String message;
+
+        Record(Level level, Logger log, String message){
+            this.level = level;
+            this.log = log;
+            this.message = message;
+        }
+
+    }
+
+}
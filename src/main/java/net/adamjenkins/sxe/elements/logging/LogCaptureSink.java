@@ -0,0 +1,191 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.logging;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.adamjenkins.sxe.elements.Logging.Level;
+
+/**
+ * Captures the log output of a transformation (for example to show it in a user interface) as well as sending it to
+ * the logging framework.
+ * <br/><br/>
+ * Records are queued in a fixed size ring buffer and written to the {@link Writer} on a background thread, a record is
+ * always written with a single call so lines from different threads are never mixed up.  Any number of threads (such
+ * as the branches of a <code>&lt;concurrent:parallel/&gt;</code>) can log to the same sink.  What happens when the
+ * writer can't keep up depends on the {@link OverflowPolicy}.
+ * <br/><br/>
+ * A sink given to a transformation with {@link net.adamjenkins.sxe.elements.Logging#capture} is flushed when that
+ * transformation ends, but it keeps capturing until it is {@link #close() closed}.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class LogCaptureSink implements AutoCloseable {
+
+    /**
+     * What to do with a record when the buffer is full.
+     */
+    public enum OverflowPolicy {
+        /** Throw the record away, the number thrown away is written to the sink when it catches up. */
+        DISCARD,
+        /** Make the logging thread wait until there is room. */
+        BLOCK
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final Logger staticLog = LoggerFactory.getLogger(LogCaptureSink.class);
+
+    private static final long WAIT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final ExecutorService writers = Executors.newCachedThreadPool(new WriterThreadFactory());
+
+    private final Writer writer;
+    private final Level level;
+    private final OverflowPolicy policy;
+    private final RingBuffer<String> records;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    //only touched while draining
+    private long droppedReported = 0;
+    private volatile boolean closed = false;
+
+    public LogCaptureSink(Writer writer, Level level){
+        this(writer, level, DEFAULT_CAPACITY, OverflowPolicy.DISCARD);
+    }
+
+    /**
+     * @param writer    Where to write the records.
+     * @param level     The lowest level to capture.
+     * @param capacity  The number of records that can be waiting to be written.
+     * @param policy    What to do when that many are already waiting.
+     */
+    public LogCaptureSink(Writer writer, Level level, int capacity, OverflowPolicy policy){
+        if(writer == null) throw new IllegalArgumentException("writer must not be null");
+        this.writer = writer;
+        this.level = level;
+        this.policy = policy;
+        this.records = new RingBuffer<String>(capacity);
+    }
+
+    /**
+     * @return true if records at this level are captured.
+     */
+    public boolean isEnabled(Level level){
+        return !closed && level.ordinal() >= this.level.ordinal();
+    }
+
+    /**
+     * Queues a record for writing.
+     *
+     * @return false if the record was discarded.
+     */
+    public boolean capture(String record){
+        if(closed) return false;
+        while(!records.offer(record)){
+            if(policy == OverflowPolicy.DISCARD || closed){
+                dropped.incrementAndGet();
+                scheduleDrain();
+                return false;
+            }
+            scheduleDrain();
+            LockSupport.parkNanos(this, WAIT_PARK_NANOS);
+        }
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * @return the number of records discarded because the buffer was full.
+     */
+    public long getDroppedCount(){
+        return dropped.get();
+    }
+
+    /**
+     * Waits until everything captured so far has been written (and the writer flushed).
+     */
+    public void flush(){
+        while(draining.get() || !records.isEmpty()){
+            scheduleDrain();
+            LockSupport.parkNanos(this, WAIT_PARK_NANOS);
+        }
+    }
+
+    /**
+     * Writes anything still waiting, then stops capturing.  The writer itself is not closed.
+     */
+    public void close(){
+        flush();
+        closed = true;
+    }
+
+    private void scheduleDrain(){
+        if(draining.compareAndSet(false, true)) writers.execute(this::drain);
+    }
+
+    private void drain(){
+        try{
+            do{
+                String record;
+                while((record = records.poll()) != null){
+                    writer.write(record);
+                }
+                long total = dropped.get();
+                if(total != droppedReported){
+                    writer.write("[" + (total - droppedReported) + " log records were discarded]\r\n");
+                    droppedReported = total;
+                }
+                writer.flush();
+                draining.set(false);
+                //anything added after the last poll but before the flag was cleared would otherwise wait for the next record
+            }while(!records.isEmpty() && draining.compareAndSet(false, true));
+        }catch(IOException e){
+            staticLog.warn("Could not write captured log output, the rest of it will be thrown away", e);
+            closed = true;
+            while(records.poll() != null){
+                dropped.incrementAndGet();
+            }
+            draining.set(false);
+        }
+    }
+
+    private static class WriterThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r){
+            Thread t = new Thread(r, "sxe-log-capture-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which records from a single log element actually get written, so that a log element in a template that
+ * fires millions of times can't flood the logs.
+ * <br/><br/>
+ * A record has to pass both limits: only every <i>sampleEvery</i>th record is considered at all, and no more than
+ * <i>maxPerSecond</i> of those are let through in any second (bursts of up to a second's worth are allowed).  Neither
+ * check takes a lock.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public final class RecordLimiter {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final int sampleEvery;
+    private final int maxPerSecond;
+    private final AtomicLong hits = new AtomicLong();
+
+    //the token bucket, kept as the time it was last empty (tokens build up from then at maxPerSecond, up to a second's
+    //worth), which means it fits in a single atomic
+    private final long interval;
+    private final AtomicLong emptyAt;
+
+    /**
+     * @param sampleEvery   Let one in this many records through, 1 or less to let them all through.
+     * @param maxPerSecond  The most records to let through each second, 0 or less for no limit.
+     */
+    public RecordLimiter(int sampleEvery, int maxPerSecond){
+        this.sampleEvery = Math.max(1, sampleEvery);
+        this.maxPerSecond = Math.max(0, maxPerSecond);
+        this.interval = maxPerSecond > 0 ? NANOS_PER_SECOND / maxPerSecond : 0;
+        this.emptyAt = new AtomicLong(System.nanoTime() - NANOS_PER_SECOND);
+    }
+
+    /**
+     * @return true if the record should be written.
+     */
+    public boolean tryAcquire(){
+        if(sampleEvery > 1 && hits.getAndIncrement() % sampleEvery != 0) return false;
+        if(maxPerSecond == 0) return true;
+        long now = System.nanoTime();
+        while(true){
+            long current = emptyAt.get();
+            long next = Math.max(current, now - NANOS_PER_SECOND) + interval;
+            if(next > now) return false;
+            if(emptyAt.compareAndSet(current, next)) return true;
+        }
+    }
+
+    public int getSampleEvery(){
+        return sampleEvery;
+    }
+
+    public int getMaxPerSecond(){
+        return maxPerSecond;
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size queue that any number of threads can add to without locking, emptied by one thread at a time.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+final class RingBuffer<T> {
+
+    private final Object[] items;
+    //the position each slot is waiting for, a producer may fill slot (p & mask) once its sequence is p, the consumer may
+    //read it once its sequence is p + 1
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    //only touched by the consuming thread
+    private volatile long head = 0;
+
+    /**
+     * @param capacity  Rounded up to a power of two.
+     */
+    RingBuffer(int capacity){
+        if(capacity <= 0) throw new IllegalArgumentException("capacity must be greater than zero");
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity) size <<= 1;
+        this.items = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size - 1;
+        for(int i = 0; i < size; i++){
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * @return false if the buffer is full.
+     */
+    boolean offer(T item){
+        long position = tail.get();
+        while(true){
+            int index = (int)(position & mask);
+            long available = sequences.get(index) - position;
+            if(available == 0){
+                if(tail.compareAndSet(position, position + 1)){
+                    items[index] = item;
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            }else if(available < 0){
+                return false;
+            }else{
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Must only be called by one thread at a time.
+     *
+     * @return the oldest item, or null if there's nothing (fully) added yet.
+     */
+    @SuppressWarnings("unchecked")
+    T poll(){
+        long position = head;
+        int index = (int)(position & mask);
+        if(sequences.get(index) != position + 1) return null;
+        T item = (T)items[index];
+        items[index] = null;
+        sequences.set(index, position + items.length);
+        head = position + 1;
+        return item;
+    }
+
+    /**
+     * @return true if nothing has been added that hasn't been taken.
+     */
+    boolean isEmpty(){
+        return tail.get() == head;
+    }
+
+}
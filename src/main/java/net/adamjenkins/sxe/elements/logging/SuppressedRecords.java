@@ -0,0 +1,83 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements.logging;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+
+import net.adamjenkins.sxe.elements.Logging.Level;
+
+/**
+ * Counts the records a single transformation didn't write because of a {@link RecordLimiter}, so they can be
+ * reported when it finishes.  Any number of threads can count at once.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class SuppressedRecords {
+
+    private final Map<Object, Count> counts = new ConcurrentHashMap<Object, Count>();
+
+    /**
+     * @param source        Whatever produced the record (the log element), records are counted per source.
+     * @param lineNumber    Where the source is in the stylesheet.
+     */
+    public void suppressed(Object source, Logger log, Level level, int lineNumber){
+        Count count = counts.get(source);
+        if(count == null) count = counts.computeIfAbsent(source, s -> new Count(log, level, lineNumber));
+        count.total.increment();
+    }
+
+    /**
+     * @return the number of records suppressed so far.
+     */
+    public long getTotal(){
+        long total = 0;
+        for(Count count : counts.values()){
+            total += count.total.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Writes a summary line for each source that had records suppressed, to the logger and at the level the records
+     * would have been written with.
+     */
+    public void report(){
+        for(Count count : counts.values()){
+            AsyncLogAppender.write(count.log, count.level, "(Line: " + count.lineNumber + "): " + count.total.sum() + " records were suppressed by sampling or rate limiting");
+        }
+    }
+
+    private static final class Count {
+
+        final Logger log;
+        final Level level;
+        final int lineNumber;
+        final LongAdder total = new LongAdder();
+
+        Count(Logger log, Level level, int lineNumber){
+            this.log = log;
+            this.level = level;
+            this.lineNumber = lineNumber;
+        }
+
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.execution;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.TransformerException;
+
+/**
+ * The outcome of transforming a single document with a {@link BatchTransformer}.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class BatchResult {
+
+    private final long index;
+    private final Source source;
+    private final Result result;
+    private final List<TransformerException> errors;
+    private final Throwable failure;
+    private final long duration;
+
+    BatchResult(long index, Source source, Result result, List<TransformerException> errors, Throwable failure, long duration){
+        this.index = index;
+        this.source = source;
+        this.result = result;
+        this.errors = Collections.unmodifiableList(errors);
+        this.failure = failure;
+        this.duration = duration;
+    }
+
+    /**
+     * @return The position of the document in the batch, starting at zero.
+     */
+    public long getIndex() {
+        return index;
+    }
+
+    public Source getSource() {
+        return source;
+    }
+
+    public Result getResult() {
+        return result;
+    }
+
+    /**
+     * @return Everything reported to the error listener while the document was transformed (warnings, errors and
+     *          fatal errors).
+     */
+    public List<TransformerException> getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return The exception that stopped the transformation, or null if it ran to the end.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return How long the transformation took, in milliseconds.
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return Whether the transformation ran to the end without reporting any errors.
+     */
+    public boolean isSuccessful(){
+        return failure == null && errors.isEmpty();
+    }
+
+    @Override
+    public String toString(){
+        String id = source == null || source.getSystemId() == null ? "#" + index : source.getSystemId();
+        if(failure != null) return id + " failed: " + failure.getMessage();
+        return id + " completed with " + errors.size() + " errors in " + duration + "ms";
+    }
+
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.execution;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+
+import org.apache.xalan.templates.StylesheetRoot;
+import org.apache.xalan.templates.VariableScopeIndex;
+import org.apache.xalan.transformer.TransformerImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.adamjenkins.sxe.elements.Assertion;
+import net.adamjenkins.sxe.elements.SXEExtensionHandler;
+import net.adamjenkins.sxe.util.CompiledXPathCache;
+import net.adamjenkins.sxe.util.TransformationContext;
+import net.adamjenkins.sxe.util.XSLTErrorListener;
+import net.adamjenkins.sxe.util.XSLTUtil;
+
+/**
+ * Runs one stylesheet over a large number of documents.  The stylesheet is compiled once, and the transformers
+ * created from it are kept and reused, so the cost of setting up a transformation is only paid once per worker
+ * thread rather than once per document.  Each document gets its own {@link XSLTErrorListener}, and the errors it
+ * reports come back in the {@link BatchResult} for that document, so one bad document doesn't stop the batch.
+ * <br/><br/>
+ * Usage example:
+ * <br/><br/>
+ * <code><pre>
+ * try(BatchTransformer batch = new BatchTransformer(new StreamSource(stylesheet), 8)){
+ *     batch.transformAll(files.iterator(),
+ *             source -&gt; new StreamResult(new File(out, new File(source.getSystemId()).getName())),
+ *             result -&gt; { if(!result.isSuccessful()) log.warn(result.toString()); });
+ * }
+ * </pre></code>
+ * A batch transformer can be used by several threads at once, the concurrency limit covers all of them.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class BatchTransformer implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchTransformer.class);
+
+    private static final String XALAN_FACTORY = "org.apache.xalan.processor.TransformerFactoryImpl";
+
+    private final Templates templates;
+    private final Map<String, Object> parameters;
+    private final int concurrency;
+    private final ExecutorService workers;
+    private final Semaphore inFlight;
+    private final ConcurrentLinkedQueue<Transformer> idle = new ConcurrentLinkedQueue<Transformer>();
+    private volatile TemplateProfiler profiler;
+
+    /**
+     * @param stylesheet    The stylesheet to compile.
+     * @param concurrency   The maximum number of documents to transform at the same time.
+     * @throws TransformerConfigurationException If the stylesheet doesn't compile.
+     */
+    public BatchTransformer(Source stylesheet, int concurrency) throws TransformerConfigurationException{
+        this(compile(stylesheet), concurrency, Collections.<String, Object>emptyMap());
+    }
+
+    /**
+     * @param templates     An already compiled stylesheet, which must have been compiled by Xalan.
+     * @param concurrency   The maximum number of documents to transform at the same time.
+     * @param parameters    Stylesheet parameters, set on every transformation.
+     */
+    public BatchTransformer(Templates templates, int concurrency, Map<String, Object> parameters){
+        if(concurrency <= 0) throw new IllegalArgumentException("concurrency must be greater than zero");
+        this.templates = templates;
+        this.concurrency = concurrency;
+        this.parameters = new HashMap<String, Object>(parameters);
+        this.inFlight = new Semaphore(concurrency);
+        this.workers = Executors.newFixedThreadPool(concurrency, new BatchThreadFactory());
+    }
+
+    /**
+     * Compiles a stylesheet with Xalan, for sharing between several batch transformers.  The XPath attributes of the
+     * extension elements are compiled at the same time, the elements targeted by the called assertions are
+     * {@link Assertion#instrument(Templates) instrumented}, the variable scopes are indexed and the SXE elements are set
+     * up to be called through {@link SXEExtensionHandler}.
+     */
+    public static Templates compile(Source stylesheet) throws TransformerConfigurationException{
+        TransformerFactory factory = TransformerFactory.newInstance(XALAN_FACTORY, BatchTransformer.class.getClassLoader());
+        XSLTErrorListener listener = new XSLTErrorListener();
+        factory.setErrorListener(listener);
+        Templates templates = factory.newTemplates(stylesheet);
+        if(templates == null){
+            //xalan reports some problems to the listener rather than throwing them
+            List<TransformerException> errors = listener.getAllErrors();
+            if(errors.isEmpty()) throw new TransformerConfigurationException("Could not compile stylesheet " + stylesheet.getSystemId());
+            throw new TransformerConfigurationException(errors.get(0));
+        }
+        CompiledXPathCache.precompile(templates);
+        Assertion.instrument(templates);
+        SXEExtensionHandler.install(templates);
+        if(templates instanceof StylesheetRoot) VariableScopeIndex.precompute((StylesheetRoot)templates);
+        return templates;
+    }
+
+    /**
+     * @return The compiled stylesheet.
+     */
+    public Templates getTemplates() {
+        return templates;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public TemplateProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Profiles every transformation started from now on (null turns profiling off again).
+     */
+    public void setProfiler(TemplateProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Transforms a single document on the calling thread (still counting towards the concurrency limit).
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting for a free worker.
+     */
+    public BatchResult transform(Source source, Result result) throws InterruptedException{
+        inFlight.acquire();
+        try{
+            return run(0, source, result);
+        }finally{
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Queues a single document for transformation, waiting first if the concurrency limit has been reached (so
+     * that a producer can't get too far ahead of the workers).
+     *
+     * @throws InterruptedException If the thread is interrupted while waiting for a free worker.
+     */
+    public CompletableFuture<BatchResult> submit(Source source, Result result) throws InterruptedException{
+        return submit(0, source, result);
+    }
+
+    /**
+     * Transforms every document from the iterator, returning once they have all finished.  Documents are only taken
+     * from the iterator when there is a worker free to process them, so the iterator can be lazy (reading file names
+     * from a directory, messages from a queue etc).  Results are handed to the callback as each document finishes,
+     * which will not be in the order the documents were supplied (use {@link BatchResult#getIndex()} for that).  The
+     * callback is called by the worker threads, so it must be thread safe.
+     *
+     * @param sources   The documents to transform.
+     * @param results   Creates the result for each document.
+     * @param callback  Receives the outcome of each document.
+     * @return The number of documents transformed.
+     * @throws InterruptedException If the thread is interrupted, the documents already queued still run.
+     */
+    public long transformAll(Iterator<? extends Source> sources, Function<Source, Result> results, Consumer<BatchResult> callback) throws InterruptedException{
+        List<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+        long index = 0;
+        while(sources.hasNext()){
+            Source source = sources.next();
+            pending.add(submit(index++, source, results.apply(source)).thenAccept(callback));
+            if(pending.size() > concurrency * 4) pending.removeIf(CompletableFuture::isDone);
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture[pending.size()])).join();
+        return index;
+    }
+
+    /**
+     * Transforms every document, returning the results in the order the documents were supplied.
+     *
+     * @param sources   The documents to transform.
+     * @param results   Creates the result for each document.
+     * @throws InterruptedException If the thread is interrupted, the documents already queued still run.
+     */
+    public List<BatchResult> transformAll(Iterable<? extends Source> sources, Function<Source, Result> results) throws InterruptedException{
+        List<BatchResult> outcomes = Collections.synchronizedList(new ArrayList<BatchResult>());
+        transformAll(sources.iterator(), results, outcomes::add);
+        List<BatchResult> ordered = new ArrayList<BatchResult>(outcomes);
+        ordered.sort((a, b) -> Long.compare(a.getIndex(), b.getIndex()));
+        return ordered;
+    }
+
+    /**
+     * Stops the worker threads once the queued documents have been transformed.
+     */
+    public void close(){
+        workers.shutdown();
+        try{
+            if(!workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS)) workers.shutdownNow();
+        }catch(InterruptedException e){
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        idle.clear();
+    }
+
+    private CompletableFuture<BatchResult> submit(long index, Source source, Result result) throws InterruptedException{
+        inFlight.acquire();
+        try{
+            return CompletableFuture.supplyAsync(() -> {
+                try{
+                    return run(index, source, result);
+                }finally{
+                    inFlight.release();
+                }
+            }, workers);
+        }catch(RuntimeException e){
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    private BatchResult run(long index, Source source, Result result){
+        long start = System.currentTimeMillis();
+        XSLTErrorListener listener = new XSLTErrorListener();
+        Transformer transformer = null;
+        Throwable failure = null;
+        TemplateProfiler profiler = this.profiler;
+        try{
+            transformer = borrowTransformer(listener);
+            if(profiler != null) profiler.attach(transformer);
+            transformer.transform(source, result);
+        }catch(Throwable e){
+            //errors too (a stack overflow from a runaway template), so one document can't fail the whole batch
+            failure = e;
+            log.debug("Transformation of {} failed", source.getSystemId(), e);
+        }finally{
+            if(transformer != null){
+                if(profiler != null) profiler.detach(transformer);
+                if(transformer instanceof TransformerImpl) TransformationContext.complete((TransformerImpl)transformer);
+                returnTransformer(transformer, failure == null);
+            }
+        }
+        return new BatchResult(index, source, result, listener.getAllErrors(), failure, System.currentTimeMillis() - start);
+    }
+
+    private Transformer borrowTransformer(XSLTErrorListener listener) throws TransformerConfigurationException{
+        Transformer transformer = idle.poll();
+        if(transformer == null){
+            transformer = templates.newTransformer();
+            if(transformer instanceof TransformerImpl) XSLTUtil.installVariableStack((TransformerImpl)transformer);
+        }
+        for(Map.Entry<String, Object> param : parameters.entrySet()){
+            transformer.setParameter(param.getKey(), param.getValue());
+        }
+        transformer.setErrorListener(listener);
+        return transformer;
+    }
+
+    private void returnTransformer(Transformer transformer, boolean clean){
+        //a transformer that blew up part way through may be in any state, so don't reuse it
+        if(!clean) return;
+        transformer.reset();
+        if(idle.size() < concurrency) idle.offer(transformer);
+    }
+
+    private static class BatchThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "sxe-batch-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+
+    }
+
+}
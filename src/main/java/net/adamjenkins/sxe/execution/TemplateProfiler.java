@@ -0,0 +1,447 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.execution;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TooManyListenersException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.xalan.templates.ElemExtensionCall;
+import org.apache.xalan.templates.ElemTemplate;
+import org.apache.xalan.templates.ElemTemplateElement;
+import org.apache.xalan.trace.EndSelectionEvent;
+import org.apache.xalan.trace.ExtensionEvent;
+import org.apache.xalan.trace.GenerateEvent;
+import org.apache.xalan.trace.SelectionEvent;
+import org.apache.xalan.trace.TraceListenerEx3;
+import org.apache.xalan.trace.TracerEvent;
+import org.apache.xalan.transformer.TransformerImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.adamjenkins.sxe.util.ConcurrentWeakIdentityMap;
+import net.adamjenkins.sxe.util.LatencyHistogram;
+
+/**
+ * A trace listener that times every template, extension element and stylesheet line a transformation executes, for
+ * finding out where a slow stylesheet spends its time without having to cut it up by hand.
+ * <br/><br/>
+ * Each {@link HotSpot} keeps two histograms, the <i>inclusive</i> time (everything done between the start and end of
+ * the call) and the <i>exclusive</i> time (the inclusive time less the time spent in nested calls of the same kind,
+ * i.e. other templates for a template, and child elements for a line or an extension element).  A template that calls
+ * itself is counted inclusively at every level.  The calls for a line are the times it was entered from another line.
+ * <br/><br/>
+ * Usage example:
+ * <br/><br/>
+ * <code><pre>
+ * TemplateProfiler profiler = new TemplateProfiler();
+ * batch.setProfiler(profiler);
+ * batch.transformAll(...);
+ * profiler.writeText(new OutputStreamWriter(System.out), 20);
+ * </pre></code>
+ * Any transformer can be profiled with {@link #attach(Transformer)}, and one profiler can be attached to several
+ * transformers at once (their timings are added together).  Work done in parallel branches started by the concurrency
+ * elements is timed as part of the element that waits for it.  Tracing makes Xalan a good deal slower, so the absolute
+ * times are inflated, but their proportions still show where the time goes.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class TemplateProfiler implements TraceListenerEx3 {
+
+    private static final Logger log = LoggerFactory.getLogger(TemplateProfiler.class);
+
+    /**
+     * What a hot spot was measured for.
+     */
+    public enum Kind {
+        TEMPLATE("template"),
+        EXTENSION("extension"),
+        LINE("line");
+
+        private final String elementName;
+
+        Kind(String elementName){
+            this.elementName = elementName;
+        }
+
+        /**
+         * @return The name used for this kind in the XML report.
+         */
+        public String getElementName(){
+            return elementName;
+        }
+    }
+
+    private final Map<Kind, Map<String, HotSpot>> hotSpots = new ConcurrentHashMap<Kind, Map<String, HotSpot>>();
+
+    private final ConcurrentWeakIdentityMap<ElemTemplateElement, ElementHotSpots> elements = new ConcurrentWeakIdentityMap<ElemTemplateElement, ElementHotSpots>();
+
+    private final ThreadLocal<CallStack> stacks = ThreadLocal.withInitial(CallStack::new);
+
+    public TemplateProfiler(){
+        for(Kind kind : Kind.values()){
+            hotSpots.put(kind, new ConcurrentHashMap<String, HotSpot>());
+        }
+    }
+
+    /**
+     * Starts profiling a transformer (which must be a Xalan transformer, anything else is ignored).
+     */
+    public void attach(Transformer transformer){
+        if(!(transformer instanceof TransformerImpl)) return;
+        try{
+            ((TransformerImpl)transformer).getTraceManager().removeTraceListener(this);
+            ((TransformerImpl)transformer).getTraceManager().addTraceListener(this);
+        }catch(TooManyListenersException e){
+            log.warn("Could not profile transformer", e);
+        }
+    }
+
+    /**
+     * Stops profiling a transformer, anything the calling thread was part way through timing is thrown away.
+     */
+    public void detach(Transformer transformer){
+        if(!(transformer instanceof TransformerImpl)) return;
+        ((TransformerImpl)transformer).getTraceManager().removeTraceListener(this);
+        stacks.get().clear();
+    }
+
+    /**
+     * @return The hot spots of one kind, the most exclusive time first.
+     */
+    public List<HotSpot> getHotSpots(Kind kind){
+        List<HotSpot> sorted = new ArrayList<HotSpot>(hotSpots.get(kind).values());
+        sorted.sort((a, b) -> Long.compare(b.getExclusive().getTotal(), a.getExclusive().getTotal()));
+        return sorted;
+    }
+
+    /**
+     * Throws away everything measured so far.
+     */
+    public void reset(){
+        for(Map<String, HotSpot> spots : hotSpots.values()){
+            for(HotSpot spot : spots.values()){
+                spot.getInclusive().reset();
+                spot.getExclusive().reset();
+            }
+        }
+    }
+
+    /**
+     * Writes a plain text report, a table for each kind of hot spot.
+     *
+     * @param limit The maximum number of hot spots of each kind to write.
+     */
+    public void writeText(Writer out, int limit) throws IOException{
+        for(Kind kind : Kind.values()){
+            out.write("Hot spots by " + kind.getElementName() + " (times in milliseconds, per call percentiles of the inclusive time)\n");
+            out.write(String.format(Locale.ROOT, "%10s %12s %12s %10s %10s %10s %10s  %s\n", "calls", "exclusive", "inclusive", "p50", "p90", "p99", "max", "location"));
+            for(HotSpot spot : top(kind, limit)){
+                LatencyHistogram inclusive = spot.getInclusive();
+                out.write(String.format(Locale.ROOT, "%10d %12.3f %12.3f %10.3f %10.3f %10.3f %10.3f  %s %s\n",
+                        inclusive.getCount(), millis(spot.getExclusive().getTotal()), millis(inclusive.getTotal()),
+                        millis(inclusive.getPercentile(50)), millis(inclusive.getPercentile(90)),
+                        millis(inclusive.getPercentile(99)), millis(inclusive.getMax()),
+                        spot.getLocation(), spot.getDescription()));
+            }
+            out.write("\n");
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes the report as an XML document, with a <code>&lt;template/&gt;</code>, <code>&lt;extension/&gt;</code> or
+     * <code>&lt;line/&gt;</code> element for each hot spot.
+     *
+     * @param limit The maximum number of hot spots of each kind to write.
+     */
+    public void writeXml(Writer out, int limit) throws IOException{
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<profile>\n");
+        for(Kind kind : Kind.values()){
+            for(HotSpot spot : top(kind, limit)){
+                LatencyHistogram inclusive = spot.getInclusive();
+                out.write("    <" + kind.getElementName());
+                attribute(out, "location", spot.getLocation());
+                attribute(out, "description", spot.getDescription());
+                attribute(out, "calls", String.valueOf(inclusive.getCount()));
+                attribute(out, "exclusiveMillis", format(spot.getExclusive().getTotal()));
+                attribute(out, "inclusiveMillis", format(inclusive.getTotal()));
+                attribute(out, "p50Millis", format(inclusive.getPercentile(50)));
+                attribute(out, "p90Millis", format(inclusive.getPercentile(90)));
+                attribute(out, "p99Millis", format(inclusive.getPercentile(99)));
+                attribute(out, "maxMillis", format(inclusive.getMax()));
+                out.write("/>\n");
+            }
+        }
+        out.write("</profile>\n");
+        out.flush();
+    }
+
+    public void trace(TracerEvent event) {
+        CallStack stack = stacks.get();
+        if(stack.owner != event.m_processor){
+            //left over from a transformation that blew up
+            stack.clear();
+            stack.owner = event.m_processor;
+        }
+        stack.push(getElementHotSpots(stack, event.m_styleNode), System.nanoTime());
+    }
+
+    public void traceEnd(TracerEvent event) {
+        long now = System.nanoTime();
+        CallStack stack = stacks.get();
+        if(stack.owner != event.m_processor) return;
+        int frame = stack.find(event.m_styleNode);
+        //ends that never came (an element that threw) are timed as ending here
+        while(frame >= 0 && stack.depth > frame){
+            stack.pop(now);
+        }
+    }
+
+    public void selected(SelectionEvent event) throws TransformerException {
+    }
+
+    public void selectEnd(EndSelectionEvent event) throws TransformerException {
+    }
+
+    public void generated(GenerateEvent event) {
+    }
+
+    public void extension(ExtensionEvent event) {
+    }
+
+    public void extensionEnd(ExtensionEvent event) {
+    }
+
+    private ElementHotSpots getElementHotSpots(CallStack stack, ElemTemplateElement element){
+        ElementHotSpots spots = stack.cache.get(element);
+        if(spots == null){
+            spots = elements.computeIfAbsent(element, this::createElementHotSpots);
+            stack.cache.put(element, spots);
+        }
+        return spots;
+    }
+
+    private ElementHotSpots createElementHotSpots(ElemTemplateElement element){
+        String location = StringUtils.defaultString(element.getSystemId(), "?") + ":" + element.getLineNumber();
+        HotSpot line = getHotSpot(Kind.LINE, location, element.getNodeName());
+        HotSpot template = null;
+        HotSpot extension = null;
+        if(element instanceof ElemTemplate){
+            template = getHotSpot(Kind.TEMPLATE, location, describe((ElemTemplate)element));
+        }else if(element instanceof ElemExtensionCall){
+            extension = getHotSpot(Kind.EXTENSION, location, element.getNodeName());
+        }
+        return new ElementHotSpots(element, line, template, extension);
+    }
+
+    private HotSpot getHotSpot(Kind kind, String location, String description){
+        //a line is described by the first element seen on it
+        String key = kind == Kind.LINE ? location : location + " " + description;
+        return hotSpots.get(kind).computeIfAbsent(key, k -> new HotSpot(kind, location, description));
+    }
+
+    private static String describe(ElemTemplate template){
+        StringBuilder description = new StringBuilder("xsl:template");
+        if(template.getName() != null) description.append(" name=\"").append(template.getName()).append('"');
+        if(template.getMatch() != null) description.append(" match=\"").append(template.getMatch().getPatternString()).append('"');
+        if(template.getMode() != null) description.append(" mode=\"").append(template.getMode()).append('"');
+        return description.toString();
+    }
+
+    private List<HotSpot> top(Kind kind, int limit){
+        List<HotSpot> sorted = getHotSpots(kind);
+        return sorted.size() > limit ? sorted.subList(0, limit) : sorted;
+    }
+
+    private static double millis(long nanos){
+        return nanos / 1000000d;
+    }
+
+    private static String format(long nanos){
+        return String.format(Locale.ROOT, "%.3f", millis(nanos));
+    }
+
+    private static void attribute(Writer out, String name, String value) throws IOException{
+        out.write(" " + name + "=\"");
+        for(int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            switch(c){
+                case '<': out.write("&lt;"); break;
+                case '>': out.write("&gt;"); break;
+                case '&': out.write("&amp;"); break;
+                case '"': out.write("&quot;"); break;
+                default: out.write(c);
+            }
+        }
+        out.write('"');
+    }
+
+    /**
+     * The timings for one template, extension element or stylesheet line.
+     */
+    public static final class HotSpot {
+
+        private final Kind kind;
+        private final String location;
+        private final String description;
+        private final LatencyHistogram inclusive = new LatencyHistogram();
+        private final LatencyHistogram exclusive = new LatencyHistogram();
+
+        HotSpot(Kind kind, String location, String description){
+            this.kind = kind;
+            this.location = location;
+            this.description = description;
+        }
+
+        public Kind getKind(){
+            return kind;
+        }
+
+        /**
+         * @return The stylesheet system id and line number.
+         */
+        public String getLocation(){
+            return location;
+        }
+
+        /**
+         * @return The template (name, match and mode) or the element name.
+         */
+        public String getDescription(){
+            return description;
+        }
+
+        public LatencyHistogram getInclusive(){
+            return inclusive;
+        }
+
+        public LatencyHistogram getExclusive(){
+            return exclusive;
+        }
+
+        @Override
+        public String toString(){
+            return kind.getElementName() + " " + location + " " + description;
+        }
+
+    }
+
+    /**
+     * The hot spots an element's timings go to, worked out once per element.
+     */
+    private static final class ElementHotSpots {
+
+        final ElemTemplateElement element;
+        final HotSpot line;
+        final HotSpot template;
+        final HotSpot extension;
+
+        ElementHotSpots(ElemTemplateElement element, HotSpot line, HotSpot template, HotSpot extension){
+            this.element = element;
+            this.line = line;
+            this.template = template;
+            this.extension = extension;
+        }
+
+    }
+
+    private static final class Frame {
+
+        ElementHotSpots spots;
+        long start;
+        //the inclusive time of the direct children
+        long childNanos;
+        //the exclusive time of the elements that belong to this template (not to templates it calls)
+        long templateNanos;
+        //the nearest frame (this one included) that is a template, or -1
+        int templateFrame;
+
+    }
+
+    /**
+     * The elements currently executing on one thread, the frames are reused so timing doesn't allocate.
+     */
+    private static final class CallStack {
+
+        private Frame[] frames = new Frame[64];
+        int depth;
+        Object owner;
+        //saves looking the element up in the shared (weak) map every time
+        final Map<ElemTemplateElement, ElementHotSpots> cache = new IdentityHashMap<ElemTemplateElement, ElementHotSpots>();
+
+        void push(ElementHotSpots spots, long start){
+            if(depth == frames.length) frames = Arrays.copyOf(frames, depth * 2);
+            Frame frame = frames[depth];
+            if(frame == null) frame = frames[depth] = new Frame();
+            frame.spots = spots;
+            frame.start = start;
+            frame.childNanos = 0;
+            frame.templateNanos = 0;
+            frame.templateFrame = spots.template != null ? depth : depth > 0 ? frames[depth - 1].templateFrame : -1;
+            depth++;
+        }
+
+        void pop(long end){
+            Frame frame = frames[--depth];
+            long inclusive = end - frame.start;
+            long exclusive = inclusive - frame.childNanos;
+            if(depth > 0) frames[depth - 1].childNanos += inclusive;
+            if(frame.templateFrame >= 0) frames[frame.templateFrame].templateNanos += exclusive;
+            //only the outermost of the nested elements on a line is timed inclusively
+            if(depth == 0 || frames[depth - 1].spots.line != frame.spots.line) frame.spots.line.getInclusive().record(inclusive);
+            frame.spots.line.getExclusive().record(exclusive);
+            if(frame.spots.template != null){
+                frame.spots.template.getInclusive().record(inclusive);
+                frame.spots.template.getExclusive().record(frame.templateNanos);
+            }
+            if(frame.spots.extension != null){
+                frame.spots.extension.getInclusive().record(inclusive);
+                frame.spots.extension.getExclusive().record(exclusive);
+            }
+            frame.spots = null;
+        }
+
+        /**
+         * @return The index of the innermost frame for the element, or -1.
+         */
+        int find(ElemTemplateElement element){
+            for(int i = depth - 1; i >= 0; i--){
+                if(frames[i].spots.element == element) return i;
+            }
+            return -1;
+        }
+
+        void clear(){
+            while(depth > 0) frames[--depth].spots = null;
+            owner = null;
+        }
+
+    }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerException;
+
+import org.apache.xalan.templates.ElemExtensionCall;
+import org.apache.xalan.templates.ElemTemplateElement;
+import org.apache.xalan.templates.StylesheetComposed;
+import org.apache.xalan.templates.StylesheetRoot;
+import org.apache.xml.utils.SAXSourceLocator;
+import org.apache.xpath.XPath;
+import org.apache.xpath.compiler.FunctionTable;
+
+import net.adamjenkins.sxe.elements.SXEExtensionHandler;
+import net.adamjenkins.sxe.elements.XPathAttributes;
+
+/**
+ * Compiled XPath attributes of extension elements.  An attribute is compiled the first time it is evaluated and the
+ * compiled expression is reused from then on (compiled expressions don't hold any state of their own, so they can be
+ * shared by every transformer and thread using the stylesheet).  Entries are released along with the stylesheet, the
+ * compiled expressions don't refer back to the element they came from.
+ * <br/><br/>
+ * {@link #precompile(StylesheetRoot)} can be used to compile the attributes of a stylesheet up front, so that the
+ * first transformation doesn't pay for it.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public final class CompiledXPathCache {
+
+    private static final ConcurrentWeakIdentityMap<ElemExtensionCall, ConcurrentHashMap<String, XPath>> cache =
+            new ConcurrentWeakIdentityMap<ElemExtensionCall, ConcurrentHashMap<String, XPath>>();
+
+    private CompiledXPathCache(){
+    }
+
+    /**
+     * Gets the compiled attribute, syntax errors are only reported through the exception.
+     */
+    public static XPath getXPath(ElemExtensionCall extensionElement, String xpathAttributeName) throws TransformerException{
+        return getXPath(extensionElement, xpathAttributeName, QuietErrorListener.INSTANCE);
+    }
+
+    /**
+     * @param extensionElement      The element the attribute belongs to.
+     * @param xpathAttributeName    The attribute.
+     * @param listener              Where to report syntax errors.
+     * @return The compiled attribute value.
+     * @throws TransformerException If the attribute is not a valid XPath expression.
+     */
+    public static XPath getXPath(ElemExtensionCall extensionElement, String xpathAttributeName, ErrorListener listener) throws TransformerException{
+        ConcurrentHashMap<String, XPath> compiled = cache.computeIfAbsent(extensionElement, e -> new ConcurrentHashMap<String, XPath>());
+        XPath xpath = compiled.get(xpathAttributeName);
+        if(xpath == null){
+            //compiling twice in a race is harmless, the first one in wins
+            xpath = compile(extensionElement, xpathAttributeName, listener);
+            XPath existing = compiled.putIfAbsent(xpathAttributeName, xpath);
+            if(existing != null) xpath = existing;
+        }
+        return xpath;
+    }
+
+    /**
+     * Compiles the XPath attributes of every extension element in a stylesheet (including its imports and includes).
+     * Only the attributes the element methods declare with {@link XPathAttributes} are compiled, anything else is left
+     * until it is first evaluated.
+     *
+     * @return The number of attributes compiled.
+     */
+    public static int precompile(StylesheetRoot stylesheet){
+        int count = 0;
+        for(int i = 0; i < stylesheet.getGlobalImportCount(); i++){
+            StylesheetComposed imported = stylesheet.getGlobalImport(i);
+            //-1 is the stylesheet itself
+            for(int j = -1; j < imported.getIncludeCountComposed(); j++){
+                count += precompile(imported.getIncludeComposed(j));
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Compiles the attributes of every extension element in a stylesheet compiled by Xalan, anything else is
+     * ignored.
+     *
+     * @return The number of attributes compiled.
+     */
+    public static int precompile(Templates templates){
+        return templates instanceof StylesheetRoot ? precompile((StylesheetRoot)templates) : 0;
+    }
+
+    private static int precompile(ElemTemplateElement element){
+        int count = 0;
+        for(ElemTemplateElement child = element.getFirstChildElem(); child != null; child = child.getNextSiblingElem()){
+            if(child instanceof ElemExtensionCall){
+                count += precompileAttributes((ElemExtensionCall)child);
+            }
+            count += precompile(child);
+        }
+        return count;
+    }
+
+    private static int precompileAttributes(ElemExtensionCall extensionElement){
+        String[] names = SXEExtensionHandler.getXPathAttributes(extensionElement.getNamespace(), extensionElement.getLocalName());
+        if(names.length == 0) return 0;
+        ConcurrentHashMap<String, XPath> compiled = cache.computeIfAbsent(extensionElement, e -> new ConcurrentHashMap<String, XPath>());
+        int count = 0;
+        for(String name : names){
+            //getAttribute gives an empty string for attributes that aren't there
+            if(extensionElement.getAttribute(name).isEmpty() || compiled.containsKey(name)) continue;
+            try{
+                compiled.putIfAbsent(name, compile(extensionElement, name, QuietErrorListener.INSTANCE));
+                count++;
+            }catch(TransformerException e){
+                //reported when it's used
+            }
+        }
+        return count;
+    }
+
+    private static XPath compile(ElemExtensionCall extensionElement, String xpathAttributeName, ErrorListener listener) throws TransformerException{
+        //the element is only used while parsing, xalan makes an element passed as the locator the parent of the
+        //compiled expression, which would keep it (and the whole stylesheet) reachable from the cache
+        return new XPath(
+                extensionElement.getAttribute(xpathAttributeName),
+                new SAXSourceLocator(extensionElement),
+                extensionElement,
+                XPath.SELECT,
+                listener,
+                new FunctionTable());
+    }
+
+    /**
+     * Used when precompiling, where failures are reported when the attribute is used, and by callers that report
+     * errors themselves.
+     */
+    private static class QuietErrorListener implements ErrorListener {
+
+        static final QuietErrorListener INSTANCE = new QuietErrorListener();
+
+        public void warning(TransformerException exception) throws TransformerException {
+        }
+
+        public void error(TransformerException exception) throws TransformerException {
+            throw exception;
+        }
+
+        public void fatalError(TransformerException exception) throws TransformerException {
+            throw exception;
+        }
+
+    }
+
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Properties;
+import java.util.Vector;
+
+import javax.xml.transform.SourceLocator;
+import javax.xml.transform.Transformer;
+
+import org.apache.xalan.transformer.TransformerImpl;
+import org.apache.xml.serializer.DOMSerializer;
+import org.apache.xml.serializer.NamespaceMappings;
+import org.apache.xml.serializer.SerializationHandler;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+/**
+ * Passes everything through to the handler the transformer was writing to, and {@link TransformationContext#complete
+ * completes} the transformation once the output document has ended.  Installed by
+ * {@link TransformationContext#completeAtEndOfDocument(TransformerImpl)}.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+final class CompletingSerializationHandler implements SerializationHandler {
+
+    private final SerializationHandler handler;
+
+    private final TransformerImpl transformer;
+
+    CompletingSerializationHandler(SerializationHandler handler, TransformerImpl transformer){
+        this.handler = handler;
+        this.transformer = transformer;
+    }
+
+    public void addAttribute(String uri, String localName, String rawName, String type, String value, boolean XSLAttribute) throws SAXException {
+        handler.addAttribute(uri, localName, rawName, type, value, XSLAttribute);
+    }
+
+    public void addAttributes(Attributes atts) throws SAXException {
+        handler.addAttributes(atts);
+    }
+
+    public void addAttribute(String qName, String value) {
+        handler.addAttribute(qName, value);
+    }
+
+    public void characters(String chars) throws SAXException {
+        handler.characters(chars);
+    }
+
+    public void characters(Node node) throws SAXException {
+        handler.characters(node);
+    }
+
+    public void endElement(String elemName) throws SAXException {
+        handler.endElement(elemName);
+    }
+
+    public void startElement(String uri, String localName, String qName) throws SAXException {
+        handler.startElement(uri, localName, qName);
+    }
+
+    public void startElement(String qName) throws SAXException {
+        handler.startElement(qName);
+    }
+
+    public void namespaceAfterStartElement(String uri, String prefix) throws SAXException {
+        handler.namespaceAfterStartElement(uri, prefix);
+    }
+
+    public boolean startPrefixMapping(String prefix, String uri, boolean shouldFlush) throws SAXException {
+        return handler.startPrefixMapping(prefix, uri, shouldFlush);
+    }
+
+    public void entityReference(String entityName) throws SAXException {
+        handler.entityReference(entityName);
+    }
+
+    public NamespaceMappings getNamespaceMappings() {
+        return handler.getNamespaceMappings();
+    }
+
+    public String getPrefix(String uri) {
+        return handler.getPrefix(uri);
+    }
+
+    public String getNamespaceURI(String name, boolean isElement) {
+        return handler.getNamespaceURI(name, isElement);
+    }
+
+    public String getNamespaceURIFromPrefix(String prefix) {
+        return handler.getNamespaceURIFromPrefix(prefix);
+    }
+
+    public void setSourceLocator(SourceLocator locator) {
+        handler.setSourceLocator(locator);
+    }
+
+    public void addUniqueAttribute(String qName, String value, int flags) throws SAXException {
+        handler.addUniqueAttribute(qName, value, flags);
+    }
+
+    public void addXSLAttribute(String qName, String value, String uri) {
+        handler.addXSLAttribute(qName, value, uri);
+    }
+
+    public void addAttribute(String uri, String localName, String rawName, String type, String value) throws SAXException {
+        handler.addAttribute(uri, localName, rawName, type, value);
+    }
+
+    public void setDocumentLocator(Locator locator) {
+        handler.setDocumentLocator(locator);
+    }
+
+    public void startDocument() throws SAXException {
+        handler.startDocument();
+    }
+
+    public void endDocument() throws SAXException {
+        handler.endDocument();
+        TransformationContext.complete(transformer);
+    }
+
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        handler.startPrefixMapping(prefix, uri);
+    }
+
+    public void endPrefixMapping(String prefix) throws SAXException {
+        handler.endPrefixMapping(prefix);
+    }
+
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        handler.startElement(uri, localName, qName, atts);
+    }
+
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        handler.endElement(uri, localName, qName);
+    }
+
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        handler.characters(ch, start, length);
+    }
+
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        handler.ignorableWhitespace(ch, start, length);
+    }
+
+    public void processingInstruction(String target, String data) throws SAXException {
+        handler.processingInstruction(target, data);
+    }
+
+    public void skippedEntity(String name) throws SAXException {
+        handler.skippedEntity(name);
+    }
+
+    public void comment(String comment) throws SAXException {
+        handler.comment(comment);
+    }
+
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+        handler.startDTD(name, publicId, systemId);
+    }
+
+    public void endDTD() throws SAXException {
+        handler.endDTD();
+    }
+
+    public void startEntity(String name) throws SAXException {
+        handler.startEntity(name);
+    }
+
+    public void endEntity(String name) throws SAXException {
+        handler.endEntity(name);
+    }
+
+    public void startCDATA() throws SAXException {
+        handler.startCDATA();
+    }
+
+    public void endCDATA() throws SAXException {
+        handler.endCDATA();
+    }
+
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        handler.comment(ch, start, length);
+    }
+
+    public String getDoctypePublic() {
+        return handler.getDoctypePublic();
+    }
+
+    public String getDoctypeSystem() {
+        return handler.getDoctypeSystem();
+    }
+
+    public String getEncoding() {
+        return handler.getEncoding();
+    }
+
+    public boolean getIndent() {
+        return handler.getIndent();
+    }
+
+    public int getIndentAmount() {
+        return handler.getIndentAmount();
+    }
+
+    public String getMediaType() {
+        return handler.getMediaType();
+    }
+
+    public boolean getOmitXMLDeclaration() {
+        return handler.getOmitXMLDeclaration();
+    }
+
+    public String getStandalone() {
+        return handler.getStandalone();
+    }
+
+    public String getVersion() {
+        return handler.getVersion();
+    }
+
+    public void setCdataSectionElements(Vector URI_and_localNames) {
+        handler.setCdataSectionElements(URI_and_localNames);
+    }
+
+    public void setDoctype(String system, String pub) {
+        handler.setDoctype(system, pub);
+    }
+
+    public void setDoctypePublic(String doctype) {
+        handler.setDoctypePublic(doctype);
+    }
+
+    public void setDoctypeSystem(String doctype) {
+        handler.setDoctypeSystem(doctype);
+    }
+
+    public void setEncoding(String encoding) {
+        handler.setEncoding(encoding);
+    }
+
+    public void setIndent(boolean indent) {
+        handler.setIndent(indent);
+    }
+
+    public void setMediaType(String mediatype) {
+        handler.setMediaType(mediatype);
+    }
+
+    public void setOmitXMLDeclaration(boolean b) {
+        handler.setOmitXMLDeclaration(b);
+    }
+
+    public void setStandalone(String standalone) {
+        handler.setStandalone(standalone);
+    }
+
+    public void setVersion(String version) {
+        handler.setVersion(version);
+    }
+
+    public String getOutputProperty(String name) {
+        return handler.getOutputProperty(name);
+    }
+
+    public String getOutputPropertyDefault(String name) {
+        return handler.getOutputPropertyDefault(name);
+    }
+
+    public void setOutputProperty(String name, String val) {
+        handler.setOutputProperty(name, val);
+    }
+
+    public void setOutputPropertyDefault(String name, String val) {
+        handler.setOutputPropertyDefault(name, val);
+    }
+
+    public void elementDecl(String name, String model) throws SAXException {
+        handler.elementDecl(name, model);
+    }
+
+    public void attributeDecl(String eName, String aName, String type, String mode, String value) throws SAXException {
+        handler.attributeDecl(eName, aName, type, mode, value);
+    }
+
+    public void internalEntityDecl(String name, String value) throws SAXException {
+        handler.internalEntityDecl(name, value);
+    }
+
+    public void externalEntityDecl(String name, String publicId, String systemId) throws SAXException {
+        handler.externalEntityDecl(name, publicId, systemId);
+    }
+
+    public void notationDecl(String name, String publicId, String systemId) throws SAXException {
+        handler.notationDecl(name, publicId, systemId);
+    }
+
+    public void unparsedEntityDecl(String name, String publicId, String systemId, String notationName) throws SAXException {
+        handler.unparsedEntityDecl(name, publicId, systemId, notationName);
+    }
+
+    public void warning(SAXParseException exception) throws SAXException {
+        handler.warning(exception);
+    }
+
+    public void error(SAXParseException exception) throws SAXException {
+        handler.error(exception);
+    }
+
+    public void fatalError(SAXParseException exception) throws SAXException {
+        handler.fatalError(exception);
+    }
+
+    public void setOutputStream(OutputStream output) {
+        handler.setOutputStream(output);
+    }
+
+    public OutputStream getOutputStream() {
+        return handler.getOutputStream();
+    }
+
+    public void setWriter(Writer writer) {
+        handler.setWriter(writer);
+    }
+
+    public Writer getWriter() {
+        return handler.getWriter();
+    }
+
+    public void setOutputFormat(Properties format) {
+        handler.setOutputFormat(format);
+    }
+
+    public Properties getOutputFormat() {
+        return handler.getOutputFormat();
+    }
+
+    public ContentHandler asContentHandler() throws IOException {
+        return this;
+    }
+
+    public DOMSerializer asDOMSerializer() throws IOException {
+        return this;
+    }
+
+    public boolean reset() {
+        return handler.reset();
+    }
+
+    public Object asDOM3Serializer() throws IOException {
+        return handler.asDOM3Serializer();
+    }
+
+    public void setContentHandler(ContentHandler ch) {
+        handler.setContentHandler(ch);
+    }
+
+    public void close() {
+        handler.close();
+    }
+
+    public void serialize(Node node) throws IOException {
+        handler.serialize(node);
+    }
+
+    public boolean setEscaping(boolean escape) throws SAXException {
+        return handler.setEscaping(escape);
+    }
+
+    public void setIndentAmount(int spaces) {
+        handler.setIndentAmount(spaces);
+    }
+
+    public void setTransformer(Transformer transformer) {
+        handler.setTransformer(transformer);
+    }
+
+    public Transformer getTransformer() {
+        return handler.getTransformer();
+    }
+
+    public void setNamespaceMappings(NamespaceMappings mappings) {
+        handler.setNamespaceMappings(mappings);
+    }
+
+    public void flushPending() throws SAXException {
+        handler.flushPending();
+    }
+
+    public void setDTDEntityExpansion(boolean expand) {
+        handler.setDTDEntityExpansion(expand);
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * A concurrent map that compares its keys by identity and only holds them weakly, for hanging state off Xalan
+ * objects (transformers, stylesheet elements) that we don't own and that don't have anywhere to keep it themselves.
+ * Entries go away once their key has been garbage collected.  Lookups don't take any locks, and don't allocate
+ * anything either (each thread reuses its own lookup key).
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public final class ConcurrentWeakIdentityMap<K, V> {
+
+    private final ConcurrentHashMap<IdentityKey<K>, V> map = new ConcurrentHashMap<IdentityKey<K>, V>();
+
+    private final ReferenceQueue<K> released = new ReferenceQueue<K>();
+
+    private static final ThreadLocal<LookupKey> lookupKeys = ThreadLocal.withInitial(LookupKey::new);
+
+    /**
+     * @return The value for the key, or null if there isn't one.
+     */
+    public V get(K key){
+        LookupKey lookup = lookupKeys.get().set(key);
+        try{
+            return map.get(lookup);
+        }finally{
+            lookup.clear();
+        }
+    }
+
+    /**
+     * @return The value for the key, created by the function (at most once) if there isn't one yet.
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> create){
+        V found = get(key);
+        if(found != null) return found;
+        expungeReleased();
+        return map.computeIfAbsent(new IdentityKey<K>(key, released), k -> create.apply(key));
+    }
+
+    public V remove(K key){
+        LookupKey lookup = lookupKeys.get().set(key);
+        try{
+            return map.remove(lookup);
+        }finally{
+            lookup.clear();
+        }
+    }
+
+    public int size(){
+        expungeReleased();
+        return map.size();
+    }
+
+    private void expungeReleased(){
+        Object key;
+        while((key = released.poll()) != null){
+            map.remove(key);
+        }
+    }
+
+    private static final class IdentityKey<K> extends WeakReference<K> {
+
+        private final int hash;
+
+        IdentityKey(K key, ReferenceQueue<K> queue){
+            super(key, queue);
+            this.hash = System.identityHashCode(key);
+        }
+
+        @Override
+        public int hashCode(){
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj){
+            if(obj == this) return true;
+            if(!(obj instanceof IdentityKey)) return false;
+            Object key = get();
+            return key != null && key == ((IdentityKey<?>)obj).get();
+        }
+
+    }
+
+    /**
+     * Stands in for an {@link IdentityKey} when looking an entry up, the map compares the key passed in to the ones
+     * it holds (never the other way round), so this is never stored.
+     */
+    private static final class LookupKey {
+
+        private Object key;
+        private int hash;
+
+        LookupKey set(Object key){
+            this.key = key;
+            this.hash = System.identityHashCode(key);
+            return this;
+        }
+
+        void clear(){
+            key = null;
+        }
+
+        @Override
+        public int hashCode(){
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj){
+            return obj instanceof IdentityKey && key != null && key == ((IdentityKey<?>)obj).get();
+        }
+
+    }
+
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.util;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+import org.apache.xalan.extensions.XSLProcessorContext;
+import org.apache.xalan.transformer.TransformerImpl;
+import org.apache.xml.serializer.SerializationHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * State that belongs to a single transformation, rather than to the (shared) extension element instance or the
+ * thread that happens to be running it.  Elements that need to pass state to their children (the parameters of a
+ * <code>&lt;bean:invoke/&gt;</code>, the message being built by <code>&lt;jms:send/&gt;</code> etc) declare a
+ * {@link Slot} once, as a static field, and keep the state in the context of the transformer that is running.
+ * <br/><br/>
+ * Because the state is tied to the transformer, any number of transformations can run at the same time in the same
+ * JVM, and work that moves between threads (thread pools, virtual threads) still sees the right state.  Each
+ * parallel branch runs on a transformer of its own, so it gets a context of its own too (starting with the values of
+ * any {@link #newInheritedSlot() inherited} slots in the context it was started from).  The context is released
+ * along with the transformer, nothing needs to be cleaned up, but a transformer that is reused should be passed to
+ * {@link #complete(TransformerImpl)} after each transformation, which also runs any {@link #onComplete(Runnable)}
+ * tasks.  Elements that register tasks which must run even when nobody calls {@link #complete(TransformerImpl)}
+ * (summaries, flushing captured output) call {@link #completeAtEndOfDocument(TransformerImpl)} while the
+ * transformation is running, and the context is then completed as soon as the result document has ended.
+ * <br/><br/>
+ * Usage example:
+ * <br/><br/>
+ * <code><pre>
+ * private static final TransformationContext.Slot&lt;Message&gt; MESSAGE = TransformationContext.newSlot();
+ * ...
+ * TransformationContext state = TransformationContext.get(context);
+ * Message previous = state.set(MESSAGE, msg);
+ * try{
+ *     context.getTransformer().executeChildTemplates(extensionElement, true);
+ * }finally{
+ *     state.set(MESSAGE, previous);
+ * }
+ * </pre></code>
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public final class TransformationContext {
+
+    /**
+     * A key for a single piece of state.  Slots are cheap to look up (they're just an index into an array, read and
+     * written without locking, so parallel branches don't queue up behind each other on the root context), but they
+     * are never reused, so create them once rather than per element or per transformation.
+     *
+     * @param <T> The type of state kept in the slot.
+     */
+    public static final class Slot<T> {
+
+        private final int index;
+
+        private Slot(int index){
+            this.index = index;
+        }
+
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(TransformationContext.class);
+
+    private static final AtomicInteger slotCount = new AtomicInteger();
+
+    private static final List<Slot<?>> inheritedSlots = new CopyOnWriteArrayList<Slot<?>>();
+
+    private static final ConcurrentWeakIdentityMap<TransformerImpl, TransformationContext> contexts = new ConcurrentWeakIdentityMap<TransformerImpl, TransformationContext>();
+
+    //sized for every slot that exists when the context is created, slots created after that (by a class that was
+    //loaded late) go in the overflow map, so the array never has to be copied while other threads are writing to it
+    private final AtomicReferenceArray<Object> values = new AtomicReferenceArray<Object>(Math.max(8, slotCount.get()));
+
+    private final AtomicReference<ConcurrentMap<Integer, Object>> overflow = new AtomicReference<ConcurrentMap<Integer, Object>>();
+
+    private final Queue<Runnable> completionTasks = new ConcurrentLinkedQueue<Runnable>();
+
+    private volatile TransformationContext parent;
+
+    private boolean completesAtEndOfDocument;
+
+    private TransformationContext(){
+    }
+
+    /**
+     * @return A new slot, which will be empty in every context.
+     */
+    public static <T> Slot<T> newSlot(){
+        return new Slot<T>(slotCount.getAndIncrement());
+    }
+
+    /**
+     * @return A new slot, which will be empty in every context, whose value is passed on to parallel branches.
+     */
+    public static <T> Slot<T> newInheritedSlot(){
+        Slot<T> slot = newSlot();
+        inheritedSlots.add(slot);
+        return slot;
+    }
+
+    /**
+     * @return The context of the transformation that is running.
+     */
+    public static TransformationContext get(XSLProcessorContext context){
+        return get(context.getTransformer());
+    }
+
+    /**
+     * @return The context of the given transformer, created the first time it is asked for.
+     */
+    public static TransformationContext get(TransformerImpl transformer){
+        return contexts.computeIfAbsent(transformer, t -> new TransformationContext());
+    }
+
+    /**
+     * Ends the transformation the transformer was running.  The tasks registered with {@link #onComplete(Runnable)}
+     * are run and the transformer gets a fresh context the next time it is asked for one.
+     */
+    public static void complete(TransformerImpl transformer){
+        TransformationContext state = contexts.remove(transformer);
+        if(state == null) return;
+        Runnable task;
+        while((task = state.completionTasks.poll()) != null){
+            try{
+                task.run();
+            }catch(RuntimeException e){
+                log.warn("End of transformation task failed", e);
+            }
+        }
+    }
+
+    /**
+     * Arranges for the transformation the transformer is running to be {@link #complete(TransformerImpl) completed}
+     * when its result document ends, by wrapping the serialization handler it is writing to.  Must be called on the
+     * thread running the transformation, while it is running (the transformer replaces its handler when a
+     * transformation starts).  Does nothing for parallel branches, they are completed along with the transformation
+     * they were started from, or if the transformer has already been set up.
+     */
+    public static void completeAtEndOfDocument(TransformerImpl transformer){
+        TransformationContext state = get(transformer);
+        if(state.parent != null || state.completesAtEndOfDocument) return;
+        SerializationHandler handler = transformer.getSerializationHandler();
+        if(handler == null) return;
+        state.completesAtEndOfDocument = true;
+        transformer.setSerializationHandler(new CompletingSerializationHandler(handler, transformer));
+    }
+
+    /**
+     * @return The context of the transformation this one is a parallel branch of (or this context if it isn't a
+     *          branch).
+     */
+    public TransformationContext getRoot(){
+        TransformationContext root = this;
+        while(root.parent != null){
+            root = root.parent;
+        }
+        return root;
+    }
+
+    /**
+     * Runs a task when the transformation is {@link #complete(TransformerImpl) completed}.
+     */
+    public void onComplete(Runnable task){
+        completionTasks.add(task);
+    }
+
+    /**
+     * @return The value in the slot, or null if it is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(Slot<T> slot){
+        if(slot.index < values.length()) return (T)values.get(slot.index);
+        ConcurrentMap<Integer, Object> late = overflow.get();
+        return late != null ? (T)late.get(slot.index) : null;
+    }
+
+    /**
+     * Puts a value in the slot (null empties it).
+     *
+     * @return The value that was in the slot, so that it can be put back when the element is finished with it (which
+     *          means elements can be nested inside each other).
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T set(Slot<T> slot, T value){
+        if(slot.index < values.length()) return (T)values.getAndSet(slot.index, value);
+        if(value == null){
+            ConcurrentMap<Integer, Object> late = overflow.get();
+            return late != null ? (T)late.remove(slot.index) : null;
+        }
+        return (T)getOverflow().put(slot.index, value);
+    }
+
+    /**
+     * Fills the slot if it is empty.
+     *
+     * @return The value that was already in the slot (which is left there), or null if the new value was put in.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T putIfAbsent(Slot<T> slot, T value){
+        if(value == null) return get(slot);
+        if(slot.index >= values.length()) return (T)getOverflow().putIfAbsent(slot.index, value);
+        while(!values.compareAndSet(slot.index, null, value)){
+            Object current = values.get(slot.index);
+            if(current != null) return (T)current;
+        }
+        return null;
+    }
+
+    /**
+     * @return The value in the slot, after filling it with a new value if it was empty.  Threads that find the slot
+     *          empty at the same time may each create a value, but only one of them is kept (and returned to all of
+     *          them), so use {@link #putIfAbsent(Slot, Object)} if creating the value has side effects.
+     */
+    public <T> T computeIfAbsent(Slot<T> slot, Supplier<? extends T> create){
+        T value = get(slot);
+        if(value != null) return value;
+        T created = create.get();
+        value = putIfAbsent(slot, created);
+        return value != null ? value : created;
+    }
+
+    /**
+     * Empties the slot.
+     *
+     * @return The value that was in the slot.
+     */
+    public <T> T remove(Slot<T> slot){
+        return set(slot, null);
+    }
+
+    /**
+     * Copies the values of the inherited slots from another context (the one a parallel branch was started from).
+     */
+    public void inheritFrom(TransformationContext parent){
+        this.parent = parent;
+        for(Slot<?> slot : inheritedSlots){
+            copy(slot, parent);
+        }
+    }
+
+    private <T> void copy(Slot<T> slot, TransformationContext from){
+        set(slot, from.get(slot));
+    }
+
+    private ConcurrentMap<Integer, Object> getOverflow(){
+        ConcurrentMap<Integer, Object> late = overflow.get();
+        if(late == null){
+            overflow.compareAndSet(null, new ConcurrentHashMap<Integer, Object>());
+            late = overflow.get();
+        }
+        return late;
+    }
+
+}
@@ -22,7 +22,7 @@ import javax.xml.transform.ErrorListener;
 import javax.xml.transform.TransformerException;
 
 /**
- * An error listener.
+ * An error listener.  Errors can be reported from several threads at once (e.g. by parallel branches).
  * 
  * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
  */
@@ -31,22 +31,22 @@ public class XSLTErrorListener implements ErrorListener{
     private List<TransformerException> errors = new ArrayList<TransformerException>();
     private List<TransformerException> fatals = new ArrayList<TransformerException>();
 
-    public List<TransformerException> getAllErrors(){
+    public synchronized List<TransformerException> getAllErrors(){
         ArrayList<TransformerException> returnVal = new ArrayList<TransformerException>(warnings);
         returnVal.addAll(errors);
         returnVal.addAll(fatals);
         return returnVal;
     }
 
-    public void warning(TransformerException exception) throws TransformerException {
+    public synchronized void warning(TransformerException exception) throws TransformerException {
         warnings.add(exception);
     }
 
-    public void error(TransformerException exception) throws TransformerException {
+    public synchronized void error(TransformerException exception) throws TransformerException {
         errors.add(exception);
     }
 
-    public void fatalError(TransformerException exception) throws TransformerException {
+    public synchronized void fatalError(TransformerException exception) throws TransformerException {
         fatals.add(exception);
     }
 
@@ -17,21 +17,21 @@
 package net.adamjenkins.sxe.util;
 
 import java.io.StringWriter;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.TransformerException;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.xalan.extensions.XSLProcessorContext;
 import org.apache.xalan.templates.ElemExtensionCall;
+import org.apache.xalan.templates.ElemTemplateElement;
 import org.apache.xalan.templates.ElemValueOf;
 import org.apache.xalan.templates.ElemVariable;
 import org.apache.xalan.templates.PassThroughVariableStack;
+import org.apache.xalan.templates.VariableScopeIndex;
+import org.apache.xalan.transformer.TransformerImpl;
 import org.apache.xml.dtm.ref.DTMNodeIterator;
 import org.apache.xml.serializer.DOMSerializer;
 import org.apache.xml.serializer.Method;
@@ -42,13 +42,11 @@ import org.apache.xml.utils.QName;
 import org.apache.xpath.Expression;
 import org.apache.xpath.XPath;
 import org.apache.xpath.XPathContext;
-import org.apache.xpath.compiler.FunctionTable;
 import org.apache.xpath.objects.XNodeSet;
 import org.apache.xpath.objects.XNull;
 import org.apache.xpath.objects.XObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.w3c.dom.Document;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 
@@ -63,21 +61,49 @@ public class XSLTUtil {
     
     private static final Logger log = LoggerFactory.getLogger(XSLTUtil.class);
 
-    private static PassThroughVariableStack getPassthroughStack(XSLProcessorContext context) {
-    	//this probably needs to be made threadsafe at some point
-    	if(!(context.getTransformer().getXPathContext().getVarStack() instanceof PassThroughVariableStack)) {
-			PassThroughVariableStack newStack = new PassThroughVariableStack(context.getTransformer().getXPathContext().getVarStack());
-			context.getTransformer().getXPathContext().setVarStack(newStack);
+    private static PassThroughVariableStack getPassthroughStack(TransformerImpl transformer) {
+    	//each transformer (including every parallel branch) has its own xpath context, so this is only ever called
+    	//from the thread running the transform
+    	XPathContext xctxt = transformer.getXPathContext();
+    	if(!(xctxt.getVarStack() instanceof PassThroughVariableStack)) {
+			xctxt.setVarStack(new PassThroughVariableStack(xctxt.getVarStack()));
     	}
-    	return (PassThroughVariableStack)context.getTransformer().getXPathContext().getVarStack();
+    	return (PassThroughVariableStack)xctxt.getVarStack();
     }
+
+    /**
+     * Installs the variable stack extension elements bind their values through, if it isn't already there.  This
+     * happens on its own the first time an element binds a variable, but a global variable bound before then won't
+     * see its value until the second time it's read, so callers running compiled stylesheets should do it up front.
+     */
+    public static void installVariableStack(TransformerImpl transformer) {
+    	getPassthroughStack(transformer);
+    }
+
     public static void setVariable(XSLProcessorContext context, ElemExtensionCall extensionElement, Object value) {
 	    //so, you have to set it in the parent
-	    PassThroughVariableStack stack = getPassthroughStack(context);
-	    //TODO: better error handling here for class cast exception
-	    ElemVariable parent = (ElemVariable)extensionElement.getParentElem();
-	    XObject var = new XObject(value);
-	    stack.overrideLoadVariable(parent.getIndex(), var);
+	    if(!setVariableIfPossible(context.getTransformer(), extensionElement, value)){
+	    	throw new IllegalStateException(extensionElement.getNodeName() + " must be the body of an xsl:variable");
+	    }
+    }
+
+    /**
+     * Binds a value to the variable the extension element is the body of.  The value is held in the variable stack of
+     * the running transform rather than written into the stylesheet, so the same compiled stylesheet can be used by
+     * any number of transforms at once.
+     * 
+     * @return false if the extension element is not the body of a variable.
+     */
+    public static boolean setVariableIfPossible(TransformerImpl transformer, ElemExtensionCall extensionElement, Object value) {
+    	if(!(extensionElement.getParentElem() instanceof ElemVariable)) return false;
+    	ElemVariable variable = (ElemVariable)extensionElement.getParentElem();
+    	PassThroughVariableStack stack = getPassthroughStack(transformer);
+    	if(variable.getIsTopLevel()) {
+    		stack.overrideGlobalVariable(variable.getIndex(), new XObject(value));
+    	}else {
+    		stack.overrideLoadVariable(variable.getIndex(), new XObject(value));
+    	}
+    	return true;
     }
     
     public static XObject getXObject(final String xpathAttributeName, final XSLProcessorContext context, final ElemExtensionCall extensionElement) throws TransformerException{
@@ -95,13 +121,7 @@ public class XSLTUtil {
         boolean expressionPushed = false;
         try{   
             selectExpressionString = extensionElement.getAttribute(xpathAttributeName); 
-            XPath xpath = new XPath(
-            		selectExpressionString, 
-            		extensionElement, 
-            		extensionElement, 
-            		XPath.SELECT,
-            		xCtx.getErrorListener(), 
-                    new FunctionTable());
+            XPath xpath = CompiledXPathCache.getXPath(extensionElement, xpathAttributeName, xCtx.getErrorListener());
             xCtx.pushNamespaceContext(extensionElement);            
             namespacePushed = true;
             int current = xCtx.getCurrentNode();
@@ -127,7 +147,7 @@ public class XSLTUtil {
         boolean expressionPushed = false;
         try{           
             selectExpressionString = extensionElement.getAttribute(xpathAttributeName);           
-            XPath xpath = new XPath(selectExpressionString, xCtx.getSAXLocator(), extensionElement, XPath.SELECT);        
+            XPath xpath = CompiledXPathCache.getXPath(extensionElement, xpathAttributeName);
             xCtx.pushNamespaceContext(extensionElement);            
             namespacePushed = true;
             int current = xCtx.getCurrentNode();
@@ -250,12 +270,29 @@ public class XSLTUtil {
                );
     }
 
-    public static EmbeddedStylesheetDefinition createNewStylesheetFromChildren(XSLProcessorContext context, Node currentElement) throws ParserConfigurationException{
-        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        Document stylesheet = builder.newDocument();
-        Set<String> params = new HashSet<String>();
-        //TODO: BUILD THE STYLESHEET HERE
-        return new EmbeddedStylesheetDefinition(stylesheet, params);
+    /**
+     * Prepares the body of a parallel element so that it can be run by a transformer on another thread.  The
+     * compiled stylesheet is reused as it is, all that's worked out here is which local variables the body can see
+     * (these are handed to each branch as parameters) and how many variable slots the body needs.
+     */
+    public static EmbeddedStylesheetDefinition createNewStylesheetFromChildren(XSLProcessorContext context, ElemExtensionCall parallelElement){
+        //closest declaration wins, same as the variable lookup in PassThroughVariableStack
+        Map<QName, ElemVariable> inScope = VariableScopeIndex.getVisibleVariables(parallelElement);
+        int highestSlot = getHighestVariableSlot(parallelElement, -1);
+        for(ElemVariable var : inScope.values()) {
+            highestSlot = Math.max(highestSlot, var.getIndex());
+        }
+        return new EmbeddedStylesheetDefinition(parallelElement.getStylesheetRoot(), parallelElement, new ArrayList<ElemVariable>(inScope.values()), highestSlot + 1);
+    }
+
+    private static int getHighestVariableSlot(ElemTemplateElement element, int highest) {
+        for(ElemTemplateElement child = element.getFirstChildElem(); child != null; child = child.getNextSiblingElem()) {
+            if(child instanceof ElemVariable) {
+                highest = Math.max(highest, ((ElemVariable)child).getIndex());
+            }
+            highest = getHighestVariableSlot(child, highest);
+        }
+        return highest;
     }
     
 }
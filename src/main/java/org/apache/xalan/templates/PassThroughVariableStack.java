@@ -1,6 +1,6 @@
 package org.apache.xalan.templates;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
 import javax.xml.transform.TransformerException;
 
@@ -10,12 +10,17 @@ import org.apache.xpath.VariableStack;
 import org.apache.xpath.XPathContext;
 import org.apache.xpath.objects.XObject;
 
+/**
+ * A variable stack that lets extension elements replace the value of the variable they are the body of.  Overrides are
+ * kept against the absolute stack slot (frame + index), so they only apply to the template invocation that set them,
+ * and are thrown away when that frame is unlinked.
+ */
 public class PassThroughVariableStack extends VariableStack {
 
 	private VariableStack delegate;
 	
-	//TODO: this needs to be made threadsafe
-	private HashMap<Integer, XObject> overrides = new HashMap<Integer,XObject>();
+	//replaced (never modified) on every change, so reads don't need a lock
+	private volatile OverrideTable overrides = OverrideTable.EMPTY;
 	
 	public PassThroughVariableStack(VariableStack stack) {
 		super(100);
@@ -31,7 +36,8 @@ public class PassThroughVariableStack extends VariableStack {
 	}
 
 	public XObject elementAt(int i) {
-		return delegate.elementAt(i);
+		XObject override = overrides.get(i);
+		return override != null ? override : delegate.elementAt(i);
 	}
 
 	public int size() {
@@ -44,6 +50,7 @@ public class PassThroughVariableStack extends VariableStack {
 
 	public void reset() {
 		delegate.reset();
+		overrides = OverrideTable.EMPTY;
 	}
 
 	public void setStackFrame(int sf) {
@@ -59,35 +66,35 @@ public class PassThroughVariableStack extends VariableStack {
 	}
 
 	public void unlink() {
+		int frame = delegate.getStackFrame();
 		delegate.unlink();
+		clearFrom(frame);
 	}
 
 	public void unlink(int currentFrame) {
+		int frame = delegate.getStackFrame();
 		delegate.unlink(currentFrame);
+		clearFrom(frame);
 	}
 
 	public void setLocalVariable(int index, XObject val) {
 		delegate.setLocalVariable(index, val);
+		slotAssigned(delegate.getStackFrame() + index);
 	}
 
 	public void setLocalVariable(int index, XObject val, int stackFrame) {
 		delegate.setLocalVariable(index, val, stackFrame);
+		slotAssigned(stackFrame + index);
 	}
 
 	public XObject getLocalVariable(XPathContext xctxt, int index) throws TransformerException {
-		if(overrides.containsKey(index)) {
-			return overrides.get(index);
-		}else {
-			return delegate.getLocalVariable(xctxt, index);
-		}
+		XObject override = overrides.get(delegate.getStackFrame() + index);
+		return override != null ? override : delegate.getLocalVariable(xctxt, index);
 	}
 
 	public XObject getLocalVariable(int index, int frame) throws TransformerException {
-		if(overrides.containsKey(index)) {
-			return overrides.get(index);
-		}else {
-			return delegate.getLocalVariable(index, frame);
-		}
+		XObject override = overrides.get(frame + index);
+		return override != null ? override : delegate.getLocalVariable(index, frame);
 	}
 
 	public String toString() {
@@ -95,11 +102,8 @@ public class PassThroughVariableStack extends VariableStack {
 	}
 
 	public XObject getLocalVariable(XPathContext xctxt, int index, boolean destructiveOK) throws TransformerException {
-		if(overrides.containsKey(index)) {
-			return overrides.get(index);
-		}else {
-			return delegate.getLocalVariable(xctxt, index, destructiveOK);
-		}
+		XObject override = overrides.get(delegate.getStackFrame() + index);
+		return override != null ? override : delegate.getLocalVariable(xctxt, index, destructiveOK);
 	}
 
 	public boolean isLocalSet(int index) throws TransformerException {
@@ -115,52 +119,163 @@ public class PassThroughVariableStack extends VariableStack {
 	}
 
 	public XObject getGlobalVariable(XPathContext xctxt, int index) throws TransformerException {
-		return delegate.getGlobalVariable(xctxt, index);
+		//evaluate first, an unresolved global only gets its override while it's being evaluated
+		XObject value = delegate.getGlobalVariable(xctxt, index);
+		XObject override = overrides.get(index);
+		return override != null ? override : value;
 	}
 
 	public XObject getGlobalVariable(XPathContext xctxt, int index, boolean destructiveOK) throws TransformerException {
-		return delegate.getGlobalVariable(xctxt, index, destructiveOK);
+		XObject value = delegate.getGlobalVariable(xctxt, index, destructiveOK);
+		XObject override = overrides.get(index);
+		return override != null ? override : value;
 	}
 
 	public XObject getVariableOrParam(XPathContext xctxt, QName qname) throws TransformerException {
 		//need to get the Variable from the xctx so you can get the index
-		ElemVariable var = getElemVariableForQName(xctxt, qname);
-		if(var != null) {
-			if(overrides.containsKey(var.getIndex())) {
-				return overrides.get(var.getIndex());
+		if(!overrides.isEmpty() && xctxt.getOwnerObject() instanceof TransformerImpl) {
+			TransformerImpl transformer = (TransformerImpl)xctxt.getOwnerObject();
+			ElemVariable var = VariableScopeIndex.getVariable(transformer.getCurrentElement(), qname);
+			if(var != null) {
+				XObject override = overrides.get(delegate.getStackFrame() + var.getIndex());
+				if(override != null) return override;
+			}else {
+				//the index only holds locals, and the delegate would read a global straight from its own slots
+				ElemVariable global = transformer.getStylesheet().getVariableOrParamComposed(qname);
+				if(global != null) return getGlobalVariable(xctxt, global.getIndex());
 			}
 		}
 		return delegate.getVariableOrParam(xctxt, qname);
 	}
-	
-	private ElemVariable getElemVariableForQName(XPathContext xctxt, QName name) {
-		TransformerImpl transformer = (TransformerImpl)xctxt.getOwnerObject();
-		ElemTemplateElement template = transformer.getCurrentElement();
-		while(template != null && !(template.getParentNode() instanceof Stylesheet)) {
-          ElemTemplateElement saved = template;
-          ElemVariable vvar;
-          while (null != (template = template.getPreviousSiblingElem()))
-          {
-            if(template instanceof ElemVariable)
-            {
-              vvar = (ElemVariable) template;
-
-              if (vvar.getName().equals(name))
-              {
-                return vvar;
-              }
-              vvar = null;
-            }
-          }
-          template = saved.getParentElem();			
+
+	/**
+	 * Overrides the value of a local variable in the current frame.  Called while the variable's body is being
+	 * executed, so the value the variable element stores when it finishes is ignored.
+	 */
+	public synchronized void overrideLoadVariable(int index, XObject var) {
+		overrides = overrides.with(delegate.getStackFrame() + index, var);
+	}
+
+	/**
+	 * Overrides the value of a global variable.  Globals sit at the bottom of the stack, below every frame, so the
+	 * override lasts until the transform is reset.
+	 */
+	public synchronized void overrideGlobalVariable(int index, XObject var) {
+		overrides = overrides.with(index, var);
+	}
+
+	private void slotAssigned(int slot) {
+		OverrideTable current = overrides;
+		if(current.isEmpty()) return;
+		synchronized(this) {
+			overrides = overrides.assigned(slot);
 		}
-		return null;
 	}
 
-	public void overrideLoadVariable(int index, XObject var) {
-		overrides.put(index, var);
+	private void clearFrom(int slot) {
+		OverrideTable current = overrides;
+		if(current.isEmpty()) return;
+		synchronized(this) {
+			overrides = overrides.withoutFrom(slot);
+		}
 	}
-	
 
+	/**
+	 * An open addressing table of overrides, keyed on absolute stack slot.  A table is never changed once it has been
+	 * published, every change builds a new one (overrides are rare, reads are not).
+	 * <br/><br/>
+	 * An override starts off pending: the next assignment to its slot is the variable element storing its own
+	 * (overridden) value, any assignment after that is a different variable reusing the slot, which removes it.
+	 */
+	private static final class OverrideTable {
+
+		static final OverrideTable EMPTY = new OverrideTable(0);
+
+		private static final int FREE = -1;
+
+		private final int[] slots;
+		private final XObject[] values;
+		private final boolean[] pending;
+		private int size;
+
+		private OverrideTable(int entries) {
+			int capacity = 4;
+			while(capacity < entries * 2) capacity <<= 1;
+			slots = new int[capacity];
+			Arrays.fill(slots, FREE);
+			values = new XObject[capacity];
+			pending = new boolean[capacity];
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		XObject get(int slot) {
+			int i = find(slot);
+			return i < 0 ? null : values[i];
+		}
+
+		OverrideTable with(int slot, XObject value) {
+			OverrideTable copy = new OverrideTable(size + 1);
+			copyInto(copy, slot, Integer.MAX_VALUE);
+			copy.put(slot, value, true);
+			return copy;
+		}
+
+		OverrideTable assigned(int slot) {
+			int i = find(slot);
+			if(i < 0) return this;
+			OverrideTable copy = new OverrideTable(size);
+			copyInto(copy, slot, Integer.MAX_VALUE);
+			if(pending[i]) copy.put(slot, values[i], false);
+			return copy.size == 0 ? EMPTY : copy;
+		}
+
+		OverrideTable withoutFrom(int slot) {
+			boolean found = false;
+			for(int i = 0; i < slots.length && !found; i++) {
+				found = slots[i] >= slot;
+			}
+			if(!found) return this;
+			OverrideTable copy = new OverrideTable(size);
+			copyInto(copy, FREE, slot);
+			return copy.size == 0 ? EMPTY : copy;
+		}
+
+		/**
+		 * Copies every entry except the skipped slot and anything at or above the limit.
+		 */
+		private void copyInto(OverrideTable copy, int skip, int limit) {
+			for(int i = 0; i < slots.length; i++) {
+				if(slots[i] != FREE && slots[i] != skip && slots[i] < limit) copy.put(slots[i], values[i], pending[i]);
+			}
+		}
+
+		private int find(int slot) {
+			if(size == 0) return -1;
+			int mask = slots.length - 1;
+			for(int i = mix(slot) & mask; slots[i] != FREE; i = (i + 1) & mask) {
+				if(slots[i] == slot) return i;
+			}
+			return -1;
+		}
+
+		private void put(int slot, XObject value, boolean isPending) {
+			int mask = slots.length - 1;
+			int i = mix(slot) & mask;
+			while(slots[i] != FREE && slots[i] != slot) i = (i + 1) & mask;
+			if(slots[i] == FREE) size++;
+			slots[i] = slot;
+			values[i] = value;
+			pending[i] = isPending;
+		}
+
+		private static int mix(int slot) {
+			int h = slot * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+
+	}
 
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package org.apache.xalan.templates;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.xml.utils.QName;
+
+import net.adamjenkins.sxe.util.ConcurrentWeakIdentityMap;
+
+/**
+ * The local variables and parameters visible from each element of a stylesheet, worked out once per top level element
+ * (template, global variable etc) so that looking a variable up by name doesn't mean walking back over the siblings
+ * and ancestors of the current element every time.  Global variables aren't included.
+ * <br/><br/>
+ * A template is indexed the first time one of its elements is looked up, or up front with
+ * {@link #precompute(StylesheetRoot)}.  Elements that only share the scope of their previous sibling share its map,
+ * so a new map is only created after each variable declaration.
+ * <br/><br/>
+ * The index only holds weak references to the declarations (a declaration leads back to every other element of the
+ * stylesheet through its parents), so it doesn't keep a stylesheet in memory once nothing else is using it.
+ */
+public final class VariableScopeIndex {
+
+	private static final Map<QName, ElemVariable> NONE = Collections.emptyMap();
+
+	private static final Map<QName, WeakReference<ElemVariable>> NO_SCOPE = Collections.emptyMap();
+
+	private static final ConcurrentWeakIdentityMap<ElemTemplateElement, Map<QName, WeakReference<ElemVariable>>> scopes =
+			new ConcurrentWeakIdentityMap<ElemTemplateElement, Map<QName, WeakReference<ElemVariable>>>();
+
+	private VariableScopeIndex() {
+	}
+
+	/**
+	 * @return The closest declaration of the variable visible from the element, or null if there isn't one.
+	 */
+	public static ElemVariable getVariable(ElemTemplateElement element, QName name) {
+		WeakReference<ElemVariable> variable = getScope(element).get(name);
+		//the declaration is part of the same stylesheet as the element, so it can't have been collected
+		return variable != null ? variable.get() : null;
+	}
+
+	/**
+	 * @return Every local variable visible from the element (the closest declaration of each name).
+	 */
+	public static Map<QName, ElemVariable> getVisibleVariables(ElemTemplateElement element) {
+		Map<QName, WeakReference<ElemVariable>> scope = getScope(element);
+		if(scope.isEmpty()) return NONE;
+		Map<QName, ElemVariable> visible = new HashMap<QName, ElemVariable>();
+		for(Map.Entry<QName, WeakReference<ElemVariable>> variable : scope.entrySet()) {
+			visible.put(variable.getKey(), variable.getValue().get());
+		}
+		return visible;
+	}
+
+	private static Map<QName, WeakReference<ElemVariable>> getScope(ElemTemplateElement element) {
+		if(element == null) return NO_SCOPE;
+		Map<QName, WeakReference<ElemVariable>> scope = scopes.get(element);
+		if(scope == null) {
+			index(getTopLevelElement(element));
+			scope = scopes.get(element);
+		}
+		return scope != null ? scope : NO_SCOPE;
+	}
+
+	/**
+	 * Indexes every top level element of the stylesheet (including its imports and includes).
+	 */
+	public static void precompute(StylesheetRoot stylesheet) {
+		for(int i = 0; i < stylesheet.getGlobalImportCount(); i++) {
+			StylesheetComposed imported = stylesheet.getGlobalImport(i);
+			//-1 is the stylesheet itself
+			for(int j = -1; j < imported.getIncludeCountComposed(); j++) {
+				Stylesheet sheet = imported.getIncludeComposed(j);
+				for(ElemTemplateElement child = sheet.getFirstChildElem(); child != null; child = child.getNextSiblingElem()) {
+					index(child);
+				}
+			}
+		}
+	}
+
+	private static ElemTemplateElement getTopLevelElement(ElemTemplateElement element) {
+		while(element.getParentElem() != null && !(element.getParentNode() instanceof Stylesheet)) {
+			element = element.getParentElem();
+		}
+		return element;
+	}
+
+	private static void index(ElemTemplateElement topLevel) {
+		if(scopes.get(topLevel) != null) return;
+		index(topLevel, NO_SCOPE);
+		//the top level element itself can't see any locals, and marks the element as indexed
+		scopes.computeIfAbsent(topLevel, e -> NO_SCOPE);
+	}
+
+	private static void index(ElemTemplateElement parent, Map<QName, WeakReference<ElemVariable>> inherited) {
+		Map<QName, WeakReference<ElemVariable>> visible = inherited;
+		for(ElemTemplateElement child = parent.getFirstChildElem(); child != null; child = child.getNextSiblingElem()) {
+			final Map<QName, WeakReference<ElemVariable>> scope = visible;
+			scopes.computeIfAbsent(child, e -> scope);
+			index(child, scope);
+			if(child instanceof ElemVariable) {
+				//later siblings (and their children) can see the declaration, the closest one wins
+				Map<QName, WeakReference<ElemVariable>> extended = new HashMap<QName, WeakReference<ElemVariable>>(visible);
+				extended.put(((ElemVariable)child).getName(), new WeakReference<ElemVariable>((ElemVariable)child));
+				visible = Collections.unmodifiableMap(extended);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package org.apache.xpath;
+
+/**
+ * A helper to let a branch transformer see the same documents as the transformer that started it.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class DTMManagerBridge {
+
+    /**
+     * Makes <code>target</code> resolve node handles through the DTM manager of <code>source</code>, so node
+     * handles (and the source document) can be used in both contexts.  The default DTM manager synchronizes the
+     * methods that create or look up documents, so the manager can be shared across threads.
+     */
+    public static void shareDTMManager(XPathContext source, XPathContext target){
+        target.m_dtmManager = source.m_dtmManager;
+    }
+
+}
@@ -119,4 +119,13 @@ public abstract class XSLTBasedTest {
             assertEquals("Incorrect error", errorMessage, listener.getAllErrors().get(0).getMessage());
         }
     }
+
+    /**
+     * @return The content of the first <code>&lt;name&gt;</code> element in the output.
+     */
+    protected String section(String output, String name){
+        int start = output.indexOf("<" + name + ">");
+        int end = output.indexOf("</" + name + ">");
+        return output.substring(start + name.length() + 2, end);
+    }
 }
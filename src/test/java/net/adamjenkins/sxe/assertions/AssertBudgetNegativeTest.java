@@ -0,0 +1,41 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.assertions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.adamjenkins.sxe.XSLTBasedTest;
+import net.adamjenkins.sxe.util.XSLTErrorListener;
+
+/**
+ * Test a block that goes over its (zero millisecond) budget.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class AssertBudgetNegativeTest extends XSLTBasedTest {
+
+    @Override
+    protected void processResults(String output, XSLTErrorListener listener) {
+        //the time taken changes from run to run
+        assertEquals("Incorrect number of errors", 1, listener.getAllErrors().size());
+        String message = listener.getAllErrors().get(0).getMessage();
+        assertTrue("Incorrect error: " + message, message.startsWith("Budget 'sectors' exceeded: took "));
+        assertTrue("Output of the block was lost", output.contains("<sector name=\"Energy\""));
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.assertions;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Test;
+
+import net.adamjenkins.sxe.execution.BatchResult;
+import net.adamjenkins.sxe.execution.BatchTransformer;
+
+/**
+ * Runs the assert:called stylesheet many times at once (and on reused transformers), each run must only see its own
+ * token calls.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class ConcurrentAssertionTest {
+
+    @Test
+    public void testCountsPerTransformation() throws Exception{
+        List<Source> sources = new ArrayList<Source>();
+        for(int i = 0; i < 40; i++){
+            sources.add(new StreamSource(getClass().getResourceAsStream("/net/adamjenkins/sxe/TestFile.xml")));
+        }
+        Source stylesheet = new StreamSource(getClass().getResourceAsStream("/net/adamjenkins/sxe/assertions/AssertCalledPositiveTest.xsl"));
+        try(BatchTransformer batch = new BatchTransformer(stylesheet, 4)){
+            for(BatchResult result : batch.transformAll(sources, source -> new StreamResult(new StringWriter()))){
+                assertTrue(result.toString() + ": " + result.getErrors(), result.isSuccessful());
+            }
+        }
+    }
+
+}
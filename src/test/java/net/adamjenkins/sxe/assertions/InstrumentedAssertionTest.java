@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.assertions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.Collections;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Test;
+
+import net.adamjenkins.sxe.elements.Assertion;
+import net.adamjenkins.sxe.execution.BatchResult;
+import net.adamjenkins.sxe.execution.BatchTransformer;
+
+/**
+ * Test that the literal result elements targeted by the called assertions are counted by the hooks added when the
+ * stylesheet is compiled.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class InstrumentedAssertionTest {
+
+    private static final String STYLESHEET = "/net/adamjenkins/sxe/assertions/InstrumentedAssertionTest.xsl";
+
+    @Test
+    public void testInstrumentOnce() throws Exception{
+        TransformerFactory factory = TransformerFactory.newInstance("org.apache.xalan.processor.TransformerFactoryImpl", getClass().getClassLoader());
+        Templates templates = factory.newTemplates(new StreamSource(getClass().getResourceAsStream(STYLESHEET)));
+        assertEquals("Targeted elements were not instrumented", 2, Assertion.instrument(templates));
+        assertEquals("Stylesheet was instrumented twice", 0, Assertion.instrument(templates));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInstrumentAfterUse() throws Exception{
+        TransformerFactory factory = TransformerFactory.newInstance("org.apache.xalan.processor.TransformerFactoryImpl", getClass().getClassLoader());
+        Templates templates = factory.newTemplates(new StreamSource(getClass().getResourceAsStream(STYLESHEET)));
+        Source source = new StreamSource(getClass().getResourceAsStream("/net/adamjenkins/sxe/TestFile.xml"));
+        templates.newTransformer().transform(source, new StreamResult(new StringWriter()));
+        //other threads could be running the stylesheet by now, so it mustn't be changed
+        Assertion.instrument(templates);
+    }
+
+    @Test
+    public void testInstrumentedElementsCounted() throws Exception{
+        Source stylesheet = new StreamSource(getClass().getResourceAsStream(STYLESHEET));
+        try(BatchTransformer batch = new BatchTransformer(stylesheet, 2)){
+            Source source = new StreamSource(getClass().getResourceAsStream("/net/adamjenkins/sxe/TestFile.xml"));
+            for(BatchResult result : batch.transformAll(Collections.singletonList(source), s -> new StreamResult(new StringWriter()))){
+                assertTrue(result.toString() + ": " + result.getErrors(), result.isSuccessful());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.assertions;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Test;
+
+import net.adamjenkins.sxe.util.XSLTErrorListener;
+
+/**
+ * Runs the assert:called stylesheet twice on the same transformer, the second run mustn't see the token calls (or
+ * the start time) of the first.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class ReusedTransformerAssertionTest {
+
+    @Test
+    public void testStateNotCarriedOver() throws Exception{
+        TransformerFactory factory = TransformerFactory.newInstance("org.apache.xalan.processor.TransformerFactoryImpl", getClass().getClassLoader());
+        Transformer transformer = factory.newTransformer(new StreamSource(getClass().getResourceAsStream("/net/adamjenkins/sxe/assertions/AssertCalledPositiveTest.xsl")));
+        for(int run = 1; run <= 2; run++){
+            XSLTErrorListener listener = new XSLTErrorListener();
+            transformer.setErrorListener(listener);
+            transformer.transform(new StreamSource(getClass().getResourceAsStream("/net/adamjenkins/sxe/TestFile.xml")), new StreamResult(new StringWriter()));
+            assertEquals("Errors on run " + run + ": " + listener.getAllErrors(), 0, listener.getAllErrors().size());
+        }
+    }
+
+}
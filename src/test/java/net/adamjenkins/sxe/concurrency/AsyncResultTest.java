@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.concurrency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+
+import org.apache.xml.serializer.ToXMLStream;
+import org.junit.Test;
+import org.xml.sax.helpers.AttributesImpl;
+
+import net.adamjenkins.sxe.elements.concurrency.AsyncResult;
+
+/**
+ * Test for the output handle of asynchronous blocks.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class AsyncResultTest {
+
+    @Test
+    public void testReplayedMoreThanOnce() throws Exception{
+        AsyncResult result = new AsyncResult();
+        Thread branch = new Thread(() -> {
+            try{
+                result.startElement("", "price", "price", new AttributesImpl());
+                result.characters("10".toCharArray(), 0, 2);
+                result.endElement("", "price", "price");
+                result.close();
+            }catch(Exception e){
+                result.cancel();
+            }
+        });
+        branch.start();
+        assertTrue("Block did not finish", result.await(10000));
+        assertFalse(result.isCancelled());
+        assertEquals("<price>10</price>", write(result));
+        assertEquals("<price>10</price>", write(result));
+    }
+
+    @Test
+    public void testCancelledBlockHasNoOutput() throws Exception{
+        AsyncResult result = new AsyncResult();
+        result.startElement("", "price", "price", new AttributesImpl());
+        result.cancel();
+        assertTrue("Block timed out", result.await(1));
+        assertTrue(result.isCancelled());
+        assertEquals("", write(result));
+    }
+
+    @Test
+    public void testTimeout() throws Exception{
+        assertFalse(new AsyncResult().await(10));
+    }
+
+    private String write(AsyncResult result) throws Exception{
+        StringWriter out = new StringWriter();
+        ToXMLStream stream = new ToXMLStream();
+        stream.setOmitXMLDeclaration(true);
+        stream.setWriter(out);
+        stream.startDocument();
+        result.writeTo(stream);
+        stream.endDocument();
+        return out.toString();
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.concurrency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import javax.xml.transform.TransformerException;
+
+import net.adamjenkins.sxe.XSLTBasedTest;
+import net.adamjenkins.sxe.util.XSLTErrorListener;
+
+/**
+ * Test for the async and await elements.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class AsyncTest extends XSLTBasedTest {
+
+    @Override
+    protected void processResults(String output, XSLTErrorListener listener){
+        String expected = section(output, "expected");
+        assertTrue("No output from serial processing", expected.contains("<price"));
+        assertEquals("Awaited output was incorrect", expected, section(output, "first"));
+        assertEquals("Output was incorrect when awaited a second time", expected, section(output, "second"));
+        assertTrue("Failed block wrote output", output.contains("<failed/>"));
+        boolean reported = false;
+        for(TransformerException e : listener.getAllErrors()){
+            reported |= "Asynchronous block failed or was cancelled".equals(e.getMessage());
+        }
+        assertTrue("Failed block was not reported by await", reported);
+    }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.concurrency;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+
+import net.adamjenkins.sxe.XSLTBasedTest;
+import net.adamjenkins.sxe.elements.concurrency.ThreadPoolRegistry;
+import net.adamjenkins.sxe.util.XSLTErrorListener;
+
+/**
+ * Test that parallel elements can be dispatched to a shared pool by name.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class NamedPoolParallelTest extends XSLTBasedTest {
+
+    private static final Pattern THREAD = Pattern.compile("<thread code=\"[^\"]*\">([^<]*)</thread>");
+
+    @After
+    public void tearDown() throws InterruptedException{
+        ThreadPoolRegistry.shutdownAll(1000);
+    }
+
+    @Override
+    protected void processResults(String output, XSLTErrorListener listener){
+        super.processResults(output, listener);
+        Matcher m = THREAD.matcher(output);
+        int count = 0;
+        while(m.find()){
+            assertTrue("Branch did not run on the named pool: " + m.group(1), m.group(1).startsWith("sxe-namedPoolTest-"));
+            count++;
+        }
+        assertTrue("No output from the parallel elements", count > 0);
+    }
+
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.concurrency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.adamjenkins.sxe.XSLTBasedTest;
+import net.adamjenkins.sxe.util.XSLTErrorListener;
+
+/**
+ * Test that parallel output is written in document order, when the early branches take longer than the later ones
+ * and when a branch has parallel elements of its own.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class ParallelOrderTest extends XSLTBasedTest {
+
+    @Override
+    protected void processResults(String output, XSLTErrorListener listener){
+        super.processResults(output, listener);
+        String serial = section(output, "serial");
+        String parallel = section(output, "parallel");
+        assertTrue("No output from serial processing", serial.contains("<detail"));
+        assertEquals("Parallel output was not in document order", serial, parallel);
+    }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.concurrency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import net.adamjenkins.sxe.XSLTBasedTest;
+import net.adamjenkins.sxe.util.XSLTErrorListener;
+
+/**
+ * Test that parallel elements running on a thread pool see the same variables and parameters as they would if the
+ * body was processed in line.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class ParallelVariablesTest extends XSLTBasedTest {
+
+    @Override
+    public Map<String, Object> getParameters() {
+        HashMap<String,Object> params = new HashMap<String,Object>();
+        params.put("region", "APAC");
+        return params;
+    }
+
+    @Override
+    protected void processResults(String output, XSLTErrorListener listener){
+        super.processResults(output, listener);
+        String serial = section(output, "serial");
+        String parallel = section(output, "parallel");
+        assertTrue("No output from serial processing", serial.contains("region=\"APAC\""));
+        assertEquals("Parallel output did not match serial output", serial, parallel);
+    }
+
+}
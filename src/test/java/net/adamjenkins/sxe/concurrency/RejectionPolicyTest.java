@@ -0,0 +1,99 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.concurrency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import net.adamjenkins.sxe.elements.concurrency.RejectionPolicy;
+
+/**
+ * Test for the thread pool rejection policies.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class RejectionPolicyTest {
+
+    @Test
+    public void testAttributeValues(){
+        for(RejectionPolicy policy : RejectionPolicy.values()){
+            assertEquals(policy, RejectionPolicy.forAttributeValue(policy.getAttributeValue()));
+        }
+        assertNull(RejectionPolicy.forAttributeValue("CALLER_RUNS"));
+    }
+
+    @Test
+    public void testBlockWaitsForRoom() throws InterruptedException{
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger completed = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1), RejectionPolicy.BLOCK.createHandler());
+        try{
+            executor.execute(() -> {
+                try{
+                    release.await();
+                }catch(InterruptedException ignore){}
+                completed.incrementAndGet();
+            });
+            executor.execute(completed::incrementAndGet);
+            new Thread(() -> {
+                try{
+                    Thread.sleep(100);
+                }catch(InterruptedException ignore){}
+                release.countDown();
+            }).start();
+            //the pool and queue are both full, so this has to wait for the first task to finish
+            executor.execute(completed::incrementAndGet);
+            assertEquals("Caller should not have run before the blocking task finished", 0, release.getCount());
+        }finally{
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(3, completed.get());
+    }
+
+    @Test
+    public void testBlockRunsNestedTasksOnWorker() throws InterruptedException{
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicInteger completed = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(1),
+                RejectionPolicy.BLOCK.createThreadFactory(Executors.defaultThreadFactory()), RejectionPolicy.BLOCK.createHandler());
+        try{
+            executor.execute(() -> {
+                //the first fills the queue, the second would wait forever for the only worker (this one) to take it
+                executor.execute(completed::incrementAndGet);
+                executor.execute(completed::incrementAndGet);
+                done.countDown();
+            });
+            assertTrue("Worker blocked on its own pool", done.await(10, TimeUnit.SECONDS));
+        }finally{
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(2, completed.get());
+    }
+
+}
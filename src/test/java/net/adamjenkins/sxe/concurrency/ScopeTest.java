@@ -0,0 +1,53 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.concurrency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.adamjenkins.sxe.XSLTBasedTest;
+import net.adamjenkins.sxe.util.XSLTErrorListener;
+
+/**
+ * Test for the scope element, a failing or slow parallel element should cancel the rest of the scope and run the
+ * fallback.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class ScopeTest extends XSLTBasedTest {
+
+    private long start;
+
+    @Override
+    protected void setUp() {
+        start = System.currentTimeMillis();
+    }
+
+    @Override
+    protected void processResults(String output, XSLTErrorListener listener){
+        assertTrue("Fallback not run when a parallel element failed", output.contains("<failed/>"));
+        assertFalse("Sibling of the failed parallel element was not cancelled", output.contains("<sibling/>"));
+        assertTrue("Fallback not run when the timeout was reached", output.contains("<timed-out/>"));
+        assertFalse("Parallel element was not cancelled when the timeout was reached", output.contains("<slow/>"));
+        assertTrue("Scope with an invalid timeout did not wait for its parallel elements", output.contains("<finished/>"));
+        assertEquals("Invalid timeout was not reported", 1, listener.getAllErrors().size());
+        assertTrue("Incorrect error", listener.getAllErrors().get(0).getMessage().contains("timeout"));
+        assertTrue("Cancelled parallel elements were not interrupted", System.currentTimeMillis() - start < 10000);
+    }
+
+}
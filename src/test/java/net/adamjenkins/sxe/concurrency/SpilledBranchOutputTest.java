@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.concurrency;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+import java.util.Properties;
+
+import org.apache.xml.serializer.Method;
+import org.apache.xml.serializer.OutputPropertiesFactory;
+import org.apache.xml.serializer.SerializationHandler;
+import org.apache.xml.serializer.Serializer;
+import org.apache.xml.serializer.SerializerFactory;
+import org.junit.Test;
+import org.xml.sax.helpers.AttributesImpl;
+
+import net.adamjenkins.sxe.elements.concurrency.ResultSlot;
+import net.adamjenkins.sxe.elements.concurrency.SXEMultithreadedSerializationHandler;
+import net.adamjenkins.sxe.elements.concurrency.SpillingStreamRepository;
+
+/**
+ * Tests that branch output too large to keep on the heap is written through the stream repository and comes out
+ * unchanged, and in the right place.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class SpilledBranchOutputTest {
+
+    private static final int ELEMENTS = 3000;
+
+    @Test
+    public void testLargeOutputSpilled() throws Exception{
+        //small enough that the branch output ends up in a mapped file
+        SpillingStreamRepository repository = new SpillingStreamRepository(16, 1000, false, null, 4);
+        StringWriter out = new StringWriter();
+        SXEMultithreadedSerializationHandler handler = new SXEMultithreadedSerializationHandler(createSerializer(out), repository);
+        handler.startDocument();
+        handler.startElement("", "root", "root", new AttributesImpl());
+        final ResultSlot large = handler.reserveSlot();
+        ResultSlot cancelled = handler.reserveSlot();
+        ResultSlot small = handler.reserveSlot();
+        handler.characters("after".toCharArray(), 0, 5);
+        Thread branch = new Thread(() -> {
+            try{
+                for(int i = 0; i < ELEMENTS; i++){
+                    AttributesImpl atts = new AttributesImpl();
+                    atts.addAttribute("", "n", "n", "CDATA", String.valueOf(i));
+                    large.startElement("", "e", "e", atts);
+                    char[] text = ("value " + i).toCharArray();
+                    large.characters(text, 0, text.length);
+                    large.endElement("", "e", "e");
+                }
+                large.close();
+            }catch(Exception e){
+                large.cancel();
+            }
+        });
+        branch.start();
+        for(int i = 0; i < ELEMENTS; i++){
+            cancelled.startElement("", "discarded", "discarded", new AttributesImpl());
+        }
+        cancelled.cancel();
+        small.startElement("", "small", "small", new AttributesImpl());
+        small.endElement("", "small", "small");
+        small.close();
+        branch.join();
+        handler.endElement("", "root", "root");
+        handler.endDocument();
+        StringBuilder expected = new StringBuilder("<root>");
+        for(int i = 0; i < ELEMENTS; i++){
+            expected.append("<e n=\"").append(i).append("\">value ").append(i).append("</e>");
+        }
+        expected.append("<small/>after</root>");
+        assertEquals("Spilled output was not written correctly", expected.toString(), out.toString());
+        assertEquals("Spilled output was not released", 0, repository.getStoredStreamCount());
+    }
+
+    private SerializationHandler createSerializer(StringWriter out) throws Exception{
+        Properties format = OutputPropertiesFactory.getDefaultMethodProperties(Method.XML);
+        format.setProperty("omit-xml-declaration", "yes");
+        Serializer serializer = SerializerFactory.getSerializer(format);
+        serializer.setWriter(out);
+        return (SerializationHandler)serializer.asContentHandler();
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.concurrency;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import net.adamjenkins.sxe.elements.concurrency.SpillingStreamRepository;
+
+/**
+ * Test for the spill to disk stream repository.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class SpillingStreamRepositoryTest {
+
+    private final SpillingStreamRepository repository = new SpillingStreamRepository(16, 100, false, null, 4);
+
+    @Test
+    public void testInMemory() throws IOException{
+        assertRoundTrip(1, 90);
+    }
+
+    @Test
+    public void testSpilledToDisk() throws IOException{
+        assertRoundTrip(2, 5000);
+    }
+
+    @Test
+    public void testChunksReturnedToPool() throws IOException{
+        assertRoundTrip(3, 60);
+        assertEquals("Chunks were not returned to the pool", 4, repository.getPooledChunkCount());
+        assertEquals("Stream was not released", 0, repository.getStoredStreamCount());
+    }
+
+    @Test
+    public void testChunksHeldUntilEveryReaderReturns() throws IOException{
+        byte[] data = write(4, 60, 0);
+        InputStream first = repository.borrowInputStream(4);
+        InputStream second = repository.borrowInputStream(4);
+        assertArrayEquals("Data was not read back correctly", data, IOUtils.toByteArray(first));
+        repository.returnInputStream(4, first);
+        assertEquals("Chunks were returned to the pool while still being read", 0, repository.getPooledChunkCount());
+        //would reuse the chunks of the first stream if they had been released
+        write(5, 60, 100);
+        assertArrayEquals("Data was overwritten while still being read", data, IOUtils.toByteArray(second));
+        repository.returnInputStream(4, second);
+        repository.returnInputStream(5, repository.borrowInputStream(5));
+        assertEquals("Chunks were not returned to the pool", 4, repository.getPooledChunkCount());
+        assertEquals("Stream was not released", 0, repository.getStoredStreamCount());
+    }
+
+    private byte[] write(long id, int length, int offset) throws IOException{
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i++){
+            data[i] = (byte)(i + offset);
+        }
+        OutputStream out = repository.borrowOuputStream(id);
+        out.write(data, 0, length);
+        repository.returnOuputStream(id, out);
+        return data;
+    }
+
+    private void assertRoundTrip(long id, int length) throws IOException{
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i++){
+            data[i] = (byte)i;
+        }
+        OutputStream out = repository.borrowOuputStream(id);
+        out.write(data, 0, length / 2);
+        for(int i = length / 2; i < length; i++){
+            out.write(data[i]);
+        }
+        repository.returnOuputStream(id, out);
+        InputStream in = repository.borrowInputStream(id);
+        assertArrayEquals("Data was not read back correctly", data, IOUtils.toByteArray(in));
+        repository.returnInputStream(id, in);
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.concurrency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.junit.Test;
+
+import net.adamjenkins.sxe.elements.concurrency.StripedLock;
+
+/**
+ * Test for the striped lock table.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class StripedLockTest {
+
+    @Test
+    public void testSameKeySameLock(){
+        StripedLock locks = new StripedLock();
+        assertSame(locks.getLock("customer-1"), locks.getLock(new String("customer-1")));
+    }
+
+    @Test
+    public void testStripeCountRoundedUp(){
+        assertEquals(64, new StripedLock(50).getStripeCount());
+        assertEquals(1, new StripedLock(1).getStripeCount());
+    }
+
+    @Test
+    public void testKeysAreSpread(){
+        StripedLock locks = new StripedLock(16);
+        Set<ReentrantLock> used = new HashSet<ReentrantLock>();
+        for(int i = 0; i < 1000; i++){
+            used.add(locks.getLock("customer-" + i));
+        }
+        assertEquals("Keys were not spread across the stripes", 16, used.size());
+    }
+
+}
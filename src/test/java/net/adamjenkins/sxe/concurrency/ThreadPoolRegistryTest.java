@@ -0,0 +1,75 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.concurrency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import net.adamjenkins.sxe.elements.concurrency.NamedThreadPool;
+import net.adamjenkins.sxe.elements.concurrency.ThreadPoolRegistry;
+
+/**
+ * Test for the shared thread pool registry.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class ThreadPoolRegistryTest {
+
+    @After
+    public void tearDown() throws InterruptedException{
+        ThreadPoolRegistry.shutdownAll(1000);
+    }
+
+    @Test
+    public void testPoolIsShared(){
+        NamedThreadPool first = ThreadPoolRegistry.getOrCreate("shared", factory -> newExecutor(factory));
+        NamedThreadPool second = ThreadPoolRegistry.getOrCreate("shared", factory -> newExecutor(factory));
+        assertSame("Pool was created twice", first, second);
+        assertSame(first, ThreadPoolRegistry.get("shared"));
+    }
+
+    @Test
+    public void testStatistics() throws InterruptedException{
+        NamedThreadPool pool = ThreadPoolRegistry.getOrCreate("stats", factory -> newExecutor(factory));
+        CountDownLatch done = new CountDownLatch(3);
+        for(int i = 0; i < 3; i++){
+            pool.execute(done::countDown);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(ThreadPoolRegistry.shutdown("stats", 10000));
+        assertEquals(3, pool.getCompletedCount());
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(0, pool.getQueuedCount());
+        assertNull("Pool was not removed", ThreadPoolRegistry.get("stats"));
+    }
+
+    private ThreadPoolExecutor newExecutor(ThreadFactory factory){
+        return new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+    }
+
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.concurrency;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import net.adamjenkins.sxe.elements.concurrency.VirtualThreadSupport;
+
+/**
+ * Test for virtual thread pools.  Only one of the tests will run, depending on the JVM running the build.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class VirtualThreadSupportTest {
+
+    @Test
+    public void testRunsOnVirtualThread() throws Exception{
+        assumeTrue(VirtualThreadSupport.isAvailable());
+        ExecutorService executor = VirtualThreadSupport.newExecutor();
+        try{
+            Boolean virtual = executor.submit(() -> (Boolean)Thread.class.getMethod("isVirtual").invoke(Thread.currentThread())).get(10, TimeUnit.SECONDS);
+            assertEquals("Task did not run on a virtual thread", Boolean.TRUE, virtual);
+        }finally{
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testUnavailable(){
+        assumeFalse(VirtualThreadSupport.isAvailable());
+        VirtualThreadSupport.newExecutor();
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import net.adamjenkins.sxe.elements.Logging.Level;
+import net.adamjenkins.sxe.elements.logging.AsyncLogAppender;
+import nl.altindag.log.LogCaptor;
+
+/**
+ * Test for the background log appender.
+ * 
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class AsyncLogAppenderTest {
+
+	@Test
+	public void testRecordsWrittenInOrder() throws Exception {
+		LogCaptor logCaptor = LogCaptor.forClass(AsyncLogAppenderTest.class);
+		List<String> expected = new ArrayList<String>();
+		try(AsyncLogAppender appender = new AsyncLogAppender(4096)){
+			for(int i = 0; i < 1000; i++){
+				String message = "record " + i;
+				if(appender.offer(Level.INFO, LoggerFactory.getLogger(AsyncLogAppenderTest.class), message)) expected.add(message);
+			}
+		}
+		assertThat(logCaptor.getInfoLogs()).containsExactlyElementsOf(expected);
+		assertThat(expected).hasSize(1000);
+	}
+
+	@Test
+	public void testRefusedOnceClosed() throws Exception {
+		AsyncLogAppender appender = new AsyncLogAppender(16);
+		appender.close();
+		assertThat(appender.offer(Level.INFO, LoggerFactory.getLogger(AsyncLogAppenderTest.class), "late")).isFalse();
+	}
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import net.adamjenkins.sxe.elements.Logging.Level;
+import net.adamjenkins.sxe.elements.logging.LogCaptureSink;
+import net.adamjenkins.sxe.elements.logging.LogCaptureSink.OverflowPolicy;
+
+/**
+ * Test for capturing log output from several threads.
+ * 
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class LogCaptureSinkTest {
+
+	@Test
+	public void testConcurrentCapture() throws Exception {
+		StringWriter out = new StringWriter();
+		final LogCaptureSink sink = new LogCaptureSink(out, Level.DEBUG, 16, OverflowPolicy.BLOCK);
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int t = 0; t < 4; t++){
+			final int thread = t;
+			threads.add(new Thread(() -> {
+				for(int i = 0; i < 500; i++){
+					sink.capture(thread + ":" + i + "\r\n");
+				}
+			}));
+		}
+		for(Thread t : threads) t.start();
+		for(Thread t : threads) t.join();
+		sink.close();
+		String[] lines = out.toString().split("\r\n");
+		assertThat(lines).hasSize(2000);
+		int[] last = {-1, -1, -1, -1};
+		for(String line : lines){
+			String[] parts = line.split(":");
+			int thread = Integer.parseInt(parts[0]);
+			int record = Integer.parseInt(parts[1]);
+			assertThat(record).isGreaterThan(last[thread]);
+			last[thread] = record;
+		}
+	}
+
+	@Test
+	public void testDiscardWhenFull() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		StringWriter out = new StringWriter(){
+			@Override
+			public void write(String str) {
+				try{
+					release.await();
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+				}
+				super.write(str);
+			}
+		};
+		LogCaptureSink sink = new LogCaptureSink(out, Level.DEBUG, 4, OverflowPolicy.DISCARD);
+		for(int i = 0; i < 100; i++){
+			sink.capture("record\r\n");
+		}
+		release.countDown();
+		sink.close();
+		assertThat(sink.getDroppedCount()).isGreaterThan(0);
+		assertThat(out.toString()).contains("log records were discarded");
+	}
+
+	@Test
+	public void testLevel() throws IOException {
+		LogCaptureSink sink = new LogCaptureSink(new StringWriter(), Level.WARN);
+		assertThat(sink.isEnabled(Level.INFO)).isFalse();
+		assertThat(sink.isEnabled(Level.ERROR)).isTrue();
+		sink.close();
+		assertThat(sink.isEnabled(Level.ERROR)).isFalse();
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.elements;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import net.adamjenkins.sxe.elements.Logging.Level;
+import net.adamjenkins.sxe.elements.logging.RecordLimiter;
+import net.adamjenkins.sxe.elements.logging.SuppressedRecords;
+
+/**
+ * Test for sampling and rate limiting log records.
+ * 
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class RecordLimiterTest {
+
+	@Test
+	public void testSampling() {
+		RecordLimiter limiter = new RecordLimiter(100, 0);
+		int passed = 0;
+		for(int i = 0; i < 10000; i++){
+			if(limiter.tryAcquire()) passed++;
+		}
+		assertThat(passed).isEqualTo(100);
+	}
+
+	@Test
+	public void testRateLimit() {
+		RecordLimiter limiter = new RecordLimiter(1, 50);
+		long start = System.nanoTime();
+		int passed = 0;
+		for(int i = 0; i < 100000; i++){
+			if(limiter.tryAcquire()) passed++;
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		//a second's worth up front, then 50 a second
+		assertThat(passed).isBetween(1, 50 + (int)Math.ceil(seconds * 50) + 1);
+	}
+
+	@Test
+	public void testSuppressedCounts() {
+		SuppressedRecords records = new SuppressedRecords();
+		Object first = new Object();
+		Object second = new Object();
+		for(int i = 0; i < 10; i++){
+			records.suppressed(first, LoggerFactory.getLogger(RecordLimiterTest.class), Level.INFO, 1);
+			records.suppressed(second, LoggerFactory.getLogger(RecordLimiterTest.class), Level.INFO, 2);
+		}
+		assertThat(records.getTotal()).isEqualTo(20);
+	}
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.execution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Test;
+
+/**
+ * Test for the batch transformation engine.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class BatchTransformerTest {
+
+    private static final String STYLESHEET =
+            "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">" +
+            "<xsl:output omit-xml-declaration=\"yes\"/>" +
+            "<xsl:template match=\"/\"><result><xsl:value-of select=\"/document\"/></result></xsl:template>" +
+            "</xsl:stylesheet>";
+
+    private static final String RECURSIVE_STYLESHEET =
+            "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">" +
+            "<xsl:output omit-xml-declaration=\"yes\"/>" +
+            "<xsl:template match=\"/\"><result><xsl:call-template name=\"count\"/></result></xsl:template>" +
+            "<xsl:template name=\"count\"><xsl:param name=\"n\" select=\"0\"/>" +
+            "<xsl:choose>" +
+            "<xsl:when test=\"/document = 'forever' or $n &lt; /document\">" +
+            "<xsl:call-template name=\"count\"><xsl:with-param name=\"n\" select=\"$n + 1\"/></xsl:call-template>" +
+            "</xsl:when>" +
+            "<xsl:otherwise><xsl:value-of select=\"$n\"/></xsl:otherwise>" +
+            "</xsl:choose>" +
+            "</xsl:template>" +
+            "</xsl:stylesheet>";
+
+    @Test
+    public void testResultsPerDocument() throws Exception{
+        List<Source> sources = new ArrayList<Source>();
+        for(int i = 0; i < 100; i++){
+            //number 42 isn't well formed
+            String document = i == 42 ? "<document>" : "<document>" + i + "</document>";
+            sources.add(new StreamSource(new StringReader(document)));
+        }
+        try(BatchTransformer batch = new BatchTransformer(new StreamSource(new StringReader(STYLESHEET)), 4)){
+            List<BatchResult> results = batch.transformAll(sources, source -> new StreamResult(new StringWriter()));
+            assertEquals(100, results.size());
+            for(int i = 0; i < 100; i++){
+                BatchResult result = results.get(i);
+                assertEquals(i, result.getIndex());
+                if(i == 42){
+                    assertFalse(result.isSuccessful());
+                    assertNotNull(result.getFailure());
+                }else{
+                    assertTrue(result.toString(), result.isSuccessful());
+                    assertEquals("<result>" + i + "</result>", ((StreamResult)result.getResult()).getWriter().toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testErrorsDontFailTheBatch() throws Exception{
+        List<Source> sources = new ArrayList<Source>();
+        sources.add(new StreamSource(new StringReader("<document>3</document>")));
+        //never stops recursing, so the transformation dies with a StackOverflowError, which isn't an exception
+        sources.add(new StreamSource(new StringReader("<document>forever</document>")));
+        sources.add(new StreamSource(new StringReader("<document>5</document>")));
+        try(BatchTransformer batch = new BatchTransformer(new StreamSource(new StringReader(RECURSIVE_STYLESHEET)), 1)){
+            List<BatchResult> results = batch.transformAll(sources, source -> new StreamResult(new StringWriter()));
+            assertEquals(3, results.size());
+            assertEquals("<result>3</result>", ((StreamResult)results.get(0).getResult()).getWriter().toString());
+            assertFalse(results.get(1).isSuccessful());
+            assertNotNull(results.get(1).getFailure());
+            //the transformer that overflowed is thrown away, the next document gets a fresh one
+            assertTrue(results.get(2).toString(), results.get(2).isSuccessful());
+            assertEquals("<result>5</result>", ((StreamResult)results.get(2).getResult()).getWriter().toString());
+        }
+    }
+
+}
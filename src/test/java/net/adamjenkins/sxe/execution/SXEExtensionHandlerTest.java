@@ -0,0 +1,56 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.execution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.Collections;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Test;
+
+import net.adamjenkins.sxe.elements.SXEExtensionHandler;
+
+/**
+ * Runs one of the java bean tests with the SXE extension handler installed.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class SXEExtensionHandlerTest {
+
+    @Test
+    public void testElementsDispatchedThroughHandler() throws Exception{
+        TransformerFactory factory = TransformerFactory.newInstance("org.apache.xalan.processor.TransformerFactoryImpl", getClass().getClassLoader());
+        Templates templates = factory.newTemplates(new StreamSource(getClass().getResourceAsStream("/net/adamjenkins/sxe/bean/InvokeTest.xsl")));
+        assertTrue("Handler was not installed", SXEExtensionHandler.install(templates) > 0);
+        try(BatchTransformer batch = new BatchTransformer(templates, 2, Collections.<String, Object>emptyMap())){
+            for(int i = 0; i < 3; i++){
+                StringWriter out = new StringWriter();
+                BatchResult result = batch.transform(new StreamSource(getClass().getResourceAsStream("/net/adamjenkins/sxe/TestFile.xml")), new StreamResult(out));
+                assertTrue(result.toString(), result.isSuccessful());
+                assertEquals("text|true|1.1", out.toString());
+            }
+        }
+    }
+
+}
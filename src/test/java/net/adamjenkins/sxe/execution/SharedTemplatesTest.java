@@ -0,0 +1,79 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.execution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Test;
+
+/**
+ * Runs one compiled stylesheet that binds bean variables (global and local) across several threads, to check values
+ * from one transform never turn up in another.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class SharedTemplatesTest {
+
+    private static final String STYLESHEET =
+            "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" " +
+            "xmlns:bean=\"xalan://net.adamjenkins.sxe.elements.JavaBean\" extension-element-prefixes=\"bean\">" +
+            "<xsl:output method=\"text\"/>" +
+            "<xsl:variable name=\"global\"><bean:instantiate class=\"net.adamjenkins.sxe.bean.MockBean\"/></xsl:variable>" +
+            "<xsl:template match=\"/\">" +
+            "<xsl:variable name=\"local\"><bean:instantiate class=\"net.adamjenkins.sxe.bean.MockBean\"/></xsl:variable>" +
+            "<xsl:variable name=\"ignored\">" +
+            "<bean:invoke target=\"$local\" method=\"configure\">" +
+            "<bean:parameter select=\"string(/document)\"/><bean:parameter select=\"true()\"/><bean:parameter select=\"1.1\"/>" +
+            "</bean:invoke>" +
+            "</xsl:variable>" +
+            "<xsl:variable name=\"ignoredGlobal\">" +
+            "<bean:invoke target=\"$global\" method=\"setText\"><bean:parameter select=\"string(/document)\"/></bean:invoke>" +
+            "</xsl:variable>" +
+            "<xsl:value-of select=\"$ignored\"/>:<xsl:value-of select=\"$local\"/>:<xsl:value-of select=\"$global\"/>" +
+            "</xsl:template>" +
+            "</xsl:stylesheet>";
+
+    @Test
+    public void testCompiledStylesheetShared() throws Exception{
+        Templates templates = BatchTransformer.compile(new StreamSource(new StringReader(STYLESHEET)));
+        List<Source> sources = new ArrayList<Source>();
+        for(int i = 0; i < 50; i++){
+            sources.add(new StreamSource(new StringReader("<document>" + i + "</document>")));
+        }
+        try(BatchTransformer batch = new BatchTransformer(templates, 4, Collections.<String, Object>emptyMap())){
+            List<BatchResult> results = batch.transformAll(sources, source -> new StreamResult(new StringWriter()));
+            for(BatchResult result : results){
+                assertTrue(result.toString(), result.isSuccessful());
+                long i = result.getIndex();
+                assertEquals("passed:" + i + "|true|1.1:" + i + "|false|0.0", ((StreamResult)result.getResult()).getWriter().toString());
+            }
+        }
+    }
+
+}
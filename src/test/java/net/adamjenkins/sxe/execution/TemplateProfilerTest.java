@@ -0,0 +1,86 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.execution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import net.adamjenkins.sxe.execution.TemplateProfiler.HotSpot;
+import net.adamjenkins.sxe.execution.TemplateProfiler.Kind;
+
+/**
+ * Test for the template profiler.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class TemplateProfilerTest {
+
+    private static final String STYLESHEET =
+            "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">\n" +
+            "<xsl:output omit-xml-declaration=\"yes\"/>\n" +
+            "<xsl:template match=\"/\"><result><xsl:apply-templates select=\"document/item\"/></result></xsl:template>\n" +
+            "<xsl:template match=\"item\"><item><xsl:value-of select=\"string-length(.)\"/></item></xsl:template>\n" +
+            "</xsl:stylesheet>";
+
+    @Test
+    public void testTemplatesProfiled() throws Exception{
+        List<Source> sources = new ArrayList<Source>();
+        for(int i = 0; i < 10; i++){
+            sources.add(new StreamSource(new StringReader("<document><item>a</item><item>bb</item><item>ccc</item></document>")));
+        }
+        TemplateProfiler profiler = new TemplateProfiler();
+        try(BatchTransformer batch = new BatchTransformer(new StreamSource(new StringReader(STYLESHEET)), 2)){
+            batch.setProfiler(profiler);
+            for(BatchResult result : batch.transformAll(sources, source -> new StreamResult(new StringWriter()))){
+                assertTrue(result.toString(), result.isSuccessful());
+            }
+        }
+        HotSpot item = null;
+        for(HotSpot spot : profiler.getHotSpots(Kind.TEMPLATE)){
+            if(spot.getDescription().contains("match=\"item\"")) item = spot;
+            assertTrue(spot + " has more exclusive than inclusive time", spot.getExclusive().getTotal() <= spot.getInclusive().getTotal());
+        }
+        assertNotNull("Item template was not profiled", item);
+        assertEquals("Item template calls", 30, item.getInclusive().getCount());
+        assertTrue("Item template line", item.getLocation().endsWith(":4"));
+        assertTrue("No lines profiled", profiler.getHotSpots(Kind.LINE).size() > 0);
+
+        StringWriter xml = new StringWriter();
+        profiler.writeXml(xml, 10);
+        Document report = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new InputSource(new StringReader(xml.toString())));
+        assertTrue("Templates missing from report", report.getElementsByTagName("template").getLength() >= 2);
+        StringWriter text = new StringWriter();
+        profiler.writeText(text, 10);
+        assertTrue(text.toString(), text.toString().contains("match=\"item\""));
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
+
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.xalan.templates.StylesheetRoot;
+import org.junit.Test;
+
+/**
+ * Tests that precompiling a stylesheet only compiles its XPath attributes and doesn't keep it in memory.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class CompiledXPathCacheTest {
+
+    private static final String STYLESHEET =
+            "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" " +
+            "xmlns:concurrent=\"xalan://net.adamjenkins.sxe.elements.Concurrency\" " +
+            "xmlns:assert=\"xalan://net.adamjenkins.sxe.elements.Assertion\" " +
+            "extension-element-prefixes=\"concurrent assert\">" +
+            "<xsl:template match=\"/\">" +
+            "<xsl:variable name=\"pool\"><concurrent:threadPool name=\"cacheTest\" type=\"platform\" minSize=\"1\"/></xsl:variable>" +
+            "<concurrent:wait milliseconds=\"1\"/><assert:token id=\"cacheTest\"/>" +
+            "<result/></xsl:template>" +
+            "</xsl:stylesheet>";
+
+    @Test
+    public void testOnlyXPathAttributesCompiled() throws Exception{
+        //minSize and milliseconds, but not the name, type or id templates
+        assertEquals(2, CompiledXPathCache.precompile(compile()));
+    }
+
+    @Test
+    public void testStylesheetReleased() throws Exception{
+        WeakReference<StylesheetRoot> compiled = compileAndCache();
+        for(int i = 0; i < 50 && compiled.get() != null; i++){
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull("Cached stylesheet was never released", compiled.get());
+    }
+
+    private WeakReference<StylesheetRoot> compileAndCache() throws Exception{
+        StylesheetRoot stylesheet = compile();
+        assertEquals(2, CompiledXPathCache.precompile(stylesheet));
+        return new WeakReference<StylesheetRoot>(stylesheet);
+    }
+
+    private StylesheetRoot compile() throws Exception{
+        TransformerFactory factory = TransformerFactory.newInstance("org.apache.xalan.processor.TransformerFactoryImpl", getClass().getClassLoader());
+        return (StylesheetRoot)factory.newTemplates(new StreamSource(new StringReader(STYLESHEET)));
+    }
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.xalan.processor.TransformerFactoryImpl;
+import org.apache.xalan.transformer.TransformerImpl;
+import org.junit.Test;
+
+/**
+ * Test for the per transformation state store.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class TransformationContextTest {
+
+    private static final TransformationContext.Slot<String> NAME = TransformationContext.newSlot();
+    private static final TransformationContext.Slot<Integer> COUNT = TransformationContext.newSlot();
+    private static final TransformationContext.Slot<String> INHERITED = TransformationContext.newInheritedSlot();
+
+    private static final String STYLESHEET =
+            "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\"/>";
+
+    private static final String HOOK_STYLESHEET =
+            "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" " +
+            "xmlns:java=\"http://xml.apache.org/xalan/java\" exclude-result-prefixes=\"java\">" +
+            "<xsl:template match=\"/\"><out><xsl:value-of " +
+            "select=\"java:net.adamjenkins.sxe.util.TransformationContextTest.completeAtEndOfDocument()\"/></out>" +
+            "</xsl:template></xsl:stylesheet>";
+
+    private static TransformerImpl running;
+
+    /**
+     * Called from {@link #HOOK_STYLESHEET}, while the transformation is running.
+     */
+    public static String completeAtEndOfDocument(){
+        TransformationContext.completeAtEndOfDocument(running);
+        return "hooked";
+    }
+
+    private TransformerImpl newTransformer() throws Exception{
+        return newTransformer(STYLESHEET);
+    }
+
+    private TransformerImpl newTransformer(String stylesheet) throws Exception{
+        TransformerFactory factory = new TransformerFactoryImpl();
+        Templates templates = factory.newTemplates(new StreamSource(new StringReader(stylesheet)));
+        return (TransformerImpl)templates.newTransformer();
+    }
+
+    @Test
+    public void testSlotsAreIndependent() throws Exception{
+        TransformationContext state = TransformationContext.get(newTransformer());
+        assertNull(state.set(NAME, "outer"));
+        assertNull(state.get(COUNT));
+        state.set(COUNT, 1);
+        assertEquals("outer", state.set(NAME, "inner"));
+        assertEquals("inner", state.remove(NAME));
+        assertNull(state.get(NAME));
+        assertEquals(Integer.valueOf(1), state.get(COUNT));
+    }
+
+    @Test
+    public void testOneContextPerTransformer() throws Exception{
+        TransformerImpl first = newTransformer();
+        TransformerImpl second = newTransformer();
+        assertSame(TransformationContext.get(first), TransformationContext.get(first));
+        assertNotSame(TransformationContext.get(first), TransformationContext.get(second));
+        TransformationContext.get(first).set(NAME, "first");
+        assertNull(TransformationContext.get(second).get(NAME));
+    }
+
+    @Test
+    public void testVisibleFromOtherThreads() throws Exception{
+        TransformerImpl transformer = newTransformer();
+        TransformationContext.get(transformer).set(NAME, "shared");
+        String seen = CompletableFuture.supplyAsync(() -> TransformationContext.get(transformer).get(NAME)).get();
+        assertEquals("shared", seen);
+    }
+
+    @Test
+    public void testPutIfAbsent() throws Exception{
+        TransformationContext state = TransformationContext.get(newTransformer());
+        //created after the context, so it doesn't have a place in the context's array
+        TransformationContext.Slot<String> late = TransformationContext.newSlot();
+        for(TransformationContext.Slot<String> slot : Arrays.asList(NAME, late)){
+            assertNull(state.putIfAbsent(slot, "first"));
+            assertEquals("first", state.putIfAbsent(slot, "second"));
+            assertEquals("first", state.computeIfAbsent(slot, () -> "third"));
+            assertEquals("first", state.remove(slot));
+            assertNull(state.get(slot));
+        }
+    }
+
+    @Test
+    public void testConcurrentComputeIfAbsent() throws Exception{
+        TransformationContext state = TransformationContext.get(newTransformer());
+        List<CompletableFuture<Integer>> futures = new ArrayList<CompletableFuture<Integer>>();
+        for(int i = 0; i < 8; i++){
+            final int value = i;
+            futures.add(CompletableFuture.supplyAsync(() -> state.computeIfAbsent(COUNT, () -> value)));
+        }
+        for(CompletableFuture<Integer> future : futures){
+            assertEquals(state.get(COUNT), future.get());
+        }
+    }
+
+    @Test
+    public void testInheritedSlots() throws Exception{
+        TransformationContext parent = TransformationContext.get(newTransformer());
+        parent.set(NAME, "parent");
+        parent.set(INHERITED, "passed on");
+        TransformationContext branch = TransformationContext.get(newTransformer());
+        branch.inheritFrom(parent);
+        assertEquals("passed on", branch.get(INHERITED));
+        assertNull(branch.get(NAME));
+    }
+
+    @Test
+    public void testComplete() throws Exception{
+        TransformerImpl transformer = newTransformer();
+        TransformationContext state = TransformationContext.get(transformer);
+        TransformationContext branch = TransformationContext.get(newTransformer());
+        branch.inheritFrom(state);
+        assertSame(state, branch.getRoot());
+        final int[] runs = new int[1];
+        branch.getRoot().onComplete(() -> runs[0]++);
+        state.set(NAME, "finished");
+        TransformationContext.complete(transformer);
+        assertEquals(1, runs[0]);
+        assertNull("Context was not reset", TransformationContext.get(transformer).get(NAME));
+        TransformationContext.complete(transformer);
+        assertEquals(1, runs[0]);
+    }
+
+    @Test
+    public void testCompleteAtEndOfDocument() throws Exception{
+        TransformerImpl transformer = newTransformer(HOOK_STYLESHEET);
+        TransformationContext state = TransformationContext.get(transformer);
+        final int[] runs = new int[1];
+        state.onComplete(() -> runs[0]++);
+        state.set(NAME, "finished");
+        running = transformer;
+        StringWriter out = new StringWriter();
+        try{
+            transformer.transform(new StreamSource(new StringReader("<in/>")), new StreamResult(out));
+        }finally{
+            running = null;
+        }
+        assertTrue(out.toString().contains("<out>hooked</out>"));
+        assertEquals(1, runs[0]);
+        assertNull("Context was not reset", TransformationContext.get(transformer).get(NAME));
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.var;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.apache.xalan.templates.PassThroughVariableStack;
+import org.apache.xpath.VariableStack;
+import org.apache.xpath.objects.XNumber;
+import org.apache.xpath.objects.XString;
+import org.junit.Test;
+
+/**
+ * Tests the variable overrides used by extension elements that set the variable they're in.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class PassThroughVariableStackTest {
+
+    @Test
+    public void testOverrideScopedToFrame() throws Exception{
+        PassThroughVariableStack stack = new PassThroughVariableStack(new VariableStack());
+        stack.link(5);
+        int frame = stack.getStackFrame();
+        stack.overrideLoadVariable(2, new XString("override"));
+        //the variable element storing its own value
+        stack.setLocalVariable(2, new XString("fragment"));
+        assertEquals("override", stack.getLocalVariable(2, frame).str());
+        stack.link(5);
+        assertNull("Override leaked into a called template", stack.getLocalVariable(2, stack.getStackFrame()));
+        stack.unlink();
+        assertEquals("override", stack.getLocalVariable(2, frame).str());
+        stack.unlink();
+        stack.link(5);
+        assertNull("Override survived its frame", stack.getLocalVariable(2, stack.getStackFrame()));
+    }
+
+    @Test
+    public void testSlotReusedByAnotherVariable() throws Exception{
+        PassThroughVariableStack stack = new PassThroughVariableStack(new VariableStack());
+        stack.link(5);
+        int frame = stack.getStackFrame();
+        stack.overrideLoadVariable(1, new XString("override"));
+        stack.setLocalVariable(1, new XString("fragment"));
+        stack.setLocalVariable(1, new XNumber(3));
+        assertEquals(3, stack.getLocalVariable(1, frame).num(), 0);
+    }
+
+    @Test
+    public void testManyOverrides() throws Exception{
+        PassThroughVariableStack stack = new PassThroughVariableStack(new VariableStack());
+        stack.link(50);
+        int frame = stack.getStackFrame();
+        for(int i = 0; i < 50; i++){
+            stack.overrideLoadVariable(i, new XNumber(i));
+        }
+        for(int i = 0; i < 50; i++){
+            assertEquals(i, stack.getLocalVariable(i, frame).num(), 0);
+        }
+    }
+
+    @Test
+    public void testGlobalOverride() throws Exception{
+        PassThroughVariableStack stack = new PassThroughVariableStack(new VariableStack());
+        //globals live at the bottom of the stack, below the first template frame
+        stack.link(1);
+        stack.setGlobalVariable(0, new XString("fragment"));
+        stack.overrideGlobalVariable(0, new XString("override"));
+        stack.link(5);
+        stack.setLocalVariable(0, new XNumber(1));
+        assertEquals("override", stack.getGlobalVariable(null, 0).str());
+        stack.unlink();
+        assertEquals("Override did not outlive the frame", "override", stack.elementAt(0).str());
+        stack.reset();
+        assertNull("Override survived reset", stack.elementAt(0));
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2020 Adam Norman Jenkins.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * under the License.
+ */
+package net.adamjenkins.sxe.var;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
+
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.xalan.templates.StylesheetRoot;
+import org.apache.xalan.templates.VariableScopeIndex;
+import org.junit.Test;
+
+/**
+ * Tests that indexing the variable scopes of a stylesheet doesn't keep it in memory.
+ *
+ * @author <a href="mailto:opensource@adamjenkins.net">Adam Norman Jenkins</a>
+ */
+public class VariableScopeIndexTest {
+
+    private static final String STYLESHEET =
+            "<xsl:stylesheet version=\"1.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">" +
+            "<xsl:template match=\"/\"><xsl:variable name=\"a\" select=\"1\"/><xsl:variable name=\"b\" select=\"$a\"/>" +
+            "<result><xsl:value-of select=\"$b\"/></result></xsl:template>" +
+            "</xsl:stylesheet>";
+
+    @Test
+    public void testStylesheetReleased() throws Exception{
+        WeakReference<StylesheetRoot> compiled = compileAndIndex();
+        for(int i = 0; i < 50 && compiled.get() != null; i++){
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull("Indexed stylesheet was never released", compiled.get());
+    }
+
+    private WeakReference<StylesheetRoot> compileAndIndex() throws Exception{
+        TransformerFactory factory = TransformerFactory.newInstance("org.apache.xalan.processor.TransformerFactoryImpl", getClass().getClassLoader());
+        StylesheetRoot stylesheet = (StylesheetRoot)factory.newTemplates(new StreamSource(new StringReader(STYLESHEET)));
+        VariableScopeIndex.precompute(stylesheet);
+        //the value-of can see both variables
+        assertEquals(2, VariableScopeIndex.getVisibleVariables(stylesheet.getFirstChildElem().getLastChildElem().getFirstChildElem()).size());
+        return new WeakReference<StylesheetRoot>(stylesheet);
+    }
+
+}
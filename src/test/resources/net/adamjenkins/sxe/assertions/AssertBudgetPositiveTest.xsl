@@ -0,0 +1,22 @@
+<?xml version="1.0" encoding="UTF-8"?>
+
+<xsl:stylesheet xmlns:xsl="http://www.w3.org/1999/XSL/Transform" 
+                version="1.0"
+                xmlns:assert="xalan://net.adamjenkins.sxe.elements.Assertion"
+                xmlns:java="http://xml.apache.org/xslt/java"
+                exclude-result-prefixes="java"
+                extension-element-prefixes="assert">
+    <xsl:output method="xml"/>
+    <xsl:template match="/">
+        <assert:init/>
+        <assert:budget name="sectors" maxMillis="600000" maxAllocatedBytes="1073741824">
+            <xsl:apply-templates select="industry-details/sector"/>
+        </assert:budget>
+        <assert:finalize/>
+    </xsl:template>
+
+    <xsl:template match="sector">
+        <sector name="{@name}" segments="{count(.//segment)}"/>
+    </xsl:template>
+
+</xsl:stylesheet>
@@ -0,0 +1,42 @@
+<?xml version="1.0" encoding="UTF-8"?>
+
+<xsl:stylesheet xmlns:xsl="http://www.w3.org/1999/XSL/Transform" 
+                version="1.0"
+                xmlns:java="http://xml.apache.org/xslt/java"
+                xmlns:concurrent="xalan://net.adamjenkins.sxe.elements.Concurrency"
+                exclude-result-prefixes="java"
+                extension-element-prefixes="concurrent">
+    <xsl:output method="xml"/>
+
+    <xsl:template match="/">
+        <xsl:variable name="currency" select="'AUD'"/>
+        <xsl:variable name="prices">
+            <concurrent:async>
+                <xsl:value-of select="java:java.lang.Thread.sleep(50)"/>
+                <xsl:for-each select="(//segment)[position() &lt;= 3]">
+                    <price code="{@code}" currency="{$currency}"><xsl:value-of select="@numberOfCompanies"/></price>
+                </xsl:for-each>
+            </concurrent:async>
+        </xsl:variable>
+        <xsl:variable name="broken">
+            <concurrent:async>
+                <xsl:value-of select="java:java.lang.Integer.parseInt('not a number')"/>
+            </concurrent:async>
+        </xsl:variable>
+        <result>
+            <expected>
+                <xsl:for-each select="(//segment)[position() &lt;= 3]">
+                    <price code="{@code}" currency="{$currency}"><xsl:value-of select="@numberOfCompanies"/></price>
+                </xsl:for-each>
+            </expected>
+            <first>
+                <concurrent:await select="$prices" timeout="10000"/>
+            </first>
+            <second>
+                <concurrent:await select="$prices" timeout="10000"/>
+            </second>
+            <failed><concurrent:await select="$broken" timeout="10000"/></failed>
+        </result>
+    </xsl:template>
+
+</xsl:stylesheet>
@@ -0,0 +1,28 @@
+<?xml version="1.0" encoding="UTF-8"?>
+
+<xsl:stylesheet xmlns:xsl="http://www.w3.org/1999/XSL/Transform" 
+                version="1.0"
+                xmlns:concurrent="xalan://net.adamjenkins.sxe.elements.Concurrency"
+                extension-element-prefixes="concurrent">
+    <xsl:output method="xml"/>
+
+    <xsl:template match="/">
+        <xsl:variable name="prefix" select="'segment-'"/>
+        <xsl:variable name="groups" select="//group"/>
+        <result>
+            <serial>
+                <xsl:for-each select="//segment">
+                    <segment position="{position()}" of="{last()}"><xsl:value-of select="concat($prefix, @code, '/', count($groups))"/></segment>
+                </xsl:for-each>
+            </serial>
+            <parallel>
+                <concurrent:scope>
+                    <concurrent:forEach select="//segment" chunkSize="3">
+                        <segment position="{position()}" of="{last()}"><xsl:value-of select="concat($prefix, @code, '/', count($groups))"/></segment>
+                    </concurrent:forEach>
+                </concurrent:scope>
+            </parallel>
+        </result>
+    </xsl:template>
+
+</xsl:stylesheet>
@@ -0,0 +1,25 @@
+<?xml version="1.0" encoding="UTF-8"?>
+
+<xsl:stylesheet xmlns:xsl="http://www.w3.org/1999/XSL/Transform" 
+                version="1.0"
+                xmlns:java="http://xml.apache.org/xslt/java"
+                xmlns:concurrent="xalan://net.adamjenkins.sxe.elements.Concurrency"
+                exclude-result-prefixes="java"
+                extension-element-prefixes="concurrent">
+    <xsl:output method="xml"/>
+
+    <xsl:template match="/">
+        <xsl:variable name="pool">
+            <concurrent:threadPool name="namedPoolTest" minSize="2" maxSize="2" timeout="1000"/>
+        </xsl:variable>
+        <result>
+            <xsl:for-each select="//segment">
+                <!-- the pool is looked up by name, not through the variable -->
+                <concurrent:parallel pool="'namedPoolTest'">
+                    <thread code="{@code}"><xsl:value-of select="java:getName(java:java.lang.Thread.currentThread())"/></thread>
+                </concurrent:parallel>
+            </xsl:for-each>
+        </result>
+    </xsl:template>
+
+</xsl:stylesheet>
@@ -0,0 +1,51 @@
+<?xml version="1.0" encoding="UTF-8"?>
+
+<xsl:stylesheet xmlns:xsl="http://www.w3.org/1999/XSL/Transform" 
+                version="1.0"
+                xmlns:java="http://xml.apache.org/xslt/java"
+                xmlns:concurrent="xalan://net.adamjenkins.sxe.elements.Concurrency"
+                exclude-result-prefixes="java"
+                extension-element-prefixes="concurrent">
+    <xsl:output method="xml"/>
+
+    <xsl:template match="/">
+        <result>
+            <serial>
+                <xsl:apply-templates select="//segment" mode="serial"/>
+            </serial>
+            <parallel>
+                <xsl:apply-templates select="//segment" mode="parallel"/>
+            </parallel>
+        </result>
+    </xsl:template>
+
+    <xsl:template match="segment" mode="serial">
+        <segment code="{@code}">
+            <detail><xsl:value-of select="@name"/></detail>
+        </segment>
+        <xsl:call-template name="after"/>
+    </xsl:template>
+
+    <!-- the first branches sleep the longest, so they finish last -->
+    <xsl:template match="segment" mode="parallel">
+        <xsl:variable name="delay" select="(last() - position()) * 10"/>
+        <concurrent:parallel>
+            <xsl:value-of select="java:java.lang.Thread.sleep($delay)"/>
+            <segment code="{@code}">
+                <concurrent:parallel>
+                    <xsl:value-of select="java:java.lang.Thread.sleep(10)"/>
+                    <detail><xsl:value-of select="@name"/></detail>
+                </concurrent:parallel>
+            </segment>
+        </concurrent:parallel>
+        <xsl:call-template name="after"/>
+    </xsl:template>
+
+    <!-- written while the branches are still running, so the namespace lookups have to see the queued mappings -->
+    <xsl:template name="after">
+        <ns:after xmlns:ns="urn:sxe:order" code="{@code}">
+            <xsl:element name="ns:inner" namespace="urn:sxe:order"/>
+        </ns:after>
+    </xsl:template>
+
+</xsl:stylesheet>
@@ -0,0 +1,74 @@
+<?xml version="1.0" encoding="UTF-8"?>
+
+<xsl:stylesheet xmlns:xsl="http://www.w3.org/1999/XSL/Transform" 
+                version="1.0"
+                xmlns:concurrent="xalan://net.adamjenkins.sxe.elements.Concurrency"
+                extension-element-prefixes="concurrent">
+    <xsl:output method="xml"/>
+
+    <xsl:param name="region"/>
+    <xsl:variable name="sectors" select="count(//sector)"/>
+
+    <xsl:template match="/">
+        <xsl:variable name="pool">
+            <concurrent:threadPool minSize="3" maxSize="3" timeout="1000"/>
+        </xsl:variable>
+        <result>
+            <serial>
+                <xsl:apply-templates select="//industry" mode="serial">
+                    <xsl:with-param name="label" select="'industry'"/>
+                </xsl:apply-templates>
+            </serial>
+            <parallel>
+                <concurrent:scope>
+                    <xsl:apply-templates select="//industry" mode="parallel">
+                        <xsl:with-param name="label" select="'industry'"/>
+                        <xsl:with-param name="pool" select="$pool"/>
+                    </xsl:apply-templates>
+                </concurrent:scope>
+            </parallel>
+        </result>
+    </xsl:template>
+
+    <xsl:template match="industry" mode="serial">
+        <xsl:param name="label"/>
+        <xsl:variable name="segments" select="segment"/>
+        <xsl:variable name="summary"><first><xsl:value-of select="segment[1]/@name"/></first></xsl:variable>
+        <xsl:call-template name="industry">
+            <xsl:with-param name="label" select="$label"/>
+            <xsl:with-param name="segments" select="$segments"/>
+            <xsl:with-param name="summary" select="$summary"/>
+        </xsl:call-template>
+    </xsl:template>
+
+    <xsl:template match="industry" mode="parallel">
+        <xsl:param name="label"/>
+        <xsl:param name="pool"/>
+        <xsl:variable name="segments" select="segment"/>
+        <xsl:variable name="summary"><first><xsl:value-of select="segment[1]/@name"/></first></xsl:variable>
+        <concurrent:parallel pool="$pool">
+            <xsl:call-template name="industry">
+                <xsl:with-param name="label" select="$label"/>
+                <xsl:with-param name="segments" select="$segments"/>
+                <xsl:with-param name="summary" select="$summary"/>
+            </xsl:call-template>
+        </concurrent:parallel>
+    </xsl:template>
+
+    <!-- reads a global parameter, a global variable, a template parameter, a node-set and a result tree fragment -->
+    <xsl:template name="industry">
+        <xsl:param name="label"/>
+        <xsl:param name="segments"/>
+        <xsl:param name="summary"/>
+        <xsl:element name="{$label}">
+            <xsl:attribute name="region"><xsl:value-of select="$region"/></xsl:attribute>
+            <xsl:attribute name="sectors"><xsl:value-of select="$sectors"/></xsl:attribute>
+            <xsl:attribute name="segments"><xsl:value-of select="count($segments)"/></xsl:attribute>
+            <xsl:copy-of select="$summary"/>
+            <xsl:for-each select="$segments">
+                <code><xsl:value-of select="@code"/></code>
+            </xsl:for-each>
+        </xsl:element>
+    </xsl:template>
+
+</xsl:stylesheet>
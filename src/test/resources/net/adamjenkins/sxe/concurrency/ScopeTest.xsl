@@ -0,0 +1,44 @@
+<?xml version="1.0" encoding="UTF-8"?>
+
+<xsl:stylesheet xmlns:xsl="http://www.w3.org/1999/XSL/Transform" 
+                version="1.0"
+                xmlns:java="http://xml.apache.org/xslt/java"
+                xmlns:concurrent="xalan://net.adamjenkins.sxe.elements.Concurrency"
+                exclude-result-prefixes="java"
+                extension-element-prefixes="concurrent">
+    <xsl:output method="xml"/>
+
+    <xsl:template match="/">
+        <result>
+            <failure>
+                <concurrent:scope>
+                    <concurrent:parallel>
+                        <xsl:value-of select="java:java.lang.Integer.parseInt('not a number')"/>
+                    </concurrent:parallel>
+                    <concurrent:parallel>
+                        <xsl:value-of select="java:java.lang.Thread.sleep(10000)"/>
+                        <sibling/>
+                    </concurrent:parallel>
+                    <xsl:fallback><failed/></xsl:fallback>
+                </concurrent:scope>
+            </failure>
+            <timeout>
+                <concurrent:scope timeout="100">
+                    <concurrent:parallel>
+                        <xsl:value-of select="java:java.lang.Thread.sleep(10000)"/>
+                        <slow/>
+                    </concurrent:parallel>
+                    <xsl:fallback><timed-out/></xsl:fallback>
+                </concurrent:scope>
+            </timeout>
+            <invalid-timeout>
+                <concurrent:scope timeout="'soon'">
+                    <concurrent:parallel>
+                        <finished/>
+                    </concurrent:parallel>
+                </concurrent:scope>
+            </invalid-timeout>
+        </result>
+    </xsl:template>
+
+</xsl:stylesheet>